@@ -4,35 +4,113 @@ import java.io.*;
 import java.net.Socket;
 import java.net.URLEncoder;
 import java.net.URLDecoder;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import Common.Handshake;
+import Common.HashRing;
+import Common.LatencyHistogram;
+import Common.Operation;
+import Common.Protocol;
+import Common.WireFormat;
+import javafx.application.Platform;
 
 public class ClientNetwork extends Thread {
-    private final String serverAddress;
-    private final int port;
+    // Keystroke coalescing: how long a typing or backspace run may wait to grow before it
+    // is sent (0 sends every keystroke), and the most characters one coalesced edit holds
+    static final int COALESCE_WINDOW_MS = Integer.getInteger("editor.coalesce.ms", 20);
+    static final int COALESCE_MAX_CHARS = Math.max(1, Integer.getInteger("editor.coalesce.max", 256));
+    // Reconnect backoff after the connection drops: the first retry waits about
+    // RECONNECT_MIN_MS, each failed one doubles that up to RECONNECT_MAX_MS
+    static final int RECONNECT_MIN_MS = Integer.getInteger("editor.reconnect.min.ms", 250);
+    static final int RECONNECT_MAX_MS = Integer.getInteger("editor.reconnect.max.ms", 10_000);
+    // Send each finished edit latency window to the server as a LATENCY: line, so it can
+    // export per-user percentiles
+    static final boolean REPORT_LATENCY = Boolean.parseBoolean(System.getProperty("editor.latency.report", "true"));
+    // MOVED: redirects followed in a row without backoff, in case nodes disagree on the ring
+    private static final int MAX_REDIRECTS = 5;
+    private static final ScheduledExecutorService TIMER = Executors
+            .newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "client-timer");
+                t.setDaemon(true);
+                return t;
+            });
+
+    // Changed by a MOVED: redirect or a failover; network thread only
+    private String serverAddress;
+    private int port;
+    private boolean redirected;
+    // Servers (host:port) to fail over between, e.g. a primary and its hot standby: when
+    // one cannot be reached the next is tried
+    private final List<String> servers;
+    private int serverIndex;
     private final String sessionID;
     private final UIManager uiManager;
     private final TextEditorClient clientApp;
 
-    private Socket socket;
-    private BufferedReader in;
-    private PrintWriter out;
+    private volatile Socket socket;
+    private InputStream in;
+    private OutputStream out; // replaced on reconnect, guarded by sendLock
+    private final Object sendLock = new Object();
+    private boolean framesOut; // guarded by sendLock
+    // Edits are held back from a new connection until the session state has arrived
+    // (FULL_BUFFER or the end of a resume replay). Guarded by sendLock.
+    private boolean awaitingState;
+    private boolean framesIn; // network thread only
+    private final Map<Integer, String> clientIds = new HashMap<>(); // frame client numbers, network thread only
 
     private final AtomicLong operationIdCounter = new AtomicLong(0);
     private final String clientId;
     private final String clientName;
+    private final boolean preferCrdt; // ask for a CRDT session if we end up creating it
+    private final EditSynchronizer editSync;
+    private final CrdtSynchronizer crdtSync;
+    private volatile DocumentSync documentSync; // switched by the server's MODE: line
+    private long announcedRevision = -1; // REVISION: line that precedes FULL_BUFFER
+    private String sessionEpoch; // EPOCH: line; with the last revision seen, lets a reconnect resume
+    // Streamed snapshot being received (SNAPSHOT: line, then deflate chunks); network thread only
+    private Inflater snapshotInflater;
+    private long snapshotRevision;
+    private long snapshotRemaining; // characters still to come
 
-    // Updated constructor to accept custom username
     public ClientNetwork(String serverAddress, int port, String sessionID, UIManager uiManager,
             TextEditorClient clientApp, String customUsername) {
-        this.serverAddress = serverAddress;
-        this.port = port;
+        this(serverAddress, port, sessionID, uiManager, clientApp, customUsername, false);
+    }
+
+    // Updated constructor to accept custom username
+    public ClientNetwork(String serverAddress, int port, String sessionID, UIManager uiManager,
+            TextEditorClient clientApp, String customUsername, boolean preferCrdt) {
+        this(List.of(serverAddress + ":" + port), sessionID, uiManager, clientApp, customUsername, preferCrdt);
+    }
+
+    public ClientNetwork(List<String> servers, String sessionID, UIManager uiManager, TextEditorClient clientApp,
+            String customUsername, boolean preferCrdt) {
+        this.servers = new ArrayList<>(servers);
+        this.serverAddress = HashRing.host(servers.get(0));
+        this.port = HashRing.port(servers.get(0));
         this.sessionID = sessionID;
         this.uiManager = uiManager;
         this.clientApp = clientApp;
         this.clientId = "CLIENT_" + System.currentTimeMillis() + "_" + (int) (Math.random() * 1000);
         // Use the custom username instead of generating a random one
         this.clientName = customUsername;
+        this.preferCrdt = preferCrdt;
+        this.editSync = new EditSynchronizer(uiManager, this, clientId);
+        this.crdtSync = new CrdtSynchronizer(uiManager, this);
+        this.documentSync = editSync;
     }
 
     // Backward compatibility constructor (in case you want to keep the old behavior
@@ -42,67 +120,252 @@ public class ClientNetwork extends Thread {
         this(serverAddress, port, sessionID, uiManager, clientApp, "User" + (int) (Math.random() * 1000));
     }
 
+    // Connects, and reconnects with backoff whenever the connection drops, until
+    // interrupted. An OT client that reconnects to the same session asks to resume from
+    // the last revision it saw and only gets the edits it missed.
     @Override
     public void run() {
+        ScheduledFuture<?> latencyTicks = TIMER.scheduleAtFixedRate(() -> Platform.runLater(this::tickLatency),
+                1, 1, TimeUnit.SECONDS);
         try {
-            socket = new Socket(serverAddress, port);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
-
-            // Send session join request with client info
-            out.println("SESSION:" + sessionID + ":" + clientId + ":" + clientName);
-            System.out.println("Connected to session: " + sessionID + " as " + clientName);
-
-            String line;
-            while ((line = in.readLine()) != null && !isInterrupted()) {
-                System.out.println("Received: " + line);
-
-                if (line.startsWith("EDIT:")) {
-                    handleEditMessage(line);
-                } else if (line.startsWith("FULL_BUFFER:")) {
-                    handleFullBuffer(line);
-                } else if (line.startsWith("CHAT:")) {
-                    handleChatMessage(line);
-                } else if (line.startsWith("USER_COUNT:")) {
-                    handleUserCount(line);
-                } else if (line.startsWith("USER_JOINED:")) {
-                    handleUserJoined(line);
-                } else if (line.startsWith("USER_LEFT:")) {
-                    handleUserLeft(line);
+            reconnectLoop();
+        } finally {
+            latencyTicks.cancel(false);
+        }
+    }
+
+    private void reconnectLoop() {
+        long backoff = RECONNECT_MIN_MS;
+        int redirects = 0;
+        while (!isInterrupted()) {
+            boolean connected = false;
+            try {
+                connect();
+                connected = true;
+                clientApp.updateConnectionStatus(true);
+                readLoop();
+            } catch (IOException e) {
+                if (!isInterrupted() && !redirected) {
+                    System.err.println("ClientNetwork error: " + e.getMessage());
                 }
+            } finally {
+                cleanup();
             }
-        } catch (IOException e) {
-            if (!isInterrupted()) {
-                System.err.println("ClientNetwork error: " + e.getMessage());
+            if (isInterrupted()) {
+                break;
             }
-        } finally {
+            if (redirected && redirects < MAX_REDIRECTS) {
+                redirected = false;
+                redirects++;
+                continue;
+            }
+            redirected = false;
+            redirects = 0;
+            if (connected) {
+                backoff = RECONNECT_MIN_MS;
+            } else if (servers.size() > 1) {
+                failOver();
+            }
+            // Jitter so clients dropped together do not come back together
+            long delay = backoff / 2 + (long) (Math.random() * backoff / 2);
+            System.out.println("Connection lost; reconnecting in " + delay + " ms");
+            clientApp.updateConnectionStatus(false);
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                break;
+            }
+            backoff = Math.min(RECONNECT_MAX_MS, backoff * 2);
+        }
+    }
+
+    private void connect() throws IOException {
+        Socket connection = new Socket(serverAddress, port);
+        socket = connection;
+        // Byte streams: the server switches to binary frames after WIRE:1
+        in = new BufferedInputStream(connection.getInputStream());
+        framesIn = false;
+        clientIds.clear();
+        if (snapshotInflater != null) {
+            snapshotInflater.end(); // cut off with the old connection
+            snapshotInflater = null;
+        }
+
+        // Send session join request with client info
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put("crdt", "1");
+        options.put("wire", WireFormat.VERSION);
+        options.put("snapshot", "deflate");
+        if (preferCrdt) {
+            options.put("mode", "crdt");
+        }
+        long revision = editSync.getServerRevision();
+        boolean resume = documentSync == editSync && sessionEpoch != null && revision >= 0;
+        if (resume) {
+            options.put("epoch", sessionEpoch);
+            options.put("rev", String.valueOf(revision));
+        }
+        // Nothing else may reach the new connection before the handshake
+        synchronized (sendLock) {
+            out = new BufferedOutputStream(connection.getOutputStream());
+            framesOut = false;
+            awaitingState = true;
+            send(new Handshake(sessionID, clientId, clientName, options).format());
+        }
+        System.out.println("Connected to session: " + sessionID + " as " + clientName);
+    }
+
+    private void readLoop() throws IOException {
+        while (!isInterrupted()) {
+            if (framesIn) {
+                byte[] frame = WireFormat.readFrame(in);
+                if (frame == null) {
+                    break;
+                }
+                handleFrame(frame);
+                continue;
+            }
+            String line = WireFormat.readLine(in, Charset.defaultCharset());
+            if (line == null) {
+                break;
+            }
+            if (line.equals(WireFormat.SWITCH_LINE)) {
+                // Older servers never send this and we stay on text lines
+                framesIn = true;
+                synchronized (sendLock) {
+                    send(WireFormat.SWITCH_LINE);
+                    framesOut = true;
+                }
+                continue;
+            }
+            handleLine(line);
+        }
+    }
+
+    // Also unblocks a read in progress
+    @Override
+    public void interrupt() {
+        super.interrupt();
+        cleanup();
+    }
+
+    private void handleFrame(byte[] frame) {
+        switch (WireFormat.type(frame)) {
+            case WireFormat.TEXT:
+                handleLine(WireFormat.decodeText(frame));
+                break;
+            case WireFormat.INSERT:
+            case WireFormat.DELETE:
+                try {
+                    editSync.receive(WireFormat.decodeEdit(frame, clientIds::get));
+                } catch (Exception e) {
+                    System.err.println("Error handling edit frame: " + e.getMessage());
+                }
+                break;
+            case WireFormat.CLIENT:
+                clientIds.put(WireFormat.decodeClientNumber(frame), WireFormat.decodeClientId(frame));
+                break;
+            case WireFormat.BATCH:
+                handleBatch(frame);
+                break;
+            case WireFormat.SNAPSHOT:
+                handleSnapshotChunk(frame);
+                break;
+            default:
+                System.err.println("Ignoring frame type " + WireFormat.type(frame));
+        }
+    }
+
+    // Edits committed within one server tick; runs of edit frames are handed over
+    // together, anything else in between keeps its place
+    private void handleBatch(byte[] frame) {
+        try {
+            List<Operation> edits = new ArrayList<>();
+            for (byte[] inner : WireFormat.decodeBatch(frame)) {
+                byte type = WireFormat.type(inner);
+                if (type == WireFormat.INSERT || type == WireFormat.DELETE) {
+                    edits.add(WireFormat.decodeEdit(inner, clientIds::get));
+                    continue;
+                }
+                if (!edits.isEmpty()) {
+                    editSync.receive(edits);
+                    edits = new ArrayList<>();
+                }
+                handleFrame(inner);
+            }
+            if (!edits.isEmpty()) {
+                editSync.receive(edits);
+            }
+        } catch (Exception e) {
+            System.err.println("Error handling batch frame: " + e.getMessage());
+        }
+    }
+
+    private void handleLine(String line) {
+        if (line.startsWith("EDIT:")) {
+            handleEditMessage(line);
+        } else if (line.startsWith("CRDT_INS:") || line.startsWith("CRDT_DEL:")) {
+            crdtSync.receive(line);
+        } else if (line.startsWith("CRDT_STATE:")) {
+            crdtSync.reset(line.substring("CRDT_STATE:".length()));
+        } else if (line.startsWith("SITE:")) {
+            crdtSync.setSite(Integer.parseInt(line.substring("SITE:".length()).trim()));
+        } else if (line.startsWith("MODE:")) {
+            documentSync = line.equals("MODE:CRDT") ? crdtSync : editSync;
+        } else if (line.startsWith("MOVED:")) {
+            handleMoved(line);
+        } else if (line.startsWith("EPOCH:")) {
+            sessionEpoch = line.substring("EPOCH:".length()).trim();
+        } else if (line.startsWith("RESUME:")) {
+            editSync.resume(Long.parseLong(line.substring("RESUME:".length()).trim()));
+        } else if (line.startsWith("REVISION:")) {
+            announcedRevision = Long.parseLong(line.substring("REVISION:".length()).trim());
+        } else if (line.startsWith("SNAPSHOT:")) {
+            handleSnapshotStart(line);
+        } else if (line.startsWith("FULL_BUFFER:")) {
+            handleFullBuffer(line);
+        } else if (line.startsWith("CHAT:")) {
+            handleChatMessage(line);
+        } else if (line.startsWith("USER_COUNT:")) {
+            handleUserCount(line);
+        } else if (line.startsWith("USER_JOINED:")) {
+            handleUserJoined(line);
+        } else if (line.startsWith("USER_LEFT:")) {
+            handleUserLeft(line);
+        }
+    }
+
+    // The current server cannot be reached: the next attempt goes to the next one listed
+    private void failOver() {
+        serverIndex = (serverIndex + 1) % servers.size();
+        String next = servers.get(serverIndex);
+        serverAddress = HashRing.host(next);
+        port = HashRing.port(next);
+        System.out.println("Failing over to " + next);
+    }
+
+    // MOVED:host:port, the session lives on another server: reconnect there straight away
+    private void handleMoved(String line) {
+        String node = line.substring("MOVED:".length()).trim();
+        try {
+            int newPort = HashRing.port(node);
+            serverAddress = HashRing.host(node);
+            port = newPort;
+            redirected = true;
+            System.out.println("Session " + sessionID + " is on " + node + "; reconnecting");
             cleanup();
+        } catch (RuntimeException e) {
+            System.err.println("Error handling redirect: " + e.getMessage());
         }
     }
 
     private void handleEditMessage(String line) {
         try {
-            String[] parts = line.split(":", 6);
-            if (parts.length < 6)
+            Operation op = Protocol.parseEdit(line);
+            if (op == null)
                 return;
 
-            String opType = parts[1];
-            int pos = Integer.parseInt(parts[2]);
-            String sourceClientId = parts[4];
-            String operationId = parts[5];
-
-            System.out.println("Processing " + opType + " at position " + pos + " from client " + sourceClientId);
-
-            if (opType.equals("INSERT")) {
-                String encodedText = parts[3];
-                String text = URLDecoder.decode(encodedText, StandardCharsets.UTF_8.toString());
-                uiManager.insertText(pos, text);
-                System.out.println("Inserted '" + text + "' at position " + pos);
-            } else if (opType.equals("DELETE")) {
-                int length = Integer.parseInt(parts[3]);
-                uiManager.deleteText(pos, length);
-                System.out.println("Deleted " + length + " characters at position " + pos);
-            }
+            editSync.receive(op);
         } catch (Exception e) {
             System.err.println("Error handling edit message: " + e.getMessage());
         }
@@ -112,13 +375,65 @@ public class ClientNetwork extends Thread {
         try {
             String encodedFullText = line.substring("FULL_BUFFER:".length());
             String fullText = URLDecoder.decode(encodedFullText, StandardCharsets.UTF_8.toString());
-            uiManager.setText(fullText);
-            System.out.println("Set full buffer: '" + fullText + "'");
+            editSync.reset(fullText, announcedRevision);
+            System.out.println("Set full buffer at revision " + announcedRevision + ": " + fullText.length()
+                    + " chars");
         } catch (Exception e) {
             System.err.println("Error handling full buffer: " + e.getMessage());
         }
     }
 
+    // SNAPSHOT:revision:length, followed by chunks until `length` characters have arrived
+    private void handleSnapshotStart(String line) {
+        try {
+            String[] parts = line.split(":");
+            snapshotRevision = Long.parseLong(parts[1]);
+            snapshotRemaining = Long.parseLong(parts[2]);
+            if (snapshotInflater != null) {
+                snapshotInflater.end(); // an earlier snapshot was cut short by a resync
+            }
+            snapshotInflater = new Inflater(true);
+            editSync.beginSnapshot();
+            if (snapshotRemaining == 0) {
+                finishSnapshot();
+            }
+        } catch (Exception e) {
+            System.err.println("Error handling snapshot: " + e.getMessage());
+        }
+    }
+
+    // Each chunk ends with a sync flush, so it inflates to whole characters right away
+    private void handleSnapshotChunk(byte[] frame) {
+        if (snapshotInflater == null) {
+            System.err.println("Ignoring snapshot chunk outside a snapshot");
+            return;
+        }
+        try {
+            snapshotInflater.setInput(frame, 1, frame.length - 1);
+            ByteArrayOutputStream text = new ByteArrayOutputStream(frame.length * 4);
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = snapshotInflater.inflate(buffer)) > 0) {
+                text.write(buffer, 0, n);
+            }
+            String chunk = text.toString(StandardCharsets.UTF_8);
+            snapshotRemaining -= chunk.length();
+            editSync.appendSnapshot(chunk);
+            if (snapshotRemaining <= 0) {
+                finishSnapshot();
+            }
+        } catch (DataFormatException e) {
+            System.err.println("Error handling snapshot chunk: " + e.getMessage());
+        }
+    }
+
+    private void finishSnapshot() {
+        snapshotInflater.end();
+        snapshotInflater = null;
+        editSync.endSnapshot(snapshotRevision);
+        System.out.println("Received snapshot at revision " + snapshotRevision);
+    }
+
     private void handleChatMessage(String line) {
         try {
             // Format: CHAT:senderName:encodedMessage
@@ -171,25 +486,84 @@ public class ClientNetwork extends Thread {
         }
     }
 
+    // Called on the JavaFX thread; the edit is shown at once and synced in the background
     public void sendInsert(int pos, String text) {
-        try {
-            String operationId = String.valueOf(operationIdCounter.incrementAndGet());
-            String encodedText = URLEncoder.encode(text, StandardCharsets.UTF_8.toString());
-            String message = "EDIT:INSERT:" + pos + ":" + encodedText + ":" + clientId + ":" + operationId;
+        documentSync.localInsert(pos, text);
+    }
 
-            out.println(message);
-            System.out.println("Sent INSERT: " + message);
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
+    public void sendDelete(int pos, int length) {
+        documentSync.localDelete(pos, length);
+    }
+
+    // Runs the task on the JavaFX thread once the coalescing window has passed
+    void afterCoalesceWindow(Runnable task) {
+        TIMER.schedule(() -> Platform.runLater(task), COALESCE_WINDOW_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // Once a second on the JavaFX thread: refreshes the latency shown and reports a
+    // finished window as LATENCY:<samples>:<p50 us>:<p99 us>
+    private void tickLatency() {
+        EditLatency latency = editSync.getLatency();
+        LatencyHistogram finished = latency.roll();
+        Socket current = socket;
+        if (REPORT_LATENCY && finished != null && finished.getCount() > 0 && current != null && !current.isClosed()) {
+            send("LATENCY:" + finished.getCount() + ":" + finished.percentileMicros(50) + ":"
+                    + finished.percentileMicros(99));
         }
+        LatencyHistogram shown = latency.shown();
+        clientApp.updateEditLatency(shown.getCount(), shown.percentileMicros(50), shown.percentileMicros(99));
     }
 
-    public void sendDelete(int pos, int length) {
-        String operationId = String.valueOf(operationIdCounter.incrementAndGet());
-        String message = "EDIT:DELETE:" + pos + ":" + length + ":" + clientId + ":" + operationId;
+    String nextOperationId() {
+        return String.valueOf(operationIdCounter.incrementAndGet());
+    }
+
+    void transmit(String message) {
+        send(message);
+    }
+
+    // An edit of ours, as a frame once the server has switched to them. Held back until
+    // the new connection has its state: the synchronizer then sends whatever is still in
+    // flight (after a replay) or drops it with the old document (after FULL_BUFFER).
+    void transmitEdit(Operation op) {
+        synchronized (sendLock) {
+            if (awaitingState) {
+                return;
+            }
+            byte[] frame = framesOut ? WireFormat.encodeEdit(op, 0) : null;
+            if (frame != null) {
+                write(frame);
+                return;
+            }
+            transmit(Protocol.formatEdit(op));
+        }
+    }
 
-        out.println(message);
-        System.out.println("Sent DELETE: " + message);
+    // The server's replay has been applied, or it sent the whole document instead
+    void resumed() {
+        synchronized (sendLock) {
+            awaitingState = false;
+        }
+    }
+
+    // One protocol line, framed if frames were negotiated. Any thread.
+    private void send(String line) {
+        synchronized (sendLock) {
+            write(framesOut ? WireFormat.encodeText(line) : (line + "\n").getBytes(Charset.defaultCharset()));
+        }
+    }
+
+    private void write(byte[] bytes) {
+        if (out == null) {
+            System.err.println("ClientNetwork send failed: not connected");
+            return;
+        }
+        try {
+            out.write(bytes);
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("ClientNetwork send failed: " + e.getMessage());
+        }
     }
 
     public void sendChatMessage(String message) {
@@ -197,7 +571,7 @@ public class ClientNetwork extends Thread {
             String encodedMessage = URLEncoder.encode(message, StandardCharsets.UTF_8.toString());
             String chatMessage = "CHAT:" + clientName + ":" + encodedMessage;
 
-            out.println(chatMessage);
+            send(chatMessage);
 
             // Show our own message locally
             clientApp.addChatMessage(clientName + " (You): " + message);
@@ -216,14 +590,12 @@ public class ClientNetwork extends Thread {
         return clientId;
     }
 
+    // Closing the socket also closes its streams
     private void cleanup() {
         try {
-            if (socket != null && !socket.isClosed())
-                socket.close();
-            if (in != null)
-                in.close();
-            if (out != null)
-                out.close();
+            Socket current = socket;
+            if (current != null && !current.isClosed())
+                current.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -0,0 +1,191 @@
+package Client;
+
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import Common.Protocol;
+import Common.RgaDocument;
+import javafx.application.Platform;
+
+// Client half of a CRDT session. Keeps a replica of the session's RGA; local edits are
+// applied and sent by node id, remote ops can arrive in any order and wait here until
+// the nodes they refer to exist. Replica access happens on the JavaFX thread only.
+// Local edits are merged into the replica at once but sent coalesced: a typing run is
+// one insert chain, a delete run one id list, for up to the network's coalescing window.
+public class CrdtSynchronizer implements DocumentSync {
+    private final UIManager uiManager;
+    private final ClientNetwork network;
+
+    private RgaDocument replica; // null until CRDT_STATE arrives
+    private int site = -1;
+    private final List<String> parked = new ArrayList<>();
+
+    // Local edit not sent yet: an insert chain (pendingText != null) or deleted ids
+    private long pendingOrigin;
+    private long pendingFirstId;
+    private StringBuilder pendingText;
+    private final List<Long> pendingDeletes = new ArrayList<>();
+    private int run;
+
+    public CrdtSynchronizer(UIManager uiManager, ClientNetwork network) {
+        this.uiManager = uiManager;
+        this.network = network;
+    }
+
+    public void setSite(int site) {
+        Platform.runLater(() -> this.site = site);
+    }
+
+    public void reset(String state) {
+        Platform.runLater(() -> {
+            pendingText = null;
+            pendingDeletes.clear();
+            replica = RgaDocument.fromState(state);
+            uiManager.setText(replica.text());
+            drainParked();
+        });
+    }
+
+    public void receive(String line) {
+        Platform.runLater(() -> {
+            if (replica == null || !apply(line)) {
+                parked.add(line);
+            } else {
+                drainParked();
+            }
+        });
+    }
+
+    @Override
+    public void localInsert(int pos, String text) {
+        if (replica == null || site < 0) {
+            return;
+        }
+        long originId = replica.idAtVisibleIndex(pos - 1);
+        long firstId = RgaDocument.makeId(replica.reserveCounters(text.length()), site);
+        replica.insert(originId, firstId, text);
+        uiManager.insertText(pos, text);
+
+        // Continues the chain if it goes right after its last node with the next ids
+        if (pendingText != null && pendingText.length() + text.length() <= ClientNetwork.COALESCE_MAX_CHARS
+                && originId == RgaDocument.nthId(pendingFirstId, pendingText.length() - 1)
+                && firstId == RgaDocument.nthId(pendingFirstId, pendingText.length())) {
+            pendingText.append(text);
+            return;
+        }
+        flush();
+        pendingOrigin = originId;
+        pendingFirstId = firstId;
+        pendingText = new StringBuilder(text);
+        startRun();
+    }
+
+    @Override
+    public void localDelete(int pos, int length) {
+        if (replica == null) {
+            return;
+        }
+        long[] ids = replica.visibleIds(pos, length);
+        if (ids.length == 0) {
+            return;
+        }
+        for (long id : ids) {
+            replica.delete(id);
+        }
+        uiManager.deleteText(pos, ids.length);
+
+        if (pendingText != null || pendingDeletes.size() + ids.length > ClientNetwork.COALESCE_MAX_CHARS) {
+            flush();
+        }
+        boolean fresh = pendingDeletes.isEmpty();
+        for (long id : ids) {
+            pendingDeletes.add(id);
+        }
+        if (fresh) {
+            startRun();
+        }
+    }
+
+    private void startRun() {
+        if (ClientNetwork.COALESCE_WINDOW_MS <= 0) {
+            flush();
+            return;
+        }
+        int current = ++run;
+        network.afterCoalesceWindow(() -> {
+            if (run == current) {
+                flush();
+            }
+        });
+    }
+
+    private void flush() {
+        if (pendingText != null) {
+            network.transmit(Protocol.formatCrdtInsert(pendingOrigin, pendingFirstId, pendingText.toString()));
+            pendingText = null;
+        }
+        if (!pendingDeletes.isEmpty()) {
+            long[] ids = new long[pendingDeletes.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = pendingDeletes.get(i);
+            }
+            network.transmit(Protocol.formatCrdtDelete(ids));
+            pendingDeletes.clear();
+        }
+    }
+
+    // Returns false if the op refers to a node we have not seen yet
+    private boolean apply(String line) {
+        if (line.startsWith("CRDT_INS:")) {
+            String[] parts = line.split(":", 4);
+            long originId = Long.parseLong(parts[1]);
+            long firstId = Long.parseLong(parts[2]);
+            if (replica.contains(firstId)) {
+                return true; // already merged, e.g. it was part of the state
+            }
+            String text = URLDecoder.decode(parts[3], StandardCharsets.UTF_8);
+            if (!replica.insert(originId, firstId, text)) {
+                return false;
+            }
+            // A freshly merged chain is contiguous, so it shows up as one insert
+            uiManager.insertText(replica.visibleIndexOf(firstId), text);
+            return true;
+        }
+
+        if (line.startsWith("CRDT_DEL:")) {
+            boolean complete = true;
+            for (String value : line.substring("CRDT_DEL:".length()).split(",")) {
+                long id = Long.parseLong(value);
+                if (!replica.contains(id)) {
+                    complete = false;
+                    continue;
+                }
+                int pos = replica.visibleIndexOf(id);
+                if (pos >= 0) {
+                    replica.delete(id);
+                    uiManager.deleteText(pos, 1);
+                }
+            }
+            // Deleting twice is a no-op, so a partial line can simply be retried later
+            return complete;
+        }
+        return true;
+    }
+
+    private void drainParked() {
+        boolean progress = true;
+        while (progress && !parked.isEmpty()) {
+            progress = false;
+            Iterator<String> it = parked.iterator();
+            while (it.hasNext()) {
+                if (apply(it.next())) {
+                    it.remove();
+                    progress = true;
+                }
+            }
+        }
+    }
+}
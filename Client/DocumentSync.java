@@ -0,0 +1,9 @@
+package Client;
+
+// Turns local keystrokes into network ops. Called on the JavaFX thread.
+public interface DocumentSync {
+
+    void localInsert(int pos, String text);
+
+    void localDelete(int pos, int length);
+}
@@ -0,0 +1,67 @@
+package Client;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import Common.LatencyHistogram;
+
+// Keystroke-to-visible latency of our own OT edits, timed on the operationId echo: from
+// the keystroke that starts an edit (a coalesced run keeps its first keystroke's id) to
+// the server's broadcast of it coming back, which the other clients receive alongside.
+// Samples go into windows of WINDOW_MS; the status bar shows the current window, or the
+// last one while the current has too few samples. JavaFX thread only.
+final class EditLatency {
+    static final int WINDOW_MS = Math.max(1000, Integer.getInteger("editor.latency.window.ms", 10_000));
+    private static final int MIN_SAMPLES = 20;
+    // An edit whose echo never came (dropped with a resync, swallowed by a remote delete)
+    private static final long STALE_NANOS = 60_000_000_000L;
+
+    private final Map<String, Long> started = new HashMap<>(); // operationId -> keystroke time
+    private LatencyHistogram window = new LatencyHistogram();
+    private LatencyHistogram last = new LatencyHistogram();
+    private long windowStart = System.nanoTime();
+
+    void started(String operationId) {
+        started.put(operationId, System.nanoTime());
+    }
+
+    // Typed and backspaced away before it was sent
+    void cancelled(String operationId) {
+        started.remove(operationId);
+    }
+
+    void echoed(String operationId) {
+        Long at = started.remove(operationId);
+        if (at != null) {
+            window.recordNanos(System.nanoTime() - at);
+        }
+    }
+
+    // The edits still pending went with the old document
+    void clear() {
+        started.clear();
+    }
+
+    LatencyHistogram shown() {
+        return window.getCount() >= MIN_SAMPLES || last.getCount() == 0 ? window : last;
+    }
+
+    // Closes the current window once it has run for WINDOW_MS and returns it; null
+    // while it is still open
+    LatencyHistogram roll() {
+        long now = System.nanoTime();
+        if (now - windowStart < WINDOW_MS * 1_000_000L) {
+            return null;
+        }
+        for (Iterator<Long> it = started.values().iterator(); it.hasNext();) {
+            if (now - it.next() > STALE_NANOS) {
+                it.remove();
+            }
+        }
+        last = window;
+        window = new LatencyHistogram();
+        windowStart = now;
+        return last;
+    }
+}
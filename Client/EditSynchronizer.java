@@ -0,0 +1,279 @@
+package Client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import Common.Operation;
+import Common.OperationTransformer;
+import javafx.application.Platform;
+
+// Client half of the OT protocol. Local edits are shown immediately and queued; one op
+// is in flight at a time, sent against the last server revision seen, so the server
+// only ever has to transform it against other clients' edits. Remote ops are
+// transformed past everything still pending before they are shown.
+// Keystrokes are coalesced: the last queued op stays open for the network's coalescing
+// window and absorbs adjacent typing and backspacing; an edit anywhere else closes it.
+// After a reconnect the server may replay the edits we missed instead of the whole
+// document (resume()); an op still in flight that the replay does not echo was lost
+// with the old connection and is sent again.
+// Each edit is timed from its first keystroke to its echo (EditLatency).
+// All state lives on the JavaFX thread; receive(), reset() and resume() hop onto it.
+public class EditSynchronizer implements DocumentSync {
+    private final UIManager uiManager;
+    private final ClientNetwork network;
+    private final String clientId;
+    private final EditLatency latency = new EditLatency();
+
+    private volatile long serverRevision = -1; // -1 until the first FULL_BUFFER arrives; read by the network thread
+    private long resumeTarget = -1; // revision the server's replay ends at, -1 when not resuming
+    private List<Operation> inFlight = new ArrayList<>(); // sent, waiting for the echo
+    private List<Operation> queued = new ArrayList<>(); // not sent yet
+    private boolean tailOpen; // the last queued op may still grow
+    private int run; // bumped whenever a new open op starts
+
+    public EditSynchronizer(UIManager uiManager, ClientNetwork network, String clientId) {
+        this.uiManager = uiManager;
+        this.network = network;
+        this.clientId = clientId;
+    }
+
+    @Override
+    public void localInsert(int pos, String text) {
+        uiManager.insertText(pos, text);
+        enqueue(Operation.insert(pos, text, clientId, network.nextOperationId()));
+    }
+
+    @Override
+    public void localDelete(int pos, int length) {
+        uiManager.deleteText(pos, length);
+        enqueue(Operation.delete(pos, length, clientId, network.nextOperationId()));
+    }
+
+    private void enqueue(Operation op) {
+        if (tailOpen) {
+            int last = queued.size() - 1;
+            Operation merged = merge(queued.get(last), op);
+            if (merged != null) {
+                if (merged.isInsert() && merged.getText().isEmpty()) {
+                    // Typed and backspaced away before it was sent
+                    latency.cancelled(queued.remove(last).getOperationId());
+                    tailOpen = false;
+                } else {
+                    queued.set(last, merged);
+                }
+                if (!tailOpen || size(merged) >= ClientNetwork.COALESCE_MAX_CHARS) {
+                    tailOpen = false;
+                    sendNext();
+                }
+                return;
+            }
+        }
+
+        // A jump elsewhere: whatever was open goes out as it is
+        queued.add(op);
+        latency.started(op.getOperationId());
+        if (ClientNetwork.COALESCE_WINDOW_MS <= 0) {
+            tailOpen = false;
+            sendNext();
+            return;
+        }
+        tailOpen = true;
+        int current = ++run;
+        sendNext();
+        network.afterCoalesceWindow(() -> {
+            if (run == current && tailOpen) {
+                tailOpen = false;
+                sendNext();
+            }
+        });
+    }
+
+    // `next` was made against the document with `last` applied; returns the single op
+    // equivalent to both, or null if they are not adjacent
+    private static Operation merge(Operation last, Operation next) {
+        int limit = ClientNetwork.COALESCE_MAX_CHARS;
+        if (last.isInsert()) {
+            int end = last.getPosition() + last.getText().length();
+            if (next.isInsert()) {
+                if (next.getPosition() != end || last.getText().length() + next.getText().length() > limit) {
+                    return null;
+                }
+                return Operation.insert(last.getPosition(), last.getText() + next.getText(), last.getClientId(),
+                        last.getOperationId());
+            }
+            // Backspacing over the tail of what was just typed
+            if (next.getPosition() + next.getLength() != end || next.getPosition() < last.getPosition()) {
+                return null;
+            }
+            return Operation.insert(last.getPosition(),
+                    last.getText().substring(0, next.getPosition() - last.getPosition()), last.getClientId(),
+                    last.getOperationId());
+        }
+
+        if (next.isInsert() || last.getLength() + next.getLength() > limit) {
+            return null;
+        }
+        if (next.getPosition() + next.getLength() == last.getPosition()) {
+            // Backspace run
+            return Operation.delete(next.getPosition(), last.getLength() + next.getLength(), last.getClientId(),
+                    last.getOperationId());
+        }
+        if (next.getPosition() == last.getPosition()) {
+            // Forward-delete run
+            return Operation.delete(last.getPosition(), last.getLength() + next.getLength(), last.getClientId(),
+                    last.getOperationId());
+        }
+        return null;
+    }
+
+    private static int size(Operation op) {
+        return op.isInsert() ? op.getText().length() : op.getLength();
+    }
+
+    public void receive(Operation op) {
+        Platform.runLater(() -> {
+            applyRemote(op);
+            checkResumed();
+        });
+    }
+
+    // Edits the server sent as one batch, applied in a single pass on the UI thread
+    public void receive(List<Operation> ops) {
+        Platform.runLater(() -> {
+            for (Operation op : ops) {
+                applyRemote(op);
+            }
+            checkResumed();
+        });
+    }
+
+    // Whole document at a revision; anything pending is dropped with the old view
+    public void reset(String text, long revision) {
+        Platform.runLater(() -> {
+            serverRevision = revision;
+            resumeTarget = -1;
+            network.resumed();
+            inFlight.clear();
+            queued.clear();
+            latency.clear();
+            tailOpen = false;
+            uiManager.setText(text);
+        });
+    }
+
+    // Start of a streamed document; like reset(), but the text follows in chunks. Edits
+    // typed meanwhile are kept: they are positioned within the part already shown, which
+    // is a prefix of the whole, and go out once the snapshot is complete.
+    public void beginSnapshot() {
+        Platform.runLater(() -> {
+            serverRevision = -1;
+            resumeTarget = -1;
+            inFlight.clear();
+            queued.clear();
+            latency.clear();
+            tailOpen = false;
+            uiManager.setText("");
+        });
+    }
+
+    public void appendSnapshot(String chunk) {
+        Platform.runLater(() -> uiManager.appendText(chunk));
+    }
+
+    public void endSnapshot(long revision) {
+        Platform.runLater(() -> {
+            serverRevision = revision;
+            network.resumed();
+            sendNext();
+        });
+    }
+
+    // The server kept our document after a reconnect and replays the edits up to `revision`
+    public void resume(long revision) {
+        Platform.runLater(() -> {
+            resumeTarget = revision;
+            checkResumed();
+        });
+    }
+
+    // Last server revision applied here; what a reconnect resumes from
+    long getServerRevision() {
+        return serverRevision;
+    }
+
+    // JavaFX thread only
+    EditLatency getLatency() {
+        return latency;
+    }
+
+    private void checkResumed() {
+        if (resumeTarget < 0 || serverRevision < resumeTarget) {
+            return;
+        }
+        resumeTarget = -1;
+        network.resumed();
+        if (inFlight.isEmpty()) {
+            sendNext();
+            return;
+        }
+        // Never committed; it has been transformed past the replay, so send it again
+        Operation again = inFlight.get(0).withRevision(serverRevision);
+        inFlight.set(0, again);
+        network.transmitEdit(again);
+    }
+
+    private void applyRemote(Operation op) {
+        if (serverRevision < 0) {
+            return;
+        }
+        if (op.getRevision() >= 0) {
+            if (op.getRevision() <= serverRevision) {
+                return; // already part of our snapshot
+            }
+            serverRevision = op.getRevision();
+        } else {
+            serverRevision++;
+        }
+
+        if (clientId.equals(op.getClientId()) && !inFlight.isEmpty()) {
+            // Our own op coming back; it is already in the editor
+            inFlight.remove(0);
+            latency.echoed(op.getOperationId());
+            sendNext();
+            return;
+        }
+
+        // The server ordered this op before everything we still have pending
+        OperationTransformer.Result pastInFlight = OperationTransformer.transformBoth(List.of(op), inFlight, true);
+        inFlight = pastInFlight.applied;
+        OperationTransformer.Result pastQueued = OperationTransformer.transformBoth(pastInFlight.ops, queued, true);
+        if (pastQueued.applied.size() != queued.size()) {
+            // A queued delete was split or swallowed; stop growing it
+            tailOpen = false;
+        }
+        queued = pastQueued.applied;
+
+        for (Operation remote : pastQueued.ops) {
+            if (remote.isInsert()) {
+                uiManager.insertText(remote.getPosition(), remote.getText());
+            } else {
+                uiManager.deleteText(remote.getPosition(), remote.getLength());
+            }
+        }
+
+        // The in-flight delete may have been swallowed by this op; the server drops it too
+        sendNext();
+    }
+
+    private void sendNext() {
+        if (!inFlight.isEmpty() || queued.isEmpty() || serverRevision < 0) {
+            return;
+        }
+        if (queued.size() == 1 && tailOpen) {
+            return; // still coalescing; the window or the next jump sends it
+        }
+        Operation next = queued.remove(0).withRevision(serverRevision);
+        inFlight.add(next);
+        network.transmitEdit(next);
+    }
+}
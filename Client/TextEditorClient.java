@@ -18,6 +18,8 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
 
 // Chat themes enum moved outside the class
 enum ChatTheme {
@@ -65,10 +67,12 @@ public class TextEditorClient extends Application {
     private TextField serverIPInput; // ADDED: Server IP input field
     private TextField sessionInput;
     private TextField usernameInput;
+    private CheckBox crdtModeCheck;
     private Button connectButton;
     private Button disconnectButton;
     private Label statusLabel;
     private Label sessionStatusLabel;
+    private Label latencyLabel;
     private Button saveButton;
     private Button fontSizeIncreaseButton;
     private Button fontSizeDecreaseButton;
@@ -176,6 +180,10 @@ public class TextEditorClient extends Application {
         sessionInput.setPrefWidth(300);
         sessionInput.setStyle("-fx-font-size: 14px; -fx-padding: 8px;");
 
+        crdtModeCheck = new CheckBox("CRDT mode");
+        crdtModeCheck.setStyle("-fx-text-fill: white; -fx-font-size: 12px;");
+        crdtModeCheck.setTooltip(new Tooltip("Merge edits peer-to-peer style when creating a new session"));
+
         connectButton = new Button("🔗 Connect");
         connectButton.setStyle(
                 "-fx-background-color: #27ae60; -fx-text-fill: white; -fx-font-size: 14px; -fx-padding: 8px 15px; -fx-background-radius: 5px;");
@@ -187,8 +195,8 @@ public class TextEditorClient extends Application {
         disconnectButton.setDisable(true);
         disconnectButton.setOnAction(e -> disconnectFromServer());
 
-        userBox.getChildren().addAll(usernameLabel, usernameInput, sessionLabel, sessionInput, connectButton,
-                disconnectButton);
+        userBox.getChildren().addAll(usernameLabel, usernameInput, sessionLabel, sessionInput, crdtModeCheck,
+                connectButton, disconnectButton);
 
         // Toolbar
         HBox toolbar = createToolbar();
@@ -331,13 +339,17 @@ public class TextEditorClient extends Application {
         sessionStatusLabel = new Label("Not Connected");
         sessionStatusLabel.setStyle("-fx-text-fill: #e74c3c; -fx-font-size: 12px; -fx-font-weight: bold;");
 
+        latencyLabel = new Label("");
+        latencyLabel.setStyle("-fx-text-fill: #bdc3c7; -fx-font-size: 12px;");
+
         Region spacer = new Region();
         HBox.setHgrow(spacer, Priority.ALWAYS);
 
         Label timeLabel = new Label(LocalDateTime.now().format(DateTimeFormatter.ofPattern("HH:mm:ss")));
         timeLabel.setStyle("-fx-text-fill: #bdc3c7; -fx-font-size: 12px;");
 
-        statusBar.getChildren().addAll(statusLabel, new Separator(), sessionStatusLabel, spacer, timeLabel);
+        statusBar.getChildren().addAll(statusLabel, new Separator(), sessionStatusLabel, latencyLabel, spacer,
+                timeLabel);
         return statusBar;
     }
 
@@ -452,6 +464,16 @@ public class TextEditorClient extends Application {
             return;
         }
 
+        // host or host:port; any node of a cluster will do. A comma-separated list
+        // (a primary and its standby) is failed over in turn.
+        List<String> servers = parseServers(serverIP);
+        if (servers == null) {
+            showAlert("Server must be host or host:port, or a comma-separated list of them "
+                    + "(e.g. primary:12345,standby:12345).", Alert.AlertType.ERROR);
+            serverIPInput.requestFocus();
+            return;
+        }
+
         if (sessionID.isEmpty()) {
             showAlert("Session ID cannot be empty.", Alert.AlertType.ERROR);
             sessionInput.requestFocus();
@@ -474,13 +496,15 @@ public class TextEditorClient extends Application {
         try {
             uiManager = new UIManager(textArea);
             // FIXED: Use serverIP instead of hardcoded "localhost"
-            network = new ClientNetwork(serverIP, 12345, sessionID, uiManager, this, username);
+            network = new ClientNetwork(servers, sessionID, uiManager, this, username,
+                    crdtModeCheck.isSelected());
             network.start();
 
             // Update UI
             serverIPInput.setDisable(true); // ADDED: Disable server IP input
             usernameInput.setDisable(true);
             sessionInput.setDisable(true);
+            crdtModeCheck.setDisable(true);
             connectButton.setDisable(true);
             disconnectButton.setDisable(false);
             saveButton.setDisable(false);
@@ -502,6 +526,32 @@ public class TextEditorClient extends Application {
         }
     }
 
+    // host:port of every server in the list, or null if an entry is not host or host:port
+    private static List<String> parseServers(String list) {
+        List<String> servers = new ArrayList<>();
+        for (String server : list.split(",")) {
+            server = server.trim();
+            if (server.isEmpty()) {
+                continue;
+            }
+            int colon = server.lastIndexOf(':');
+            String host = (colon >= 0 ? server.substring(0, colon) : server).trim();
+            int port = 12345;
+            if (colon >= 0) {
+                try {
+                    port = Integer.parseInt(server.substring(colon + 1).trim());
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            }
+            if (host.isEmpty() || port < 1 || port > 65535) {
+                return null;
+            }
+            servers.add(host + ":" + port);
+        }
+        return servers.isEmpty() ? null : servers;
+    }
+
     private void disconnectFromServer() {
         if (network != null) {
             network.interrupt();
@@ -512,6 +562,7 @@ public class TextEditorClient extends Application {
         serverIPInput.setDisable(false); // ADDED: Enable server IP input
         usernameInput.setDisable(false);
         sessionInput.setDisable(false);
+        crdtModeCheck.setDisable(false);
         connectButton.setDisable(false);
         disconnectButton.setDisable(true);
         saveButton.setDisable(true);
@@ -521,6 +572,7 @@ public class TextEditorClient extends Application {
         chatThemeCombo.setDisable(true);
 
         statusLabel.setText("Disconnected");
+        latencyLabel.setText("");
         sessionStatusLabel.setText("Not Connected");
         sessionStatusLabel.setStyle("-fx-text-fill: #e74c3c; -fx-font-size: 12px; -fx-font-weight: bold;");
 
@@ -642,6 +694,29 @@ public class TextEditorClient extends Application {
         });
     }
 
+    // Called by the network thread when the connection drops or comes back
+    public void updateConnectionStatus(boolean connected) {
+        javafx.application.Platform.runLater(() -> {
+            if (network == null) {
+                return; // disconnected on purpose
+            }
+            sessionStatusLabel.setText(connected ? "Connected" : "Reconnecting...");
+            sessionStatusLabel.setStyle((connected ? "-fx-text-fill: #27ae60;" : "-fx-text-fill: #f39c12;")
+                    + " -fx-font-size: 12px; -fx-font-weight: bold;");
+        });
+    }
+
+    // Keystroke-to-echo latency of our own edits, refreshed by the network once a second
+    public void updateEditLatency(long samples, long p50Micros, long p99Micros) {
+        javafx.application.Platform.runLater(() -> {
+            if (network == null) {
+                return;
+            }
+            latencyLabel.setText(samples == 0 ? "" : String.format("Edit latency p50 %.1f ms · p99 %.1f ms",
+                    p50Micros / 1000.0, p99Micros / 1000.0));
+        });
+    }
+
     public void updateUserCount(int count) {
         javafx.application.Platform.runLater(() -> {
             connectedUsersCount = count;
@@ -0,0 +1,76 @@
+package Common;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// First line a client sends: SESSION:sessionID:clientId:clientName[:key=value,key=value]
+// Options are optional so legacy clients keep working; a name containing ':' is only
+// split off as options when the tail really looks like key=value pairs.
+public final class Handshake {
+    private final String sessionId;
+    private final String clientId;
+    private final String clientName;
+    private final Map<String, String> options;
+
+    public Handshake(String sessionId, String clientId, String clientName, Map<String, String> options) {
+        this.sessionId = sessionId;
+        this.clientId = clientId;
+        this.clientName = clientName;
+        this.options = options;
+    }
+
+    // Returns null if the line is not a complete SESSION request
+    public static Handshake parse(String line) {
+        if (line == null || !line.startsWith("SESSION:")) {
+            return null;
+        }
+        String[] parts = line.split(":", 5);
+        if (parts.length < 4) {
+            return null;
+        }
+        String name = parts[3];
+        Map<String, String> options = new LinkedHashMap<>();
+        if (parts.length == 5) {
+            if (parts[4].matches("[a-z]+=[^,:]*(,[a-z]+=[^,:]*)*")) {
+                for (String pair : parts[4].split(",")) {
+                    int eq = pair.indexOf('=');
+                    options.put(pair.substring(0, eq), pair.substring(eq + 1));
+                }
+            } else {
+                name = name + ":" + parts[4];
+            }
+        }
+        return new Handshake(parts[1].trim(), parts[2].trim(), name.trim(), options);
+    }
+
+    public String format() {
+        StringBuilder sb = new StringBuilder("SESSION:").append(sessionId).append(':').append(clientId)
+                .append(':').append(clientName);
+        String sep = ":";
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            sb.append(sep).append(option.getKey()).append('=').append(option.getValue());
+            sep = ",";
+        }
+        return sb.toString();
+    }
+
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    public String getClientName() {
+        return clientName;
+    }
+
+    public String getOption(String key) {
+        return options.get(key);
+    }
+
+    public boolean hasOption(String key) {
+        return options.containsKey(key);
+    }
+}
@@ -0,0 +1,97 @@
+package Common;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Consistent-hash ring of server nodes ("host:port"). Each node sits at VIRTUAL_NODES
+// points of a 64-bit ring and a session belongs to the first point at or after its
+// hash, so the nodes share the sessions evenly and adding or removing one node only
+// moves the sessions on its own arcs, about 1/n of them. Immutable; a membership
+// change is a new ring.
+public final class HashRing {
+    public static final int VIRTUAL_NODES = 160;
+    private static final double RING_SIZE = 0x1p64;
+
+    private final List<String> nodes;
+    private final TreeMap<Long, String> points = new TreeMap<>();
+
+    public HashRing(List<String> nodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("a ring needs at least one node");
+        }
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+        for (String node : nodes) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                points.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    // Comma-separated host:port list
+    public static HashRing parse(String spec) {
+        List<String> nodes = new ArrayList<>();
+        for (String node : spec.split(",")) {
+            if (!node.trim().isEmpty()) {
+                nodes.add(node.trim());
+            }
+        }
+        return new HashRing(nodes);
+    }
+
+    // The node that owns the session
+    public String owner(String sessionID) {
+        Map.Entry<Long, String> point = points.ceilingEntry(hash(sessionID));
+        return point != null ? point.getValue() : points.firstEntry().getValue();
+    }
+
+    public List<String> getNodes() {
+        return nodes;
+    }
+
+    public boolean contains(String node) {
+        return nodes.contains(node);
+    }
+
+    // Share of the ring a node owns, 0 to 1: the arcs that end at its points
+    public double share(String node) {
+        double owned = 0;
+        long previous = points.lastKey();
+        for (Map.Entry<Long, String> point : points.entrySet()) {
+            if (point.getValue().equals(node)) {
+                owned += unsigned(point.getKey() - previous) / RING_SIZE;
+            }
+            previous = point.getKey();
+        }
+        return owned;
+    }
+
+    private static double unsigned(long value) {
+        return value >= 0 ? value : value + RING_SIZE;
+    }
+
+    // First eight bytes of the MD5 digest: stable across JVMs and well spread
+    static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(digest).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is always available", e);
+        }
+    }
+
+    // host of a host:port node
+    public static String host(String node) {
+        return node.substring(0, node.lastIndexOf(':'));
+    }
+
+    public static int port(String node) {
+        return Integer.parseInt(node.substring(node.lastIndexOf(':') + 1));
+    }
+}
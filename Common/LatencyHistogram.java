@@ -0,0 +1,100 @@
+package Common;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Latency histogram in the style of HdrHistogram: microsecond values fall into
+// log-linear buckets, SUB_BUCKETS per power of two, so every recorded value is kept to
+// within about 6% and a percentile is a scan over a few hundred counters. Recording is
+// one atomic increment and never blocks; reads see a consistent enough picture without
+// stopping writers.
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_POWER = 40; // about 12 days in microseconds
+
+    private final AtomicLongArray counts = new AtomicLongArray((MAX_POWER - SUB_BUCKET_BITS + 2) * SUB_BUCKETS);
+    private final LongAdder totalMicros = new LongAdder();
+
+    public void recordNanos(long nanos) {
+        recordMicros(nanos / 1000);
+    }
+
+    public void recordMicros(long micros) {
+        long value = Math.max(0, micros);
+        counts.incrementAndGet(Math.min(indexOf(value), counts.length() - 1));
+        totalMicros.add(value);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    public long getTotalMicros() {
+        return totalMicros.sum();
+    }
+
+    // Upper bound of the bucket holding the given percentile (0 to 100); 0 if empty
+    public long percentileMicros(double percentile) {
+        long[] snapshot = snapshot();
+        long total = 0;
+        for (long count : snapshot) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(snapshot.length - 1);
+    }
+
+    // Values recorded up to `micros` (inclusive), counted on bucket boundaries; what a
+    // cumulative Prometheus bucket is
+    public long countAtMost(long micros) {
+        long count = 0;
+        for (int i = 0; i < counts.length() && upperBound(i) <= micros; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    private long[] snapshot() {
+        long[] snapshot = new long[counts.length()];
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.get(i);
+        }
+        return snapshot;
+    }
+
+    // Values below SUB_BUCKETS get a bucket each; above, the top SUB_BUCKET_BITS bits
+    // after the leading one pick the bucket within its power of two
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int power = 63 - Long.numberOfLeadingZeros(value);
+        int shift = power - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    // Largest value that falls into bucket `index`
+    private static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long sub = index % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << shift) - 1;
+    }
+}
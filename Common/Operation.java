@@ -0,0 +1,101 @@
+package Common;
+
+// A single INSERT or DELETE. Immutable; transforms return new instances.
+// revision is the base revision on the way to the server and the committed revision
+// on the way back; -1 means unknown (legacy clients).
+public final class Operation {
+    public enum Type {
+        INSERT, DELETE
+    }
+
+    private final Type type;
+    private final int position;
+    private final String text; // INSERT only
+    private final int length;
+    private final String clientId;
+    private final String operationId;
+    private final long revision;
+    private final String encodedText; // wire form of text, kept to avoid re-encoding
+
+    private Operation(Type type, int position, String text, int length, String clientId, String operationId,
+            long revision, String encodedText) {
+        this.type = type;
+        this.position = position;
+        this.text = text;
+        this.length = length;
+        this.clientId = clientId;
+        this.operationId = operationId;
+        this.revision = revision;
+        this.encodedText = encodedText;
+    }
+
+    public static Operation insert(int position, String text, String clientId, String operationId) {
+        return new Operation(Type.INSERT, position, text, text.length(), clientId, operationId, -1, null);
+    }
+
+    public static Operation delete(int position, int length, String clientId, String operationId) {
+        return new Operation(Type.DELETE, position, null, length, clientId, operationId, -1, null);
+    }
+
+    public Operation withPosition(int newPosition) {
+        return new Operation(type, newPosition, text, length, clientId, operationId, revision, encodedText);
+    }
+
+    public Operation withLength(int newLength) {
+        if (type == Type.INSERT) {
+            throw new IllegalStateException("Insert length is defined by its text");
+        }
+        return new Operation(type, position, text, newLength, clientId, operationId, revision, encodedText);
+    }
+
+    public Operation withRevision(long newRevision) {
+        return new Operation(type, position, text, length, clientId, operationId, newRevision, encodedText);
+    }
+
+    public Operation withEncodedText(String encoded) {
+        return new Operation(type, position, text, length, clientId, operationId, revision, encoded);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public boolean isInsert() {
+        return type == Type.INSERT;
+    }
+
+    public int getPosition() {
+        return position;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    // Characters inserted or removed
+    public int getLength() {
+        return length;
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    public String getOperationId() {
+        return operationId;
+    }
+
+    public long getRevision() {
+        return revision;
+    }
+
+    public String getEncodedText() {
+        return encodedText;
+    }
+
+    @Override
+    public String toString() {
+        return type + "@" + position + (type == Type.INSERT ? " '" + text + "'" : " x" + length)
+                + " rev " + revision + " from " + clientId + "#" + operationId;
+    }
+}
@@ -0,0 +1,114 @@
+package Common;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Inclusion transformation for INSERT/DELETE. Both the server (incoming op against the
+// history it missed) and the client (remote op against its pending queue) use these
+// rules, so they must stay identical on both sides.
+public final class OperationTransformer {
+
+    private OperationTransformer() {
+    }
+
+    // Both sequences rewritten to apply after each other
+    public static final class Result {
+        public final List<Operation> ops;
+        public final List<Operation> applied;
+
+        Result(List<Operation> ops, List<Operation> applied) {
+            this.ops = ops;
+            this.applied = applied;
+        }
+    }
+
+    // Rewrites op so it applies on top of `applied`. A delete that straddles a concurrent
+    // insert splits in two, and a delete whose range is already gone becomes empty.
+    // On an insert/insert tie the winner keeps its position and ends up first.
+    public static List<Operation> transform(Operation op, Operation applied, boolean opWinsTie) {
+        int p = op.getPosition();
+        int q = applied.getPosition();
+
+        if (op.isInsert()) {
+            if (applied.isInsert()) {
+                if (q < p || (q == p && !opWinsTie)) {
+                    return List.of(op.withPosition(p + applied.getLength()));
+                }
+                return List.of(op);
+            }
+            int appliedEnd = q + applied.getLength();
+            if (p <= q) {
+                return List.of(op);
+            }
+            if (p >= appliedEnd) {
+                return List.of(op.withPosition(p - applied.getLength()));
+            }
+            // Insert point was deleted; keep the text where the range used to start
+            return List.of(op.withPosition(q));
+        }
+
+        int opEnd = p + op.getLength();
+        if (applied.isInsert()) {
+            int inserted = applied.getLength();
+            if (q <= p) {
+                return List.of(op.withPosition(p + inserted));
+            }
+            if (q >= opEnd) {
+                return List.of(op);
+            }
+            // Concurrent text landed inside the range: delete around it, left part first
+            return List.of(op.withLength(q - p), op.withPosition(p + inserted).withLength(opEnd - q));
+        }
+
+        int appliedEnd = q + applied.getLength();
+        if (appliedEnd <= p) {
+            return List.of(op.withPosition(p - applied.getLength()));
+        }
+        if (q >= opEnd) {
+            return List.of(op);
+        }
+        int overlap = Math.min(opEnd, appliedEnd) - Math.max(p, q);
+        int remaining = op.getLength() - overlap;
+        if (remaining <= 0) {
+            return Collections.emptyList();
+        }
+        return List.of(op.withPosition(Math.min(p, q)).withLength(remaining));
+    }
+
+    public static List<Operation> transform(List<Operation> ops, List<Operation> applied, boolean opsWinTies) {
+        return transformBoth(ops, applied, opsWinTies).ops;
+    }
+
+    // ops and applied are concurrent sequences against the same base. Iterates over
+    // `applied` (which can be a long history) and recurses only on the short side.
+    public static Result transformBoth(List<Operation> ops, List<Operation> applied, boolean opsWinTies) {
+        List<Operation> current = ops;
+        List<Operation> appliedOut = new ArrayList<>(applied.size());
+        for (Operation other : applied) {
+            Result step = pastOne(current, other, opsWinTies);
+            current = step.ops;
+            appliedOut.addAll(step.applied);
+        }
+        return new Result(current, appliedOut);
+    }
+
+    private static Result pastOne(List<Operation> ops, Operation other, boolean opsWinTies) {
+        List<Operation> out = new ArrayList<>(ops.size());
+        List<Operation> others = List.of(other);
+        for (Operation op : ops) {
+            List<Operation> pieces = List.of(op);
+            List<Operation> nextOthers = new ArrayList<>(others.size());
+            for (Operation o : others) {
+                Result step = pieces.size() == 1
+                        ? new Result(transform(pieces.get(0), o, opsWinTies), transform(o, pieces.get(0), !opsWinTies))
+                        : pastOne(pieces, o, opsWinTies);
+                pieces = step.ops;
+                nextOthers.addAll(step.applied);
+            }
+            out.addAll(pieces);
+            others = nextOthers;
+        }
+        return new Result(out, others);
+    }
+}
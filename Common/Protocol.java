@@ -0,0 +1,74 @@
+package Common;
+
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+
+// Line protocol shared by client and server.
+// EDIT:INSERT:pos:urlEncodedText:clientId:operationId[:revision]
+// EDIT:DELETE:pos:length:clientId:operationId[:revision]
+// Legacy clients omit the trailing revision and ignore it when it is sent to them.
+//
+// CRDT sessions (clients that sent crdt=1) use node ids instead of positions:
+// CRDT_INS:originId:firstId:urlEncodedText
+// CRDT_DEL:id,id,...
+public final class Protocol {
+
+    private Protocol() {
+    }
+
+    public static String formatEdit(Operation op) {
+        StringBuilder sb = new StringBuilder(48);
+        sb.append("EDIT:").append(op.getType().name()).append(':').append(op.getPosition()).append(':');
+        if (op.isInsert()) {
+            String encoded = op.getEncodedText();
+            sb.append(encoded != null ? encoded : URLEncoder.encode(op.getText(), StandardCharsets.UTF_8));
+        } else {
+            sb.append(op.getLength());
+        }
+        sb.append(':').append(op.getClientId()).append(':').append(op.getOperationId());
+        if (op.getRevision() >= 0) {
+            sb.append(':').append(op.getRevision());
+        }
+        return sb.toString();
+    }
+
+    // Returns null for truncated lines; malformed numbers throw NumberFormatException
+    public static Operation parseEdit(String line) {
+        String[] parts = line.split(":", 7);
+        if (parts.length < 6) {
+            return null;
+        }
+
+        int pos = Integer.parseInt(parts[2]);
+        String clientId = parts[4];
+        String operationId = parts[5];
+        long revision = parts.length > 6 ? Long.parseLong(parts[6]) : -1;
+
+        Operation op;
+        if (parts[1].equals("INSERT")) {
+            String text = URLDecoder.decode(parts[3], StandardCharsets.UTF_8);
+            op = Operation.insert(pos, text, clientId, operationId).withEncodedText(parts[3]);
+        } else if (parts[1].equals("DELETE")) {
+            op = Operation.delete(pos, Integer.parseInt(parts[3]), clientId, operationId);
+        } else {
+            return null;
+        }
+        return op.withRevision(revision);
+    }
+
+    public static String formatCrdtInsert(long originId, long firstId, String text) {
+        return "CRDT_INS:" + originId + ":" + firstId + ":" + URLEncoder.encode(text, StandardCharsets.UTF_8);
+    }
+
+    public static String formatCrdtDelete(long[] ids) {
+        StringBuilder sb = new StringBuilder("CRDT_DEL:");
+        for (int i = 0; i < ids.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(ids[i]);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,234 @@
+package Common;
+
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+// Replicated Growable Array: one node per character, identified by a Lamport counter
+// and the site that created it instead of by position. Inserts name the node they go
+// after, deletes only tombstone, so replicas converge whatever order ops arrive in
+// (as long as an op's origin arrives before it).
+// Lock-free: inserts CAS into the linked list, deletes CAS a flag. Tombstones are
+// never collected.
+public final class RgaDocument {
+    public static final long ROOT = 0L;
+    private static final int SITE_BITS = 20;
+    public static final int MAX_SITE = (1 << SITE_BITS) - 1;
+
+    static final class Node {
+        final long id;
+        final char ch;
+        volatile Node next;
+        volatile int deleted;
+
+        Node(long id, char ch) {
+            this.id = id;
+            this.ch = ch;
+        }
+    }
+
+    private static final AtomicReferenceFieldUpdater<Node, Node> NEXT = AtomicReferenceFieldUpdater
+            .newUpdater(Node.class, Node.class, "next");
+    private static final AtomicIntegerFieldUpdater<Node> DELETED = AtomicIntegerFieldUpdater
+            .newUpdater(Node.class, "deleted");
+
+    private final Node head = new Node(ROOT, '\0');
+    private final ConcurrentHashMap<Long, Node> nodes = new ConcurrentHashMap<>();
+    private final AtomicLong clock = new AtomicLong();
+    private final AtomicInteger length = new AtomicInteger();
+
+    // Ids sort by counter first, so a newer id always beats everything its creator saw
+    public static long makeId(long counter, int site) {
+        return (counter << SITE_BITS) | site;
+    }
+
+    // Id of the n-th node of a chain inserted with firstId
+    public static long nthId(long firstId, int n) {
+        return firstId + ((long) n << SITE_BITS);
+    }
+
+    private static long counterOf(long id) {
+        return id >>> SITE_BITS;
+    }
+
+    // First of `count` fresh Lamport counters, all newer than anything integrated so far
+    public long reserveCounters(int count) {
+        return clock.getAndAdd(count) + 1;
+    }
+
+    public boolean contains(long id) {
+        return id == ROOT || nodes.containsKey(id);
+    }
+
+    public int length() {
+        return length.get();
+    }
+
+    // Integrates text as a chain of nodes after originId; node i gets firstId's counter
+    // plus i. Returns false if the origin is unknown. Already-known nodes are skipped.
+    public boolean insert(long originId, long firstId, String text) {
+        Node prev = originId == ROOT ? head : nodes.get(originId);
+        if (prev == null) {
+            return false;
+        }
+        observe(counterOf(firstId) + text.length() - 1);
+
+        long id = firstId;
+        for (int i = 0; i < text.length(); i++, id = nthId(id, 1)) {
+            Node existing = nodes.get(id);
+            if (existing != null) {
+                prev = existing;
+                continue;
+            }
+            Node node = new Node(id, text.charAt(i));
+            integrate(prev, node);
+            // Published only once linked, so nobody can use it as an origin too early
+            nodes.put(id, node);
+            length.incrementAndGet();
+            prev = node;
+        }
+        return true;
+    }
+
+    private void integrate(Node origin, Node node) {
+        while (true) {
+            Node prev = origin;
+            Node next = prev.next;
+            // Newer siblings (and everything inserted after them) come first
+            while (next != null && next.id > node.id) {
+                prev = next;
+                next = prev.next;
+            }
+            node.next = next;
+            if (NEXT.compareAndSet(prev, next, node)) {
+                return;
+            }
+        }
+    }
+
+    private void observe(long counter) {
+        clock.accumulateAndGet(counter, Math::max);
+    }
+
+    // Returns false if the node is unknown; deleting twice is harmless
+    public boolean delete(long id) {
+        Node node = nodes.get(id);
+        if (node == null) {
+            return false;
+        }
+        if (DELETED.compareAndSet(node, 0, 1)) {
+            length.decrementAndGet();
+        }
+        return true;
+    }
+
+    // Visible position of a node, or -1 if it is deleted or unknown. O(n).
+    public int visibleIndexOf(long id) {
+        int index = 0;
+        for (Node node = head.next; node != null; node = node.next) {
+            if (node.id == id) {
+                return node.deleted == 0 ? index : -1;
+            }
+            if (node.deleted == 0) {
+                index++;
+            }
+        }
+        return -1;
+    }
+
+    // Id of the visible character at index, ROOT for index -1. O(n).
+    public long idAtVisibleIndex(int index) {
+        if (index < 0) {
+            return ROOT;
+        }
+        int seen = 0;
+        Node last = head;
+        for (Node node = head.next; node != null; node = node.next) {
+            if (node.deleted == 0) {
+                if (seen == index) {
+                    return node.id;
+                }
+                seen++;
+                last = node;
+            }
+        }
+        // Past the end: anchor after the last visible character
+        return last.id;
+    }
+
+    public long[] visibleIds(int from, int count) {
+        long[] ids = new long[Math.max(0, count)];
+        int seen = 0;
+        int taken = 0;
+        for (Node node = head.next; node != null && taken < ids.length; node = node.next) {
+            if (node.deleted == 0) {
+                if (seen >= from) {
+                    ids[taken++] = node.id;
+                }
+                seen++;
+            }
+        }
+        return taken == ids.length ? ids : java.util.Arrays.copyOf(ids, taken);
+    }
+
+    public String text() {
+        StringBuilder sb = new StringBuilder(Math.max(16, length.get()));
+        for (Node node = head.next; node != null; node = node.next) {
+            if (node.deleted == 0) {
+                sb.append(node.ch);
+            }
+        }
+        return sb.toString();
+    }
+
+    // ids:deletedFlags:urlEncodedChars, every node in document order including tombstones
+    public String encodeState() {
+        StringBuilder ids = new StringBuilder();
+        StringBuilder flags = new StringBuilder();
+        StringBuilder chars = new StringBuilder();
+        for (Node node = head.next; node != null; node = node.next) {
+            if (ids.length() > 0) {
+                ids.append(',');
+            }
+            ids.append(node.id);
+            flags.append(node.deleted == 0 ? '0' : '1');
+            chars.append(node.ch);
+        }
+        return ids + ":" + flags + ":" + URLEncoder.encode(chars.toString(), StandardCharsets.UTF_8);
+    }
+
+    public static RgaDocument fromState(String state) {
+        String[] parts = state.split(":", 3);
+        RgaDocument doc = new RgaDocument();
+        if (parts.length < 3 || parts[0].isEmpty()) {
+            return doc;
+        }
+        String[] ids = parts[0].split(",");
+        String flags = parts[1];
+        String chars = URLDecoder.decode(parts[2], StandardCharsets.UTF_8);
+
+        Node prev = doc.head;
+        long maxCounter = 0;
+        int visible = 0;
+        for (int i = 0; i < ids.length; i++) {
+            Node node = new Node(Long.parseLong(ids[i]), chars.charAt(i));
+            if (flags.charAt(i) == '1') {
+                node.deleted = 1;
+            } else {
+                visible++;
+            }
+            prev.next = node;
+            prev = node;
+            doc.nodes.put(node.id, node);
+            maxCounter = Math.max(maxCounter, counterOf(node.id));
+        }
+        doc.length.set(visible);
+        doc.clock.set(maxCounter);
+        return doc;
+    }
+}
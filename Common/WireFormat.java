@@ -0,0 +1,333 @@
+package Common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntFunction;
+
+// Binary framing, negotiated with wire=1 in the SESSION handshake:
+//   server: WIRE:1 line, then only frames
+//   client: once it has seen WIRE:1, a WIRE:1 line, then only frames
+// so text sent before the switch is still read as text. A frame is a varint length and
+// a payload starting with a type byte:
+//   TEXT    utf8 line                      any other protocol line, unchanged
+//   INSERT  pos client opId rev+1 utf8     varints, then raw UTF-8 to the end
+//   DELETE  pos length client opId rev+1   varints
+//   CLIENT  number utf8 id                 assigns a number to a client id
+//   BATCH   frame frame ...                whole frames, length prefixes included
+//   SNAPSHOT deflate data                  next chunk of the snapshot announced by the
+//                                          last SNAPSHOT:revision:length line
+// Client numbers are per session and announced before first use; 0 in a frame from a
+// client means the sender. Edits whose operation id is not numeric go as TEXT.
+// Snapshot chunks (snapshot=deflate in the handshake) continue one Deflate stream and
+// each ends with a sync flush, so a chunk inflates completely as soon as it arrives and
+// holds whole characters.
+public final class WireFormat {
+    public static final String VERSION = "1";
+    public static final String SWITCH_LINE = "WIRE:" + VERSION;
+    public static final int MAX_FRAME = 64 * 1024 * 1024;
+
+    public static final byte TEXT = 0;
+    public static final byte INSERT = 1;
+    public static final byte DELETE = 2;
+    public static final byte CLIENT = 3;
+    public static final byte BATCH = 4;
+    public static final byte SNAPSHOT = 5;
+
+    private WireFormat() {
+    }
+
+    public static byte[] encodeText(String line) {
+        byte[] text = line.getBytes(StandardCharsets.UTF_8);
+        Encoder e = new Encoder(text.length + 1);
+        e.write(TEXT);
+        e.write(text);
+        return e.frame();
+    }
+
+    // Null if the op cannot be expressed in binary (non-numeric operation id)
+    public static byte[] encodeEdit(Operation op, int clientNumber) {
+        long opId = parseOperationId(op.getOperationId());
+        if (opId < 0) {
+            return null;
+        }
+        byte[] text = op.isInsert() ? op.getText().getBytes(StandardCharsets.UTF_8) : null;
+        Encoder e = new Encoder(16 + (text == null ? 0 : text.length));
+        e.write(op.isInsert() ? INSERT : DELETE);
+        e.varint(op.getPosition());
+        if (!op.isInsert()) {
+            e.varint(op.getLength());
+        }
+        e.varint(clientNumber);
+        e.varint(opId);
+        e.varint(op.getRevision() + 1);
+        if (text != null) {
+            e.write(text);
+        }
+        return e.frame();
+    }
+
+    public static byte[] encodeClient(int number, String clientId) {
+        byte[] id = clientId.getBytes(StandardCharsets.UTF_8);
+        Encoder e = new Encoder(id.length + 6);
+        e.write(CLIENT);
+        e.varint(number);
+        e.write(id);
+        return e.frame();
+    }
+
+    // One frame carrying the given frames (each with its length prefix), in order
+    public static byte[] encodeBatch(List<byte[]> frames) {
+        int size = 0;
+        for (byte[] frame : frames) {
+            size += frame.length;
+        }
+        Encoder e = new Encoder(size + 1);
+        e.write(BATCH);
+        for (byte[] frame : frames) {
+            e.write(frame);
+        }
+        return e.frame();
+    }
+
+    public static byte[] encodeSnapshotChunk(byte[] deflated, int length) {
+        Encoder e = new Encoder(length + 1);
+        e.write(SNAPSHOT);
+        e.write(deflated, length);
+        return e.frame();
+    }
+
+    public static byte type(byte[] payload) {
+        return payload[0];
+    }
+
+    public static String decodeText(byte[] payload) {
+        return new String(payload, 1, payload.length - 1, StandardCharsets.UTF_8);
+    }
+
+    // `clients` maps a client number to its id
+    public static Operation decodeEdit(byte[] payload, IntFunction<String> clients) {
+        Decoder d = new Decoder(payload);
+        boolean insert = d.data[0] == INSERT;
+        int pos = (int) d.varint();
+        int length = insert ? 0 : (int) d.varint();
+        String clientId = clients.apply((int) d.varint());
+        String opId = String.valueOf(d.varint());
+        long revision = d.varint() - 1;
+        Operation op = insert
+                ? Operation.insert(pos, d.rest(), clientId, opId)
+                : Operation.delete(pos, length, clientId, opId);
+        return op.withRevision(revision);
+    }
+
+    public static int decodeClientNumber(byte[] payload) {
+        return (int) new Decoder(payload).varint();
+    }
+
+    public static String decodeClientId(byte[] payload) {
+        Decoder d = new Decoder(payload);
+        d.varint();
+        return d.rest();
+    }
+
+    // Payloads of the frames inside a BATCH
+    public static List<byte[]> decodeBatch(byte[] payload) throws IOException {
+        ByteBuffer frames = ByteBuffer.wrap(payload, 1, payload.length - 1);
+        List<byte[]> result = new ArrayList<>();
+        while (frames.hasRemaining()) {
+            byte[] frame = readFrame(frames);
+            if (frame == null) {
+                throw new IOException("truncated frame in batch");
+            }
+            result.add(frame);
+        }
+        return result;
+    }
+
+    // Payload of the next frame, or null at end of stream
+    public static byte[] readFrame(InputStream in) throws IOException {
+        long length = 0;
+        for (int shift = 0;; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                if (shift == 0) {
+                    return null;
+                }
+                throw new IOException("stream ended inside a frame header");
+            }
+            length |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+            if (shift > 28) {
+                throw new IOException("bad frame length");
+            }
+        }
+        if (length <= 0 || length > MAX_FRAME) {
+            throw new IOException("bad frame length " + length);
+        }
+        byte[] payload = in.readNBytes((int) length);
+        if (payload.length < length) {
+            throw new IOException("stream ended inside a frame");
+        }
+        return payload;
+    }
+
+    // Frame payload at the buffer's position, or null if it has not fully arrived (the
+    // position is then left alone)
+    public static byte[] readFrame(ByteBuffer buffer) throws IOException {
+        int start = buffer.position();
+        long length = 0;
+        for (int shift = 0;; shift += 7) {
+            if (!buffer.hasRemaining()) {
+                buffer.position(start);
+                return null;
+            }
+            int b = buffer.get() & 0xFF;
+            length |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+            if (shift > 28) {
+                throw new IOException("bad frame length");
+            }
+        }
+        if (length <= 0 || length > MAX_FRAME) {
+            throw new IOException("bad frame length " + length);
+        }
+        if (buffer.remaining() < length) {
+            buffer.position(start);
+            return null;
+        }
+        byte[] payload = new byte[(int) length];
+        buffer.get(payload);
+        return payload;
+    }
+
+    // Text line from a byte stream (a Reader would buffer past the switch to frames);
+    // null at end of stream
+    public static String readLine(InputStream in, Charset charset) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n') {
+            line.write(b);
+            if (line.size() > MAX_FRAME) {
+                throw new IOException("line too long");
+            }
+        }
+        if (b < 0 && line.size() == 0) {
+            return null;
+        }
+        String text = line.toString(charset);
+        return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+    }
+
+    // -1 unless the id is a non-negative decimal number
+    private static long parseOperationId(String id) {
+        if (id == null || id.isEmpty() || id.length() > 18) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 0; i < id.length(); i++) {
+            char c = id.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        // "007" would not survive the round trip
+        return id.length() > 1 && id.charAt(0) == '0' ? -1 : value;
+    }
+
+    // Payload written after room for the longest length prefix, which frame() fills in
+    private static final class Encoder {
+        private static final int HEADER = 5;
+        private byte[] buf;
+        private int pos = HEADER;
+
+        Encoder(int size) {
+            buf = new byte[HEADER + size + 16];
+        }
+
+        void write(int b) {
+            ensure(1);
+            buf[pos++] = (byte) b;
+        }
+
+        void write(byte[] bytes) {
+            write(bytes, bytes.length);
+        }
+
+        void write(byte[] bytes, int length) {
+            ensure(length);
+            System.arraycopy(bytes, 0, buf, pos, length);
+            pos += length;
+        }
+
+        void varint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        private void ensure(int n) {
+            if (pos + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+            }
+        }
+
+        // Length prefix plus payload
+        byte[] frame() {
+            int length = pos - HEADER;
+            int headerSize = 1;
+            for (int v = length >>> 7; v != 0; v >>>= 7) {
+                headerSize++;
+            }
+            int start = HEADER - headerSize;
+            int at = start;
+            int v = length;
+            while ((v & ~0x7F) != 0) {
+                buf[at++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[at] = (byte) v;
+            return Arrays.copyOfRange(buf, start, pos);
+        }
+    }
+
+    private static final class Decoder {
+        final byte[] data;
+        int pos = 1; // past the type byte
+
+        Decoder(byte[] data) {
+            this.data = data;
+        }
+
+        long varint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (pos >= data.length) {
+                    throw new IllegalArgumentException("truncated frame");
+                }
+                int b = data[pos++] & 0xFF;
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("varint too long");
+        }
+
+        String rest() {
+            return new String(data, pos, data.length - pos, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package LoadGen;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import Common.LatencyHistogram;
+
+// Headless load generator: sessions x typists against a running ServerMain, over the
+// same text protocol as the editor (SESSION:, EDIT:, CHAT:). Typists join spread over a
+// ramp-up, type at a random rate around loadgen.rate with bursts, backspaces, jumps and
+// pastes, and chat now and then; a join storm may hit the server halfway through. When
+// the time is up typing stops, every client must catch up, and each session's
+// documents are compared with a fresh join's. Tunables are -D properties, like the
+// server's:
+//   java -cp . -Dloadgen.sessions=50 -Dloadgen.clients=4 LoadGen.LoadGenerator
+// Exits with 1 if a client failed or a session diverged.
+public final class LoadGenerator {
+    // host:port of the server
+    static final String SERVER = System.getProperty("loadgen.server", "localhost:12345").trim();
+    // Sessions, typists per session, and keystrokes per second per typist
+    static final int SESSIONS = Integer.getInteger("loadgen.sessions", 10);
+    static final int CLIENTS = Integer.getInteger("loadgen.clients", 5);
+    static final double RATE = number("loadgen.rate", 5);
+    // Length of the run and how much of its start the typists' joins are spread over
+    static final int DURATION_S = Integer.getInteger("loadgen.duration.s", 60);
+    static final int RAMPUP_S = Integer.getInteger("loadgen.rampup.s", 5);
+    // Share of keystrokes that are backspaces
+    static final double BACKSPACE = number("loadgen.backspace", 0.1);
+    // Chance per keystroke of a burst: BURST_KEYS keystrokes at BURST_RATE per second
+    static final double BURST_CHANCE = number("loadgen.burst.chance", 0.01);
+    static final int BURST_KEYS = Integer.getInteger("loadgen.burst.keys", 30);
+    static final double BURST_RATE = number("loadgen.burst.rate", 30);
+    // Chance per keystroke of pasting PASTE_CHARS characters instead
+    static final double PASTE_CHANCE = number("loadgen.paste.chance", 0.002);
+    static final int PASTE_CHARS = Integer.getInteger("loadgen.paste.chars", 2000);
+    // Chat messages per typist per minute
+    static final double CHAT_PER_MIN = number("loadgen.chat.per.min", 1);
+    // Clients that join random sessions all at once halfway through, and stay to watch
+    static final int STORM_CLIENTS = Integer.getInteger("loadgen.storm.clients", 0);
+    // host:port of the server's editor.metrics.port, for its CPU and heap; empty for none
+    static final String METRICS = System.getProperty("loadgen.metrics", "").trim();
+    // Longest wait after the run for every client to have the same document
+    static final int SETTLE_S = Integer.getInteger("loadgen.settle.s", 30);
+    // Session ids are <prefix>-<n>; the default is new on every run
+    static final String PREFIX = System.getProperty("loadgen.session.prefix",
+            "load-" + Long.toString(System.currentTimeMillis(), 36));
+
+    private static final int MAX_ERRORS_SHOWN = 10;
+
+    private final ScheduledExecutorService timer = Executors.newScheduledThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors()), r -> {
+                Thread t = new Thread(r, "loadgen-timer");
+                t.setDaemon(true);
+                return t;
+            });
+    private final List<SimulatedClient> typists = new ArrayList<>();
+    private final List<SimulatedClient> watchers = new ArrayList<>(); // join storm
+    private volatile boolean typing = true;
+
+    private final LatencyHistogram editLatency = new LatencyHistogram();
+    private final LatencyHistogram joinLatency = new LatencyHistogram();
+    private final LatencyHistogram stormLatency = new LatencyHistogram();
+    private final LongAdder keystrokes = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder chatsSent = new LongAdder();
+    private final LongAdder chatsReceived = new LongAdder();
+    private final LongAdder resyncs = new LongAdder();
+    private final LongAdder redirects = new LongAdder();
+    private final List<String> errors = Collections.synchronizedList(new ArrayList<>());
+
+    private LoadGenerator() {
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        System.exit(new LoadGenerator().run() ? 0 : 1);
+    }
+
+    private boolean run() throws InterruptedException {
+        System.out.printf("Load: %d sessions x %d typists at %.1f keystrokes/s for %d s against %s%n", SESSIONS,
+                CLIENTS, RATE, DURATION_S, SERVER);
+        ServerProbe probe = METRICS.isEmpty() ? null : new ServerProbe(METRICS);
+        if (probe != null) {
+            probe.sample();
+            timer.scheduleAtFixedRate(probe::sample, 1, 1, TimeUnit.SECONDS);
+        }
+
+        long start = System.nanoTime();
+        int total = SESSIONS * CLIENTS;
+        for (int s = 0; s < SESSIONS; s++) {
+            for (int c = 0; c < CLIENTS; c++) {
+                SimulatedClient client = new SimulatedClient(this, SERVER, sessionID(s), "typist" + c, joinLatency);
+                typists.add(client);
+                long delay = total > 1 ? RAMPUP_S * 1_000_000L * typists.size() / total : 0;
+                timer.schedule(() -> {
+                    client.start();
+                    type(client, 0);
+                    if (CHAT_PER_MIN > 0) {
+                        chat(client);
+                    }
+                }, delay, TimeUnit.MICROSECONDS);
+            }
+        }
+        if (STORM_CLIENTS > 0) {
+            timer.schedule(this::joinStorm, DURATION_S * 1000L / 2, TimeUnit.MILLISECONDS);
+        }
+        TimeUnit.SECONDS.sleep(DURATION_S);
+        typing = false;
+        double seconds = (System.nanoTime() - start) / 1e9;
+        if (probe != null) {
+            probe.sample();
+        }
+
+        System.out.println("Typing stopped; waiting for the sessions to settle");
+        String convergence = checkConvergence();
+        report(seconds, probe, convergence);
+        for (SimulatedClient client : typists) {
+            client.close();
+        }
+        synchronized (watchers) {
+            for (SimulatedClient client : watchers) {
+                client.close();
+            }
+        }
+        return errors.isEmpty() && convergence.startsWith("all ");
+    }
+
+    private static String sessionID(int index) {
+        return PREFIX + "-" + index;
+    }
+
+    // One keystroke (or paste), then the next after an exponentially distributed pause
+    private void type(SimulatedClient client, int burstLeft) {
+        if (!typing) {
+            return;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (random.nextDouble() < PASTE_CHANCE) {
+            client.paste(PASTE_CHARS);
+        } else {
+            client.keystroke(BACKSPACE);
+        }
+        int left = burstLeft > 0 ? burstLeft - 1 : random.nextDouble() < BURST_CHANCE ? BURST_KEYS : 0;
+        double rate = left > 0 ? BURST_RATE : RATE;
+        long pause = (long) (-Math.log(1 - random.nextDouble()) / rate * 1_000_000);
+        timer.schedule(() -> type(client, left), pause, TimeUnit.MICROSECONDS);
+    }
+
+    private void chat(SimulatedClient client) {
+        long pause = (long) (-Math.log(1 - ThreadLocalRandom.current().nextDouble()) * 60_000_000 / CHAT_PER_MIN);
+        timer.schedule(() -> {
+            if (typing) {
+                client.chat("load test message " + System.nanoTime());
+                chat(client);
+            }
+        }, pause, TimeUnit.MICROSECONDS);
+    }
+
+    // STORM_CLIENTS connections opened at once, each on its own thread
+    private void joinStorm() {
+        System.out.println("Join storm: " + STORM_CLIENTS + " clients");
+        List<SimulatedClient> storm = new ArrayList<>(STORM_CLIENTS);
+        for (int i = 0; i < STORM_CLIENTS; i++) {
+            storm.add(new SimulatedClient(this, SERVER, sessionID(ThreadLocalRandom.current().nextInt(SESSIONS)),
+                    "watcher" + i, stormLatency));
+        }
+        synchronized (watchers) {
+            watchers.addAll(storm);
+        }
+        for (SimulatedClient client : storm) {
+            client.start();
+        }
+    }
+
+    // Waits until every connected client has had its edits echoed and sits at the same
+    // revision as the others in its session, then compares their documents with what a
+    // new client joining the session gets. Clients that failed were reported already.
+    private String checkConvergence() throws InterruptedException {
+        Map<String, List<SimulatedClient>> bySession = new LinkedHashMap<>();
+        List<SimulatedClient> everyone = new ArrayList<>(typists);
+        synchronized (watchers) {
+            everyone.addAll(watchers);
+        }
+        for (SimulatedClient client : everyone) {
+            if (!client.isConnected()) {
+                continue;
+            }
+            bySession.computeIfAbsent(client.getSessionID(), id -> new ArrayList<>()).add(client);
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(SETTLE_S);
+        while (!settled(bySession) && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+
+        int converged = 0;
+        int shortest = Integer.MAX_VALUE;
+        int longest = 0;
+        List<String> diverged = new ArrayList<>();
+        for (Map.Entry<String, List<SimulatedClient>> entry : bySession.entrySet()) {
+            SimulatedClient checker = new SimulatedClient(this, SERVER, entry.getKey(), "checker",
+                    new LatencyHistogram());
+            checker.start();
+            if (!checker.await(TimeUnit.SECONDS.toMillis(SETTLE_S))) {
+                diverged.add(entry.getKey() + " (no document for a new client)");
+                checker.close();
+                continue;
+            }
+            String expected = checker.getDocument();
+            checker.close();
+            int mismatched = 0;
+            for (SimulatedClient client : entry.getValue()) {
+                if (!client.getDocument().equals(expected)) {
+                    mismatched++;
+                }
+            }
+            if (mismatched > 0) {
+                diverged.add(entry.getKey() + " (" + mismatched + " of " + entry.getValue().size() + " clients)");
+            } else {
+                converged++;
+                shortest = Math.min(shortest, expected.length());
+                longest = Math.max(longest, expected.length());
+            }
+        }
+        if (bySession.isEmpty()) {
+            return "nothing to compare: no client is connected";
+        }
+        if (diverged.isEmpty()) {
+            return "all " + converged + " sessions identical on every client and the server (documents of "
+                    + shortest + " to " + longest + " characters)";
+        }
+        return diverged.size() + " of " + bySession.size() + " sessions diverged: " + String.join(", ", diverged);
+    }
+
+    private static boolean settled(Map<String, List<SimulatedClient>> bySession) {
+        for (List<SimulatedClient> clients : bySession.values()) {
+            long revision = -1;
+            for (SimulatedClient client : clients) {
+                if (!client.isSettled() || (revision >= 0 && client.getRevision() != revision)) {
+                    return false;
+                }
+                revision = client.getRevision();
+            }
+        }
+        return true;
+    }
+
+    private void report(double seconds, ServerProbe probe, String convergence) {
+        System.out.println();
+        System.out.printf("Ran %.1f s: %d sessions, %d typists%s%n", seconds, SESSIONS, typists.size(),
+                STORM_CLIENTS > 0 ? ", " + STORM_CLIENTS + " join-storm clients" : "");
+        System.out.printf("Keystrokes       %,d (%,.0f/s)%n", keystrokes.sum(), keystrokes.sum() / seconds);
+        System.out.printf("Edits committed  %,d (%,.0f/s); keystroke to echo %s%n", editLatency.getCount(),
+                editLatency.getCount() / seconds, percentiles(editLatency));
+        System.out.printf("Lines received   %,d (%,.0f/s)%n", received.sum(), received.sum() / seconds);
+        System.out.printf("Joins            %,d; connect to document %s%n", joinLatency.getCount(),
+                percentiles(joinLatency));
+        if (STORM_CLIENTS > 0) {
+            System.out.printf("Join storm       %,d of %,d; connect to document %s%n", stormLatency.getCount(),
+                    STORM_CLIENTS, percentiles(stormLatency));
+        }
+        System.out.printf("Chat             %,d sent, %,d received%n", chatsSent.sum(), chatsReceived.sum());
+        System.out.printf("Resyncs          %,d; redirects %,d%n", resyncs.sum(), redirects.sum());
+        System.out.println("Convergence      " + convergence);
+        System.out.println("Server           " + (probe != null ? probe.report()
+                : "not sampled (set loadgen.metrics to the server's editor.metrics.port)"));
+        if (!errors.isEmpty()) {
+            System.out.println("Errors           " + errors.size());
+            synchronized (errors) {
+                for (String error : errors.subList(0, Math.min(MAX_ERRORS_SHOWN, errors.size()))) {
+                    System.out.println("  " + error);
+                }
+            }
+        }
+    }
+
+    private static String percentiles(LatencyHistogram histogram) {
+        if (histogram.getCount() == 0) {
+            return "-";
+        }
+        return String.format("p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, p99.9 %.1f ms, max %.1f ms",
+                histogram.percentileMicros(50) / 1000.0, histogram.percentileMicros(90) / 1000.0,
+                histogram.percentileMicros(99) / 1000.0, histogram.percentileMicros(99.9) / 1000.0,
+                histogram.percentileMicros(100) / 1000.0);
+    }
+
+    private static double number(String property, double defaultValue) {
+        String value = System.getProperty(property);
+        return value == null ? defaultValue : Double.parseDouble(value.trim());
+    }
+
+    // Callbacks from the clients; any thread
+
+    void keystroke() {
+        keystrokes.increment();
+    }
+
+    void committed(long nanos) {
+        editLatency.recordNanos(nanos);
+    }
+
+    void received() {
+        received.increment();
+    }
+
+    void chatSent() {
+        chatsSent.increment();
+    }
+
+    void chatReceived() {
+        chatsReceived.increment();
+    }
+
+    void resynced() {
+        resyncs.increment();
+    }
+
+    void moved() {
+        redirects.increment();
+    }
+
+    void failed(String error) {
+        errors.add(error);
+    }
+}
@@ -0,0 +1,87 @@
+package LoadGen;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+// Samples the server's CPU time and heap from its Prometheus endpoint
+// (editor.metrics.port) once a second while the load runs
+final class ServerProbe {
+    private final String url;
+    private double firstCpuSeconds = -1;
+    private long firstNanos;
+    private double lastCpuSeconds;
+    private long lastNanos;
+    private double peakCpuShare; // busiest second, in cores
+    private double peakHeapBytes;
+    private double heapTotal;
+    private int heapSamples;
+    private String error;
+
+    // `endpoint` is host:port of the metrics endpoint
+    ServerProbe(String endpoint) {
+        this.url = "http://" + endpoint + "/metrics";
+    }
+
+    void sample() {
+        double cpu = -1;
+        double heap = -1;
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setConnectTimeout(1000);
+            connection.setReadTimeout(2000);
+            try (BufferedReader in = new BufferedReader(
+                    new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith("process_cpu_seconds_total ")) {
+                        cpu = value(line);
+                    } else if (line.startsWith("editor_heap_used_bytes ")) {
+                        heap = value(line);
+                    }
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            error = e.getMessage();
+            return;
+        }
+        long now = System.nanoTime();
+        if (cpu >= 0) {
+            if (firstCpuSeconds < 0) {
+                firstCpuSeconds = cpu;
+                firstNanos = now;
+            } else if (now > lastNanos) {
+                peakCpuShare = Math.max(peakCpuShare, (cpu - lastCpuSeconds) / ((now - lastNanos) / 1e9));
+            }
+            lastCpuSeconds = cpu;
+            lastNanos = now;
+        }
+        if (heap >= 0) {
+            peakHeapBytes = Math.max(peakHeapBytes, heap);
+            heapTotal += heap;
+            heapSamples++;
+        }
+    }
+
+    private static double value(String line) {
+        return Double.parseDouble(line.substring(line.lastIndexOf(' ') + 1));
+    }
+
+    String report() {
+        if (heapSamples == 0) {
+            return "no samples from " + url + (error != null ? " (" + error + ")" : "");
+        }
+        StringBuilder sb = new StringBuilder();
+        if (lastNanos > firstNanos) {
+            double average = (lastCpuSeconds - firstCpuSeconds) / ((lastNanos - firstNanos) / 1e9);
+            sb.append(String.format("CPU %.0f%% of a core on average, %.0f%% at peak; ", average * 100,
+                    peakCpuShare * 100));
+        }
+        sb.append(String.format("heap %.0f MB on average, %.0f MB at peak", heapTotal / heapSamples / 1e6,
+                peakHeapBytes / 1e6));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,350 @@
+package LoadGen;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import Common.Handshake;
+import Common.HashRing;
+import Common.LatencyHistogram;
+import Common.Operation;
+import Common.OperationTransformer;
+import Common.Protocol;
+
+// One headless OT client on the text protocol: the same one-op-in-flight scheme as
+// Client.EditSynchronizer, with the document in a StringBuilder and a caret that
+// follows remote edits. Keystrokes come from the generator's scheduler; a reader thread
+// applies what the server sends. Every edit is timed from its first keystroke to the
+// server's echo. State is guarded by the client's monitor.
+final class SimulatedClient {
+    private static final Charset LINE_CHARSET = Charset.defaultCharset(); // what the server reads and writes
+    private static final int MERGE_MAX_CHARS = 256;
+    private static final String WORDS = "the quick brown fox jumps over lazy dog and then some more text for an "
+            + "editor to hold while people type at it";
+
+    private final LoadGenerator generator;
+    private final String sessionID;
+    private final String clientId;
+    private final String name;
+    private final LatencyHistogram joinLatency; // connect to document
+    private final CountDownLatch ready = new CountDownLatch(1);
+
+    private String server; // host:port; changed by MOVED:
+    private Socket socket;
+    private Writer out;
+    private volatile boolean closing;
+    private volatile boolean gone; // the reader has stopped
+    private long startedNanos; // join latency includes any MOVED: redirect
+
+    private final StringBuilder document = new StringBuilder();
+    private long revision = -1; // -1 until FULL_BUFFER
+    private long announcedRevision = -1; // REVISION: line before FULL_BUFFER
+    private List<Operation> inFlight = new ArrayList<>();
+    private List<Operation> queued = new ArrayList<>();
+    private final Map<String, Long> startedAt = new HashMap<>(); // operationId -> keystroke time
+    private int caret;
+    private long nextOperationId;
+
+    SimulatedClient(LoadGenerator generator, String server, String sessionID, String name,
+            LatencyHistogram joinLatency) {
+        this.generator = generator;
+        this.server = server;
+        this.sessionID = sessionID;
+        this.clientId = "LOADGEN_" + sessionID + "_" + name;
+        this.name = name;
+        this.joinLatency = joinLatency;
+    }
+
+    // Connects and starts the reader; await() tells when the document has arrived
+    void start() {
+        startedNanos = System.nanoTime();
+        Thread reader = new Thread(this::readLoop, "loadgen-" + clientId);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    boolean await(long timeoutMs) throws InterruptedException {
+        return ready.await(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void readLoop() {
+        try {
+            while (!closing) {
+                String moved = connectAndRead();
+                if (moved == null) {
+                    if (!closing) {
+                        generator.failed(clientId + ": the server closed the connection");
+                    }
+                    break;
+                }
+                generator.moved();
+                synchronized (this) {
+                    server = moved;
+                    revision = -1; // the new node sends the document again; pending edits are dropped
+                }
+            }
+        } catch (IOException e) {
+            if (!closing) {
+                generator.failed(clientId + ": " + e.getMessage());
+            }
+        } finally {
+            gone = true;
+            ready.countDown();
+        }
+    }
+
+    // Reads until the connection ends; returns the node to reconnect to after MOVED:
+    private String connectAndRead() throws IOException {
+        Socket connection = new Socket(HashRing.host(server), HashRing.port(server));
+        connection.setTcpNoDelay(true);
+        BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), LINE_CHARSET));
+        synchronized (this) {
+            socket = connection;
+            out = new BufferedWriter(new OutputStreamWriter(connection.getOutputStream(), LINE_CHARSET));
+            send(new Handshake(sessionID, clientId, name, new HashMap<>()).format());
+        }
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("MOVED:")) {
+                    return line.substring("MOVED:".length()).trim();
+                }
+                handleLine(line);
+            }
+            return null;
+        } finally {
+            connection.close();
+        }
+    }
+
+    private void handleLine(String line) {
+        generator.received();
+        if (line.startsWith("EDIT:")) {
+            Operation op = Protocol.parseEdit(line);
+            if (op != null) {
+                synchronized (this) {
+                    applyRemote(op);
+                }
+            }
+        } else if (line.startsWith("REVISION:")) {
+            announcedRevision = Long.parseLong(line.substring("REVISION:".length()).trim());
+        } else if (line.startsWith("FULL_BUFFER:")) {
+            String text = URLDecoder.decode(line.substring("FULL_BUFFER:".length()), StandardCharsets.UTF_8);
+            synchronized (this) {
+                if (revision >= 0) {
+                    generator.resynced(); // a second document: the server dropped what we had pending
+                }
+                document.setLength(0);
+                document.append(text);
+                revision = announcedRevision;
+                inFlight.clear();
+                queued.clear();
+                startedAt.clear();
+                caret = ThreadLocalRandom.current().nextInt(document.length() + 1);
+            }
+            if (ready.getCount() > 0) {
+                joinLatency.recordNanos(System.nanoTime() - startedNanos);
+                ready.countDown();
+            }
+        } else if (line.startsWith("MODE:CRDT")) {
+            generator.failed(clientId + ": session " + sessionID + " is a CRDT session; only OT is simulated");
+            close();
+        } else if (line.startsWith("CHAT:")) {
+            generator.chatReceived();
+        }
+    }
+
+    // One keystroke: mostly a character at the caret, sometimes a backspace or a jump
+    // elsewhere in the document
+    synchronized void keystroke(double backspaceShare) {
+        if (revision < 0 || closing) {
+            return;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (random.nextDouble() < 0.02) {
+            caret = random.nextInt(document.length() + 1);
+        }
+        if (caret > 0 && random.nextDouble() < backspaceShare) {
+            localEdit(Operation.delete(caret - 1, 1, clientId, String.valueOf(++nextOperationId)));
+            return;
+        }
+        char c = random.nextDouble() < 0.02 ? '\n' : WORDS.charAt(random.nextInt(WORDS.length()));
+        localEdit(Operation.insert(caret, String.valueOf(c), clientId, String.valueOf(++nextOperationId)));
+    }
+
+    synchronized void paste(int chars) {
+        if (revision < 0 || closing) {
+            return;
+        }
+        StringBuilder text = new StringBuilder(chars);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (text.length() < chars) {
+            text.append(WORDS, 0, random.nextInt(1, WORDS.length()));
+        }
+        text.setLength(chars);
+        localEdit(Operation.insert(caret, text.toString(), clientId, String.valueOf(++nextOperationId)));
+    }
+
+    void chat(String message) {
+        synchronized (this) {
+            if (revision < 0 || closing) {
+                return;
+            }
+            send("CHAT:" + name + ":" + URLEncoder.encode(message, StandardCharsets.UTF_8));
+        }
+        generator.chatSent();
+    }
+
+    private void localEdit(Operation op) {
+        if (op.isInsert()) {
+            document.insert(op.getPosition(), op.getText());
+            caret = op.getPosition() + op.getText().length();
+        } else {
+            document.delete(op.getPosition(), op.getPosition() + op.getLength());
+            caret = op.getPosition();
+        }
+        generator.keystroke();
+
+        // Merge into the queued tail when adjacent, as the real client's coalescing does
+        int last = queued.size() - 1;
+        Operation tail = last >= 0 ? queued.get(last) : null;
+        if (tail != null && tail.isInsert()) {
+            int end = tail.getPosition() + tail.getText().length();
+            if (op.isInsert() && op.getPosition() == end && end - tail.getPosition() < MERGE_MAX_CHARS) {
+                queued.set(last, Operation.insert(tail.getPosition(), tail.getText() + op.getText(), clientId,
+                        tail.getOperationId()));
+                return;
+            }
+            if (!op.isInsert() && op.getPosition() + 1 == end && op.getPosition() >= tail.getPosition()) {
+                String text = tail.getText().substring(0, tail.getText().length() - 1);
+                if (text.isEmpty()) {
+                    queued.remove(last);
+                    startedAt.remove(tail.getOperationId());
+                } else {
+                    queued.set(last, Operation.insert(tail.getPosition(), text, clientId, tail.getOperationId()));
+                }
+                return;
+            }
+        }
+        queued.add(op);
+        startedAt.put(op.getOperationId(), System.nanoTime());
+        sendNext();
+    }
+
+    private void applyRemote(Operation op) {
+        if (revision < 0) {
+            return;
+        }
+        if (op.getRevision() >= 0) {
+            if (op.getRevision() <= revision) {
+                return;
+            }
+            revision = op.getRevision();
+        } else {
+            revision++;
+        }
+
+        if (clientId.equals(op.getClientId()) && !inFlight.isEmpty()) {
+            inFlight.remove(0);
+            Long at = startedAt.remove(op.getOperationId());
+            if (at != null) {
+                generator.committed(System.nanoTime() - at);
+            }
+            sendNext();
+            return;
+        }
+
+        OperationTransformer.Result pastInFlight = OperationTransformer.transformBoth(List.of(op), inFlight, true);
+        inFlight = pastInFlight.applied;
+        OperationTransformer.Result pastQueued = OperationTransformer.transformBoth(pastInFlight.ops, queued, true);
+        queued = pastQueued.applied;
+        for (Operation remote : pastQueued.ops) {
+            int pos = remote.getPosition();
+            if (remote.isInsert()) {
+                document.insert(pos, remote.getText());
+                if (pos < caret) {
+                    caret += remote.getText().length();
+                }
+            } else {
+                int end = Math.min(document.length(), pos + remote.getLength());
+                document.delete(pos, end);
+                if (caret > pos) {
+                    caret = Math.max(pos, caret - (end - pos));
+                }
+            }
+        }
+        sendNext();
+    }
+
+    private void sendNext() {
+        if (!inFlight.isEmpty() || queued.isEmpty() || revision < 0) {
+            return;
+        }
+        Operation next = queued.remove(0).withRevision(revision);
+        inFlight.add(next);
+        send(Protocol.formatEdit(next));
+    }
+
+    // Caller holds the monitor
+    private void send(String line) {
+        try {
+            out.write(line);
+            out.write('\n');
+            out.flush();
+        } catch (IOException e) {
+            if (!closing) {
+                generator.failed(clientId + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // Nothing sent is still waiting for its echo
+    synchronized boolean isSettled() {
+        return revision >= 0 && inFlight.isEmpty() && queued.isEmpty();
+    }
+
+    // False once the connection has failed for good (reported through failed())
+    boolean isConnected() {
+        return !gone;
+    }
+
+    synchronized long getRevision() {
+        return revision;
+    }
+
+    synchronized String getDocument() {
+        return document.toString();
+    }
+
+    String getSessionID() {
+        return sessionID;
+    }
+
+    void close() {
+        closing = true;
+        synchronized (this) {
+            try {
+                if (socket != null) {
+                    socket.close();
+                }
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package Server;
+
+// Adaptive broadcast tick for one session (sequencer only). An edit that arrives after
+// a quiet tick goes out at once; edits that arrive within a tick of the last send wait
+// for the tick to end and go out together. The tick grows towards the configured
+// maximum as batches get bigger and shrinks back to the minimum when they get small,
+// so a lone typist sees no delay and a busy session gets fewer, larger writes.
+public class BroadcastTick {
+    private static final long MIN_TICK_NANOS = 5_000_000L;
+    private static final double FULL_BATCH = 16; // average ops per batch that earns the longest tick
+
+    private final long minNanos;
+    private final long maxNanos;
+    private volatile long tickNanos; // volatile fields are read by the metrics endpoint
+    private long lastSend;
+    private double averageBatch = 1;
+    private volatile long batches;
+    private volatile long ops;
+
+    public BroadcastTick(int maxMillis) {
+        this.maxNanos = Math.max(1, maxMillis) * 1_000_000L;
+        this.minNanos = Math.min(MIN_TICK_NANOS, maxNanos);
+        this.tickNanos = minNanos;
+        this.lastSend = System.nanoTime() - maxNanos;
+    }
+
+    // How long edits committed now should wait; zero or less sends them right away
+    public long delayNanos(long now) {
+        return lastSend + tickNanos - now;
+    }
+
+    public void sent(long now, int batchSize) {
+        lastSend = now;
+        batches++;
+        ops += batchSize;
+        averageBatch = averageBatch * 0.75 + batchSize * 0.25;
+        double load = Math.min(1, (averageBatch - 1) / (FULL_BATCH - 1));
+        tickNanos = minNanos + (long) ((maxNanos - minNanos) * Math.max(0, load));
+    }
+
+    public long getTickMicros() {
+        return tickNanos / 1000;
+    }
+
+    public long getBatchCount() {
+        return batches;
+    }
+
+    public double getAverageBatch() {
+        return batches == 0 ? 0 : (double) ops / batches;
+    }
+}
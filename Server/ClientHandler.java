@@ -1,94 +1,351 @@
 package Server;
 
 import java.io.*;
+import java.net.InetAddress;
 import java.net.Socket;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import Common.Handshake;
+import Common.Operation;
+import Common.Protocol;
+import Common.WireFormat;
 
 public class ClientHandler implements Runnable {
     private final Socket socket;
-    private BufferedReader in;
-    private PrintWriter out;
-    private Session session;
+    private InputStream in;
+    private OutboundQueue outbound;
+    private final AtomicBoolean resyncPending = new AtomicBoolean(); // queue overflowed, waiting for a fresh document
+    private volatile Session session;
+    // Lines and frames that arrived while the session was being reloaded; non-null only
+    // during such a join. Guarded by this handler's monitor.
+    private List<Object> waiting;
     private String clientId;
     private String clientName;
+    private boolean crdtClient; // speaks CRDT_INS/CRDT_DEL (crdt=1 in the handshake)
+    // Reconnecting client: the session epoch and last revision it saw (epoch=, rev=)
+    private String resumeEpoch;
+    private long resumeRevision = -1;
+    private volatile boolean framesOut; // wire=1: everything after WIRE:1 is sent as frames
+    private boolean framesIn; // the client sent its WIRE:1; reader thread only
+    private boolean deflateSnapshots; // snapshot=deflate: documents are streamed as SnapshotStreams
+    private final AtomicBoolean cleanedUp = new AtomicBoolean();
+    private SessionMigration.Receiver migration; // another node is moving a session here
+    // The client's own edit latency from its LATENCY: reports: {samples so far, p50 us,
+    // p99 us of the last window}; null until the first one
+    private volatile long[] editLatency;
 
     public ClientHandler(Socket socket) {
         this.socket = socket;
     }
 
+    // For transports that do their own socket IO and feed lines to handleLine()
+    protected ClientHandler() {
+        this.socket = null;
+    }
+
+    // Blocking transport: this thread reads, a writer thread drains the outbound queue
     public void run() {
         try {
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
-
-            String inputLine = in.readLine();
-            if (inputLine != null && inputLine.startsWith("SESSION:")) {
-                // Parse session join request: SESSION:sessionID:clientId:clientName
-                String[] parts = inputLine.split(":", 4);
-                if (parts.length < 4) {
-                    System.err.println("Invalid session join format: " + inputLine);
-                    return;
+            // Not a Reader: it would buffer past the point where the client switches to frames
+            in = new BufferedInputStream(socket.getInputStream());
+
+            while (true) {
+                if (framesIn) {
+                    byte[] frame = WireFormat.readFrame(in);
+                    if (frame == null || !handleFrame(frame)) {
+                        break;
+                    }
+                } else {
+                    String inputLine = WireFormat.readLine(in, OutboundQueue.LINE_CHARSET);
+                    if (inputLine == null || !handleLine(inputLine)) {
+                        break;
+                    }
                 }
+            }
 
-                String sessionID = parts[1].trim();
-                this.clientId = parts[2].trim();
-                this.clientName = parts[3].trim();
+        } catch (IOException e) {
+            System.err.println("ClientHandler error for " + socket.getInetAddress() + ": " + e.getMessage());
+        } finally {
+            cleanup();
+        }
+    }
 
-                session = SessionManager.sessionExists(sessionID)
-                        ? SessionManager.getSession(sessionID)
-                        : SessionManager.createSession(sessionID);
+    // One line from the client; false means close the connection
+    boolean handleLine(String inputLine) throws IOException {
+        if (framesOut && inputLine.equals(WireFormat.SWITCH_LINE)) {
+            framesIn = true;
+            return true;
+        }
+        if (migration != null) {
+            return receiveMigration(inputLine);
+        }
+        if (session == null) {
+            if (deferred(inputLine)) {
+                return true;
+            }
+            if (session == null) {
+                return join(inputLine);
+            }
+        }
+        if (inputLine.startsWith("EDIT:")) {
+            processEditOperation(inputLine);
+        } else if (inputLine.startsWith("CRDT_")) {
+            processCrdtOperation(inputLine);
+        } else if (inputLine.startsWith("CHAT:")) {
+            processChatMessage(inputLine);
+        } else if (inputLine.startsWith("LATENCY:")) {
+            processLatencyReport(inputLine);
+        }
+        return true;
+    }
 
-                session.addClient(this);
+    // One binary frame from the client; false means close the connection
+    boolean handleFrame(byte[] payload) throws IOException {
+        switch (WireFormat.type(payload)) {
+            case WireFormat.TEXT:
+                return handleLine(WireFormat.decodeText(payload));
+            case WireFormat.INSERT:
+            case WireFormat.DELETE:
+                if (session == null && deferred(payload)) {
+                    return true;
+                }
+                try {
+                    // Client number 0 is the sender itself
+                    Operation op = WireFormat.decodeEdit(payload, number -> clientId);
+                    session.submitEdit(op, this);
+                } catch (RuntimeException e) {
+                    System.err.println("Error processing edit frame: " + e.getMessage());
+                }
+                return true;
+            default:
+                System.err.println("Ignoring frame type " + WireFormat.type(payload) + " from " + clientName);
+                return true;
+        }
+    }
 
-                // Send initial buffer
-                String encodedFullBuffer = URLEncoder.encode(session.getBuffer(), StandardCharsets.UTF_8.toString());
-                sendMessage("FULL_BUFFER:" + encodedFullBuffer);
+    boolean readsFrames() {
+        return framesIn;
+    }
 
-                // Send current user count
-                sendMessage("USER_COUNT:" + session.getClientCount());
+    private boolean join(String inputLine) throws IOException {
+        if (inputLine.equals("LOAD") || inputLine.startsWith("HOLDS:") || inputLine.startsWith("MIGRATE:")) {
+            if (!Cluster.isPeer(getRemoteAddress())) {
+                System.err.println("Refusing a node request from " + getRemoteAddress() + ": not a cluster node");
+                return false;
+            }
+            return handleNode(inputLine);
+        }
+        if (!inputLine.startsWith("SESSION:")) {
+            return false;
+        }
+        // Parse session join request: SESSION:sessionID:clientId:clientName[:options]
+        Handshake handshake = Handshake.parse(inputLine);
+        if (handshake == null) {
+            System.err.println("Invalid session join format: " + inputLine);
+            return false;
+        }
 
-                // Notify other clients about new user
-                session.broadcast("USER_JOINED:" + clientName, this);
+        String sessionID = handshake.getSessionId();
+        this.clientId = handshake.getClientId();
+        this.clientName = handshake.getClientName();
+        this.crdtClient = "1".equals(handshake.getOption("crdt"));
+        this.resumeEpoch = handshake.getOption("epoch");
+        try {
+            if (handshake.hasOption("rev")) {
+                this.resumeRevision = Long.parseLong(handshake.getOption("rev"));
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Ignoring bad resume revision from " + clientName + ": " + handshake.getOption("rev"));
+        }
 
-                System.out.println("Client " + clientName + " (" + clientId + ") joined session " + sessionID);
+        outbound = openOutbound();
+        if (WireFormat.VERSION.equals(handshake.getOption("wire"))) {
+            // Last line this client gets; everything after it is framed
+            outbound.offer(OutboundQueue.encodeLine(WireFormat.SWITCH_LINE));
+            framesOut = true;
+            deflateSnapshots = "deflate".equals(handshake.getOption("snapshot"));
+        }
 
-                // Process incoming operations
-                while ((inputLine = in.readLine()) != null) {
-                    if (inputLine.startsWith("EDIT:")) {
-                        processEditOperation(inputLine);
-                    } else if (inputLine.startsWith("CHAT:")) {
-                        processChatMessage(inputLine);
-                    }
+        // In cluster mode the session may live on another node. The client closes the
+        // connection once it has the new address.
+        String owner = Cluster.redirectFor(sessionID);
+        if (owner != null) {
+            System.out.println("Redirecting " + clientName + " to " + owner + " for session " + sessionID);
+            sendMessage("MOVED:" + owner);
+            return true;
+        }
+
+        // The first client may pick the merge mode of a new session. A session that has
+        // to be reloaded from disk arrives later, on an io thread; this thread goes on
+        // reading, and what the client sends meanwhile waits for it.
+        CompletableFuture<Session> joining = SessionManager.joinSession(sessionID,
+                SessionMode.parse(handshake.getOption("mode"), ServerConfig.DEFAULT_SESSION_MODE));
+        if (joining.isDone()) {
+            return joined(sessionID, joining);
+        }
+        synchronized (this) {
+            waiting = new ArrayList<>();
+        }
+        joining.whenComplete((result, error) -> {
+            if (!joined(sessionID, joining)) {
+                disconnect();
+            }
+        });
+        return true;
+    }
+
+    // Finishes a join once the session is there, then handles what the client sent while
+    // it waited, all before the reader gets to anything newer. False means close the
+    // connection.
+    private synchronized boolean joined(String sessionID, CompletableFuture<Session> joining) {
+        List<Object> sentMeanwhile = waiting;
+        waiting = null;
+        Session joined;
+        try {
+            joined = joining.join();
+        } catch (CompletionException e) {
+            System.err.println("Client " + clientName + " could not join session " + sessionID + ": "
+                    + e.getCause().getMessage());
+            return false;
+        }
+        if (joined != null && cleanedUp.get()) {
+            SessionManager.leaveSession(joined, this); // gone while the session was loading
+            return false;
+        }
+        if (joined == null) {
+            String node = Cluster.redirectFor(sessionID);
+            if (node == null) {
+                return false; // moved back meanwhile; the client reconnects
+            }
+            sendMessage("MOVED:" + node);
+            return true;
+        }
+        session = joined;
+
+        // Queued on the session: sends the initial buffer, user count and join notice
+        session.addClient(this);
+
+        System.out.println("Client " + clientName + " (" + clientId + ") joined session " + sessionID);
+        if (sentMeanwhile == null) {
+            return true;
+        }
+        try {
+            for (Object message : sentMeanwhile) {
+                boolean open = message instanceof String ? handleLine((String) message)
+                        : handleFrame((byte[]) message);
+                if (!open) {
+                    return false;
                 }
             }
+        } catch (IOException e) {
+            System.err.println("ClientHandler error for " + clientName + ": " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    // Puts a message aside if the session is still being reloaded
+    private synchronized boolean deferred(Object message) {
+        if (waiting == null) {
+            return false;
+        }
+        waiting.add(message);
+        return true;
+    }
+
+    // A request from another cluster node: its load, whether a session is here, or the
+    // start of a migration. The node closes the connection once it has the answer.
+    private boolean handleNode(String inputLine) throws IOException {
+        clientName = "node " + getRemoteAddress();
+        outbound = openOutbound();
+        if (inputLine.equals("LOAD")) {
+            sendMessage(String.format(Locale.ROOT, "LOAD:%.1f", SessionManager.getLoad()));
+            return true;
+        }
+        if (inputLine.startsWith("HOLDS:")) {
+            String sessionID = URLDecoder.decode(inputLine.substring("HOLDS:".length()), StandardCharsets.UTF_8);
+            sendMessage("HOLDS:" + (SessionManager.isLocal(sessionID) ? 1 : 0));
+            return true;
+        }
+        migration = SessionMigration.Receiver.start(inputLine);
+        if (migration == null) {
+            sendMessage("REFUSED:bad header");
+            return false;
+        }
+        return true;
+    }
+
+    private boolean receiveMigration(String inputLine) {
+        try {
+            if (!migration.accept(inputLine)) {
+                return true;
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Migration of session " + migration.getSessionID() + " failed: " + e.getMessage());
+            sendMessage("REFUSED:" + e.getMessage());
+            migration = null;
+            return true;
+        }
+        // Answered once the session is persisted, which happens off this thread
+        SessionManager.adoptMigrated(migration)
+                .thenAccept(refused -> sendMessage(refused == null ? "MIGRATED" : "REFUSED:" + refused));
+        migration = null;
+        return true;
+    }
+
+    protected OutboundQueue openOutbound() throws IOException {
+        OutboundQueue queue = new OutboundQueue(clientName, socket.getOutputStream(),
+                ServerConfig.OUTBOUND_QUEUE_CAPACITY);
+        queue.start();
+        return queue;
+    }
 
+    // Null if the transport does not know it
+    protected InetAddress getRemoteAddress() {
+        return socket != null ? socket.getInetAddress() : null;
+    }
+
+    // Must make the transport call cleanup() eventually
+    protected void closeConnection() {
+        try {
+            if (socket != null && !socket.isClosed())
+                socket.close();
+            if (in != null)
+                in.close();
         } catch (IOException e) {
-            System.err.println("ClientHandler error for " + socket.getInetAddress() + ": " + e.getMessage());
-        } finally {
-            cleanup();
+            e.printStackTrace();
         }
     }
 
     private void processEditOperation(String inputLine) {
         try {
-            String[] parts = inputLine.split(":", 6);
-            if (parts.length < 6)
+            Operation op = Protocol.parseEdit(inputLine);
+            if (op == null)
                 return;
 
-            String opType = parts[1];
-            int requestedPos = Integer.parseInt(parts[2]);
-            String clientId = parts[4];
-            String operationId = parts[5];
+            // Applied and broadcast by the session's sequencer
+            session.submitEdit(op, this);
+        } catch (Exception e) {
+            System.err.println("Error processing edit operation: " + e.getMessage());
+        }
+    }
 
-            if (opType.equals("INSERT")) {
-                handleInsertOperation(parts, requestedPos, clientId, operationId);
-            } else if (opType.equals("DELETE")) {
-                handleDeleteOperation(parts, requestedPos, clientId, operationId);
+    private void processCrdtOperation(String inputLine) {
+        try {
+            session.applyCrdtEdit(inputLine, this);
+            if (ServerConfig.DEBUG) {
+                System.out.println("Processed " + inputLine + " from " + clientName);
             }
         } catch (Exception e) {
-            System.err.println("Error processing edit operation: " + e.getMessage());
+            System.err.println("Error processing CRDT operation: " + e.getMessage());
         }
     }
 
@@ -103,7 +360,7 @@ public class ClientHandler implements Runnable {
             String encodedMessage = parts[2];
 
             // Broadcast chat message to all other clients (not the sender)
-            session.broadcast("CHAT:" + senderName + ":" + encodedMessage, this);
+            session.submitChat("CHAT:" + senderName + ":" + encodedMessage, this);
 
             // Decode for logging
             String message = URLDecoder.decode(encodedMessage, StandardCharsets.UTF_8.toString());
@@ -114,73 +371,107 @@ public class ClientHandler implements Runnable {
         }
     }
 
-    private void handleInsertOperation(String[] parts, int requestedPos, String clientId, String operationId) {
+    // LATENCY:<samples>:<p50 us>:<p99 us>, one per finished window of the client's
+    // keystroke-to-echo latency
+    private void processLatencyReport(String inputLine) {
+        String[] parts = inputLine.split(":");
+        if (parts.length != 4) {
+            return;
+        }
         try {
-            // Decode received text
-            String encodedText = parts[3];
-            String text = URLDecoder.decode(encodedText, StandardCharsets.UTF_8.toString());
-
-            // Validate and adjust position
-            int actualPos = Math.max(0, Math.min(requestedPos, session.getBuffer().length()));
-
-            // Perform the insertion
-            session.insertText(actualPos, text);
+            long samples = Long.parseLong(parts[1]);
+            long[] last = editLatency;
+            editLatency = new long[] { (last == null ? 0 : last[0]) + samples, Long.parseLong(parts[2]),
+                    Long.parseLong(parts[3]) };
+        } catch (NumberFormatException e) {
+            System.err.println("Ignoring bad latency report from " + clientName + ": " + inputLine);
+        }
+    }
 
-            // Broadcast to ALL clients (including sender) with the actual position used
-            String broadcastEncodedText = URLEncoder.encode(text, StandardCharsets.UTF_8.toString());
-            String broadcastMessage = "EDIT:INSERT:" + actualPos + ":" + broadcastEncodedText + ":" + clientId + ":"
-                    + operationId;
+    // Full document at a given revision, sent on join and on resync. `text` must be an
+    // immutable snapshot: a streamed document is read while it is being written out.
+    void sendDocument(CharSequence text, long revision) {
+        if (deflateSnapshots) {
+            if (outbound != null && !resyncPending.get() && !outbound.offer(new SnapshotStream(text, revision))) {
+                overflow();
+            }
+            return;
+        }
+        sendMessage("REVISION:" + revision);
+        sendMessage("FULL_BUFFER:" + URLEncoder.encode(text.toString(), StandardCharsets.UTF_8));
+    }
 
-            session.broadcast(broadcastMessage, null);
+    // Never blocks: the line is queued for this client's writer thread
+    public void sendMessage(String message) {
+        send(new OutboundMessage(message));
+    }
 
-            System.out.println("Processed INSERT from " + clientName + " (" + clientId + ") at position " + actualPos
-                    + " (requested: " + requestedPos + ") text: '" + text + "'");
-            System.out.println("Buffer is now: '" + session.getBuffer() + "'");
+    // A message that may go to many clients; its encoding is shared with them
+    void send(OutboundMessage message) {
+        if (outbound == null || resyncPending.get()) {
+            return;
+        }
+        enqueue(message.encodedFor(this));
+    }
 
-        } catch (Exception e) {
-            System.err.println("Error handling insert operation: " + e.getMessage());
+    // Only for clients that negotiated frames
+    void sendFrame(byte[] frame) {
+        if (outbound == null || resyncPending.get()) {
+            return;
         }
+        enqueue(frame);
     }
 
-    private void handleDeleteOperation(String[] parts, int requestedPos, String clientId, String operationId) {
-        try {
-            int requestedLength = Integer.parseInt(parts[3]);
+    private void enqueue(byte[] bytes) {
+        if (!outbound.offer(bytes)) {
+            overflow();
+        }
+    }
 
-            // Validate position and length
-            int bufferLength = session.getBuffer().length();
-            if (requestedPos < 0 || requestedPos >= bufferLength) {
-                System.out.println("Invalid delete position " + requestedPos + " for buffer length " + bufferLength);
-                return;
-            }
+    boolean usesFrames() {
+        return framesOut;
+    }
 
-            // Calculate actual deletion length
-            int actualLength = Math.min(requestedLength, bufferLength - requestedPos);
-            if (actualLength <= 0) {
-                System.out.println("No text to delete at position " + requestedPos);
-                return;
-            }
+    private void overflow() {
+        if (ServerConfig.OUTBOUND_OVERFLOW == OverflowPolicy.DISCONNECT || session == null) {
+            System.err.println("Disconnecting slow client " + clientName + ": " + outbound.depth()
+                    + " messages queued");
+            OutboundQueue.recordEviction();
+            disconnect();
+            return;
+        }
 
-            // Perform the deletion
-            session.deleteText(requestedPos, actualLength);
+        if (!resyncPending.compareAndSet(false, true)) {
+            return;
+        }
+        System.err.println("Outbound queue of " + clientName + " overflowed, resyncing");
+        OutboundQueue.recordResync();
+        outbound.clear();
+        session.resync(this);
+    }
 
-            // Broadcast to ALL clients with actual parameters
-            String broadcastMessage = "EDIT:DELETE:" + requestedPos + ":" + actualLength + ":" + clientId + ":"
-                    + operationId;
-            session.broadcast(broadcastMessage, null);
+    // Drops the connection from the server's side; the transport then runs cleanup()
+    void disconnect() {
+        if (outbound != null) {
+            outbound.close();
+        }
+        // Unblocks a writer stuck on the socket and ends the reader loop
+        closeConnection();
+    }
 
-            System.out.println("Processed DELETE from " + clientName + " (" + clientId + ") at position " + requestedPos
-                    + " length " + actualLength);
-            System.out.println("Buffer is now: '" + session.getBuffer() + "'");
+    // Called by the session right before it sends a fresh document. Anything queued was
+    // superseded by that document.
+    void resumeAfterResync() {
+        outbound.clear();
+        resyncPending.set(false);
+    }
 
-        } catch (Exception e) {
-            System.err.println("Error handling delete operation: " + e.getMessage());
-        }
+    protected OutboundQueue getOutboundQueue() {
+        return outbound;
     }
 
-    public void sendMessage(String message) {
-        if (out != null && !out.checkError()) {
-            out.println(message);
-        }
+    int getOutboundDepth() {
+        return outbound == null ? 0 : outbound.depth();
     }
 
     public String getClientName() {
@@ -191,24 +482,37 @@ public class ClientHandler implements Runnable {
         return clientId;
     }
 
-    private void cleanup() {
-        if (session != null) {
-            session.removeClient(this);
-            // Notify other clients about user leaving
-            if (clientName != null) {
-                session.broadcast("USER_LEFT:" + clientName, this);
-                session.broadcast("USER_COUNT:" + session.getClientCount(), null);
-            }
+    long[] getEditLatency() {
+        return editLatency;
+    }
+
+    String getResumeEpoch() {
+        return resumeEpoch;
+    }
+
+    long getResumeRevision() {
+        return resumeRevision;
+    }
+
+    public boolean supportsCrdt() {
+        return crdtClient;
+    }
+
+    // Runs once, when the transport sees the connection end
+    void cleanup() {
+        if (cleanedUp.getAndSet(true)) {
+            return;
         }
-        try {
-            if (socket != null && !socket.isClosed())
-                socket.close();
-            if (in != null)
-                in.close();
-            if (out != null)
-                out.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+        Session joined;
+        synchronized (this) {
+            joined = session; // a join still loading its session sees cleanedUp instead
+        }
+        if (joined != null) {
+            // Also tells the others that we left
+            SessionManager.leaveSession(joined, this);
         }
+        if (outbound != null)
+            outbound.close();
+        closeConnection();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,132 @@
+package Server;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import Common.HashRing;
+
+// Cluster mode: several server processes share the sessions through a consistent-hash
+// ring (editor.cluster.nodes). A join for a session this node does not own is answered
+// with MOVED:host:port and the client reconnects there, so any node can be the address
+// clients are given. A process whose own address (editor.cluster.self) is not on the
+// ring owns nothing and only redirects, as a lightweight router. A session that was
+// live-migrated away (SessionMigration) is forwarded to where it went, ahead of the
+// ring; the forwards last as long as this process. Before a node creates a session it
+// asks the others whether one of them has it (a session recovered there after the ring
+// changed, say) and forwards to that one. Node requests (LOAD, HOLDS:, MIGRATE:) come in
+// on the client port and are only taken from the addresses of the other nodes.
+public final class Cluster {
+    private static final HashRing RING = ServerConfig.CLUSTER_NODES.isEmpty() ? null
+            : HashRing.parse(ServerConfig.CLUSTER_NODES);
+    private static final ConcurrentHashMap<String, String> FORWARDS = new ConcurrentHashMap<>();
+    // Resolved once, so a node request never waits on a name lookup
+    private static final Set<InetAddress> PEER_ADDRESSES = resolvePeers();
+
+    private Cluster() {
+    }
+
+    public static boolean isEnabled() {
+        return RING != null;
+    }
+
+    // The node a session belongs on, or null if it is this one: wherever it is held
+    // (it may have migrated here), then where it migrated to, then its ring owner
+    public static String redirectFor(String sessionID) {
+        if (RING == null || SessionManager.isLocal(sessionID)) {
+            return null;
+        }
+        String forward = FORWARDS.get(sessionID);
+        if (forward != null) {
+            return forward;
+        }
+        String owner = RING.owner(sessionID);
+        return owner.equals(ServerConfig.CLUSTER_SELF) ? null : owner;
+    }
+
+    // The node the ring gives the session to if that is another one, else null. Unlike
+    // redirectFor() it ignores where the session actually is.
+    static String ringOwnerElsewhere(String sessionID) {
+        if (RING == null) {
+            return null;
+        }
+        String owner = RING.owner(sessionID);
+        return owner.equals(ServerConfig.CLUSTER_SELF) ? null : owner;
+    }
+
+    // The session now runs on `node`
+    static void forward(String sessionID, String node) {
+        FORWARDS.put(sessionID, node);
+    }
+
+    // Node the session migrated to from here, or null
+    static String forwardedTo(String sessionID) {
+        return FORWARDS.get(sessionID);
+    }
+
+    // The session migrated (back) here
+    static void arrived(String sessionID) {
+        FORWARDS.remove(sessionID);
+    }
+
+    // The other nodes on the ring
+    static List<String> peers() {
+        List<String> peers = new ArrayList<>();
+        if (RING != null) {
+            for (String node : RING.getNodes()) {
+                if (!node.equals(ServerConfig.CLUSTER_SELF)) {
+                    peers.add(node);
+                }
+            }
+        }
+        return peers;
+    }
+
+    static boolean hasPeers() {
+        return !peers().isEmpty();
+    }
+
+    // Another node that has the session, or null. Asks each in turn; one that is down
+    // counts as not having it.
+    static String findHolder(String sessionID) {
+        for (String peer : peers()) {
+            if (SessionMigration.queryHolds(peer, sessionID)) {
+                return peer;
+            }
+        }
+        return null;
+    }
+
+    // A connection from another node on the ring
+    static boolean isPeer(InetAddress address) {
+        return address != null && PEER_ADDRESSES.contains(address);
+    }
+
+    private static Set<InetAddress> resolvePeers() {
+        Set<InetAddress> addresses = new HashSet<>();
+        for (String peer : peers()) {
+            try {
+                addresses.addAll(Arrays.asList(InetAddress.getAllByName(HashRing.host(peer))));
+            } catch (UnknownHostException e) {
+                System.err.println("Cannot resolve cluster node " + peer + "; its requests will be refused");
+            }
+        }
+        return addresses;
+    }
+
+    public static String describe() {
+        if (RING == null) {
+            return "off";
+        }
+        if (!RING.contains(ServerConfig.CLUSTER_SELF)) {
+            return "router for " + RING.getNodes();
+        }
+        return String.format("%s of %s, owns %.1f%% of the sessions", ServerConfig.CLUSTER_SELF, RING.getNodes(),
+                RING.share(ServerConfig.CLUSTER_SELF) * 100);
+    }
+}
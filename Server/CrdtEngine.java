@@ -0,0 +1,240 @@
+package Server;
+
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import Common.Operation;
+import Common.Protocol;
+import Common.RgaDocument;
+
+// Edit path of a CRDT-mode session. Ops from CRDT clients are merged lock-free into the
+// RGA and relayed as they are; they only share a read lock, so concurrent editors never
+// queue behind each other. Positional (legacy) clients need one linear order to make
+// sense of positions, so while any are connected every edit takes the write lock and
+// is also translated to EDIT: lines for them.
+public class CrdtEngine {
+    private static final int SERVER_SITE = 0;
+
+    private final Session session;
+    private RgaDocument document = new RgaDocument(); // replaced only by restore(), before any client joins
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final AtomicInteger nextSite = new AtomicInteger(SERVER_SITE + 1);
+    private int legacyClients; // guarded by the write lock, read under the read lock
+
+    public CrdtEngine(Session session) {
+        this.session = session;
+    }
+
+    // `register` adds the client to the session's broadcast list
+    public void join(ClientHandler client, Runnable register) {
+        if (client.supportsCrdt()) {
+            int site = nextSite.getAndIncrement();
+            if (site > RgaDocument.MAX_SITE) {
+                throw new IllegalStateException("Session " + session.getSessionID() + " ran out of CRDT site ids");
+            }
+            client.sendMessage("MODE:CRDT");
+            client.sendMessage("SITE:" + site);
+            // Under the write lock no insert is half linked, so the state holds whole
+            // chains only, and every op not in it is relayed after it. The client skips
+            // a relayed chain whose first node it has; that is only safe this way.
+            lock.writeLock().lock();
+            try {
+                register.run();
+                client.sendMessage("CRDT_STATE:" + document.encodeState());
+            } finally {
+                lock.writeLock().unlock();
+            }
+            return;
+        }
+
+        lock.writeLock().lock();
+        try {
+            legacyClients++;
+            register.run();
+            client.sendDocument(document.text(), 0);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Fresh state for a client whose outbound queue overflowed. The write lock keeps
+    // every relay out, so nothing merged meanwhile can be dropped or arrive too early.
+    public void resync(ClientHandler client) {
+        lock.writeLock().lock();
+        try {
+            client.resumeAfterResync();
+            if (client.supportsCrdt()) {
+                client.sendMessage("CRDT_STATE:" + document.encodeState());
+            } else {
+                client.sendDocument(document.text(), 0);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void leave(ClientHandler client) {
+        if (client.supportsCrdt()) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            legacyClients--;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // CRDT_INS / CRDT_DEL from a CRDT client
+    public void applyNative(String line, ClientHandler sender) {
+        lock.readLock().lock();
+        try {
+            if (legacyClients == 0) {
+                if (merge(line, false, sender)) {
+                    session.logCrdt(line);
+                    session.relay(line, sender, true);
+                }
+                return;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        lock.writeLock().lock();
+        try {
+            if (merge(line, true, sender)) {
+                session.logCrdt(line);
+                session.relay(line, sender, true);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Merges one CRDT op; with `translate` the write lock is held and legacy clients get
+    // the positional equivalent
+    private boolean merge(String line, boolean translate, ClientHandler sender) {
+        if (line.startsWith("CRDT_INS:")) {
+            String[] parts = line.split(":", 4);
+            if (parts.length < 4) {
+                return false;
+            }
+            long originId = Long.parseLong(parts[1]);
+            long firstId = Long.parseLong(parts[2]);
+            String text = URLDecoder.decode(parts[3], StandardCharsets.UTF_8);
+            if (!document.insert(originId, firstId, text)) {
+                System.err.println("CRDT insert from " + (sender != null ? sender.getClientName() : "the log")
+                        + " references unknown node "
+                        + originId + " in session " + session.getSessionID());
+                return false;
+            }
+            if (translate) {
+                int pos = document.visibleIndexOf(firstId);
+                session.relayEdit(Operation.insert(pos, text, sender.getClientId(), "0")
+                        .withEncodedText(parts[3]), null, true);
+            }
+            return true;
+        }
+
+        if (line.startsWith("CRDT_DEL:")) {
+            String list = line.substring("CRDT_DEL:".length());
+            if (list.isEmpty()) {
+                return false;
+            }
+            for (String value : list.split(",")) {
+                long id = Long.parseLong(value);
+                int pos = translate ? document.visibleIndexOf(id) : -1;
+                document.delete(id);
+                if (pos >= 0) {
+                    session.relayEdit(Operation.delete(pos, 1, sender.getClientId(), "0"), null, true);
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    // EDIT: from a positional client. Anchored to the character before the position and
+    // created with the server's site id.
+    public List<Operation> applyPositional(Operation op) {
+        lock.writeLock().lock();
+        try {
+            int length = document.length();
+            int pos = op.getPosition();
+            Operation applied;
+
+            if (op.isInsert()) {
+                if (op.getText().isEmpty()) {
+                    return Collections.emptyList();
+                }
+                if (pos < 0 || pos > length) {
+                    pos = length;
+                }
+                long originId = document.idAtVisibleIndex(pos - 1);
+                long firstId = RgaDocument.makeId(document.reserveCounters(op.getText().length()), SERVER_SITE);
+                document.insert(originId, firstId, op.getText());
+                String line = Protocol.formatCrdtInsert(originId, firstId, op.getText());
+                session.logCrdt(line);
+                session.relay(line, null, true);
+                applied = op.withPosition(pos);
+            } else {
+                if (pos < 0 || pos >= length || op.getLength() <= 0) {
+                    return Collections.emptyList();
+                }
+                long[] ids = document.visibleIds(pos, Math.min(op.getLength(), length - pos));
+                for (long id : ids) {
+                    document.delete(id);
+                }
+                String line = Protocol.formatCrdtDelete(ids);
+                session.logCrdt(line);
+                session.relay(line, null, true);
+                applied = op.withLength(ids.length);
+            }
+
+            // Positional clients wait for their own echo; no revisions in this mode
+            session.relayEdit(applied.withRevision(-1), null, true);
+            return Collections.singletonList(applied);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // State of a snapshot, before any client joined
+    public void restore(String state) {
+        document = RgaDocument.fromState(state);
+    }
+
+    // Taken without stopping editors, for a snapshot: a chain merged meanwhile may be
+    // only partly in it, and replaying the log completes it node by node
+    public String encodeState() {
+        return document.encodeState();
+    }
+
+    // Runs the action with no merge in progress, so a state it reads and the lines
+    // logged afterwards fit together
+    void exclusive(Runnable action) {
+        lock.writeLock().lock();
+        try {
+            action.run();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // A line of the session's log, before any client joined
+    public void replay(String line) {
+        merge(line, false, null);
+    }
+
+    public String text() {
+        return document.text();
+    }
+
+    public int length() {
+        return document.length();
+    }
+}
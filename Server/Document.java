@@ -0,0 +1,16 @@
+package Server;
+
+// Text storage behind a Session. Implementations are not thread-safe; the owning
+// Session serializes all mutations.
+public interface Document {
+
+    int length();
+
+    void insert(int pos, String text);
+
+    void delete(int pos, int length);
+
+    // Immutable view of the current contents. Callers may keep and read it from any
+    // thread after the document has moved on.
+    CharSequence snapshot();
+}
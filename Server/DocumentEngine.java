@@ -0,0 +1,17 @@
+package Server;
+
+// Storage implementations a Session can be backed by
+public enum DocumentEngine {
+    ROPE,
+    STRING_BUILDER;
+
+    public Document newDocument() {
+        switch (this) {
+            case STRING_BUILDER:
+                return new StringBuilderDocument();
+            case ROPE:
+            default:
+                return new RopeDocument();
+        }
+    }
+}
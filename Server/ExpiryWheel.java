@@ -0,0 +1,80 @@
+package Server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Hashed timer wheel of deadlines on the System.nanoTime clock. Scheduling and
+// cancelling are O(1); advance() only looks at the slots whose ticks have passed, so
+// nothing is scanned that is not due. The wheel spans slots * tick; a later deadline
+// sits in the last slot of the span and comes back early, for the caller to schedule
+// again. A key has at most one deadline; scheduling it again keeps the earlier one.
+// The caller re-checks whatever advance() returns, so activity never has to touch the
+// wheel: a key that turns out not to be due yet is simply scheduled again.
+public class ExpiryWheel<K> {
+    private final long tickNanos;
+    private final long origin = System.nanoTime();
+    private final List<Set<K>> slots;
+    private final Map<K, Long> ticks = new HashMap<>(); // tick each key is due at
+    private long currentTick; // every tick up to this one has been handed out
+
+    public ExpiryWheel(long tickNanos, int slotCount) {
+        this.tickNanos = tickNanos;
+        this.slots = new ArrayList<>(slotCount);
+        for (int i = 0; i < slotCount; i++) {
+            slots.add(new LinkedHashSet<>());
+        }
+    }
+
+    public synchronized void schedule(K key, long deadlineNanos) {
+        long tick = Math.min(Math.max(tickOf(deadlineNanos), currentTick + 1), currentTick + slots.size());
+        Long previous = ticks.get(key);
+        if (previous != null) {
+            if (previous <= tick) {
+                return;
+            }
+            slot(previous).remove(key);
+        }
+        ticks.put(key, tick);
+        slot(tick).add(key);
+    }
+
+    public synchronized void cancel(K key) {
+        Long tick = ticks.remove(key);
+        if (tick != null) {
+            slot(tick).remove(key);
+        }
+    }
+
+    // Keys whose deadline has come by `nowNanos`; they leave the wheel
+    public synchronized List<K> advance(long nowNanos) {
+        List<K> due = new ArrayList<>();
+        long target = tickOf(nowNanos);
+        long last = Math.min(target, currentTick + slots.size());
+        for (long tick = currentTick + 1; tick <= last; tick++) {
+            Set<K> slot = slot(tick);
+            for (K key : slot) {
+                ticks.remove(key);
+                due.add(key);
+            }
+            slot.clear();
+        }
+        currentTick = Math.max(currentTick, target);
+        return due;
+    }
+
+    public synchronized int size() {
+        return ticks.size();
+    }
+
+    private long tickOf(long nanos) {
+        return Math.floorDiv(nanos - origin, tickNanos);
+    }
+
+    private Set<K> slot(long tick) {
+        return slots.get((int) Math.floorMod(tick, (long) slots.size()));
+    }
+}
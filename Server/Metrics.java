@@ -0,0 +1,255 @@
+package Server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import Common.LatencyHistogram;
+
+// Prometheus text endpoint (GET /metrics on editor.metrics.port). A scrape only reads
+// counters, volatile fields and histogram buckets; it never queues on a sequencer or
+// touches a document, so it cannot slow editing down.
+public final class Metrics {
+    // Submit-to-done time of sequencer commands, queue wait included
+    static final LatencyHistogram APPLY = new LatencyHistogram();
+    // Time to hand one edit (or one tick's batch) to every client's outbound queue
+    static final LatencyHistogram FANOUT = new LatencyHistogram();
+
+    // Prometheus bucket bounds, in microseconds
+    private static final long[] BUCKETS_MICROS = { 50, 100, 250, 500, 1_000, 2_500, 5_000, 10_000, 25_000, 50_000,
+            100_000, 250_000, 500_000, 1_000_000, 2_500_000, 10_000_000 };
+
+    private static final long START_NANOS = System.nanoTime();
+    private static HttpServer server;
+
+    private Metrics() {
+    }
+
+    static void start(int port) {
+        try {
+            server = HttpServer.create(new InetSocketAddress(port), 0);
+            server.createContext("/metrics", Metrics::handle);
+            server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "metrics");
+                t.setDaemon(true);
+                return t;
+            }));
+            server.start();
+            System.out.println("Metrics at http://localhost:" + port + "/metrics");
+        } catch (IOException e) {
+            System.err.println("Cannot serve metrics on port " + port + ": " + e.getMessage());
+        }
+    }
+
+    static void stop() {
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    private static void handle(HttpExchange exchange) throws IOException {
+        byte[] body = render().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    static String render() {
+        StringBuilder out = new StringBuilder(4096);
+        gauge(out, "editor_uptime_seconds", "Seconds since the server started",
+                (System.nanoTime() - START_NANOS) / 1e9);
+        counter(out, "editor_connections_opened_total", "Connections accepted", ServerMain.getTotalConnections());
+        counter(out, "editor_connections_closed_total", "Connections closed",
+                ServerMain.getTotalConnections() - ServerMain.getCurrentConnections());
+        gauge(out, "editor_connections", "Open connections", ServerMain.getCurrentConnections());
+        gauge(out, "editor_sessions", "Sessions in memory", SessionManager.getActiveSessionCount());
+        gauge(out, "editor_clients", "Clients joined to a session", SessionManager.getTotalActiveClients());
+        int poolThreads = ServerMain.getActivePoolThreads();
+        if (poolThreads >= 0) {
+            gauge(out, "editor_pool_active_threads", "Client pool threads serving a connection", poolThreads);
+        }
+
+        List<Session> sessions = SessionManager.getAllSessions();
+        header(out, "editor_session_ops_total", "counter", "Edits committed per session");
+        for (Session session : sessions) {
+            sample(out, "editor_session_ops_total", session, session.getCommitCount());
+        }
+        header(out, "editor_session_buffer_chars", "gauge", "Document length per session");
+        for (Session session : sessions) {
+            sample(out, "editor_session_buffer_chars", session, session.getBufferLength());
+        }
+        header(out, "editor_session_clients", "gauge", "Connected clients per session");
+        for (Session session : sessions) {
+            sample(out, "editor_session_clients", session, session.getClientCount());
+        }
+        header(out, "editor_session_idle_seconds", "gauge", "Seconds since each session's last activity");
+        long now = System.nanoTime();
+        for (Session session : sessions) {
+            sample(out, "editor_session_idle_seconds", session, (now - session.getLastActivityNanos()) / 1e9);
+        }
+        int[][] outbound = new int[sessions.size()][];
+        for (int i = 0; i < outbound.length; i++) {
+            outbound[i] = sessions.get(i).getOutboundDepth();
+        }
+        header(out, "editor_session_outbound_lines", "gauge", "Lines waiting in each session's client queues");
+        for (int i = 0; i < outbound.length; i++) {
+            sample(out, "editor_session_outbound_lines", sessions.get(i), outbound[i][0]);
+        }
+        header(out, "editor_session_outbound_max_lines", "gauge", "Deepest client queue per session");
+        for (int i = 0; i < outbound.length; i++) {
+            sample(out, "editor_session_outbound_max_lines", sessions.get(i), outbound[i][1]);
+        }
+        header(out, "editor_session_queue_depth", "gauge", "Commands waiting on each session's sequencer");
+        for (Session session : sessions) {
+            sample(out, "editor_session_queue_depth", session, session.getSequencer().getQueueDepth());
+        }
+        header(out, "editor_session_queue_max_depth", "gauge", "Deepest each session's sequencer queue has been");
+        for (Session session : sessions) {
+            sample(out, "editor_session_queue_max_depth", session, session.getSequencer().getMaxQueueDepth());
+        }
+        header(out, "editor_session_commands_total", "counter", "Sequencer commands run per session");
+        for (Session session : sessions) {
+            sample(out, "editor_session_commands_total", session, session.getSequencer().getAppliedCount());
+        }
+        header(out, "editor_session_apply_seconds_total", "counter",
+                "Submit-to-done time of each session's sequencer commands, summed");
+        for (Session session : sessions) {
+            sample(out, "editor_session_apply_seconds_total", session,
+                    session.getSequencer().getTotalLatencyMicros() / 1e6);
+        }
+        header(out, "editor_session_apply_max_seconds", "gauge", "Slowest sequencer command per session");
+        for (Session session : sessions) {
+            sample(out, "editor_session_apply_max_seconds", session,
+                    session.getSequencer().getMaxLatencyMicros() / 1e6);
+        }
+        if (ServerConfig.BROADCAST_TICK_MS > 0) {
+            header(out, "editor_session_broadcast_tick_seconds", "gauge",
+                    "Current adaptive broadcast tick per session");
+            for (Session session : sessions) {
+                BroadcastTick tick = session.getBroadcastTick();
+                if (tick != null) {
+                    sample(out, "editor_session_broadcast_tick_seconds", session, tick.getTickMicros() / 1e6);
+                }
+            }
+            header(out, "editor_session_broadcast_batches_total", "counter", "Broadcast batches sent per session");
+            for (Session session : sessions) {
+                BroadcastTick tick = session.getBroadcastTick();
+                if (tick != null) {
+                    sample(out, "editor_session_broadcast_batches_total", session, tick.getBatchCount());
+                }
+            }
+            header(out, "editor_session_broadcast_batch_size", "gauge",
+                    "Average edits per broadcast batch per session");
+            for (Session session : sessions) {
+                BroadcastTick tick = session.getBroadcastTick();
+                if (tick != null) {
+                    sample(out, "editor_session_broadcast_batch_size", session, tick.getAverageBatch());
+                }
+            }
+        }
+
+        header(out, "editor_client_edit_latency_seconds", "summary",
+                "Keystroke-to-echo latency each client reports for its own edits, last window");
+        for (Session session : sessions) {
+            for (ClientHandler client : session.getClients()) {
+                long[] latency = client.getEditLatency();
+                if (latency == null) {
+                    continue;
+                }
+                String labels = "session=\"" + escape(session.getSessionID()) + "\",user=\""
+                        + escape(String.valueOf(client.getClientName())) + "\",client=\""
+                        + escape(String.valueOf(client.getClientId())) + "\"";
+                out.append("editor_client_edit_latency_seconds{").append(labels).append(",quantile=\"0.5\"} ")
+                        .append(format(latency[1] / 1e6)).append('\n');
+                out.append("editor_client_edit_latency_seconds{").append(labels).append(",quantile=\"0.99\"} ")
+                        .append(format(latency[2] / 1e6)).append('\n');
+                out.append("editor_client_edit_latency_seconds_count{").append(labels).append("} ")
+                        .append(latency[0]).append('\n');
+            }
+        }
+
+        histogram(out, "editor_apply_latency_seconds", "Sequencer command latency, submit to done", APPLY);
+        histogram(out, "editor_broadcast_fanout_seconds", "Time to queue an edit for every client", FANOUT);
+
+        counter(out, "editor_outbound_bytes_total", "Bytes handed to client sockets", OutboundQueue.getBytesSent());
+        counter(out, "editor_outbound_resyncs_total", "Clients resynced after their queue overflowed",
+                OutboundQueue.getResyncCount());
+        counter(out, "editor_outbound_evictions_total", "Slow clients disconnected", OutboundQueue.getEvictedCount());
+        gauge(out, "editor_outbound_max_depth", "Deepest outbound queue seen", OutboundQueue.getMaxDepth());
+        SessionManager.renderMetrics(out);
+        if (ServerConfig.TRANSPORT == Transport.VIRTUAL) {
+            gauge(out, "editor_virtual_threads", "Live virtual threads", VirtualThreads.getLiveCount());
+            counter(out, "editor_virtual_threads_started_total", "Virtual threads started",
+                    VirtualThreads.getStartedCount());
+            gauge(out, "editor_carrier_threads", "Platform threads carrying virtual threads",
+                    VirtualThreads.getCarrierCount());
+            gauge(out, "editor_platform_threads", "Live platform threads, carriers included",
+                    VirtualThreads.getPlatformCount());
+        }
+        gauge(out, "editor_heap_used_bytes", "Heap in use",
+                Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory());
+        if (ManagementFactory.getOperatingSystemMXBean() instanceof com.sun.management.OperatingSystemMXBean) {
+            com.sun.management.OperatingSystemMXBean os =
+                    (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+            counter(out, "process_cpu_seconds_total", "CPU time used by the server process",
+                    os.getProcessCpuTime() / 1e9);
+        }
+        return out.toString();
+    }
+
+    static void counter(StringBuilder out, String name, String help, double value) {
+        header(out, name, "counter", help);
+        out.append(name).append(' ').append(format(value)).append('\n');
+    }
+
+    static void gauge(StringBuilder out, String name, String help, double value) {
+        header(out, name, "gauge", help);
+        out.append(name).append(' ').append(format(value)).append('\n');
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, Session session, double value) {
+        out.append(name).append("{session=\"").append(escape(session.getSessionID())).append("\"} ")
+                .append(format(value)).append('\n');
+    }
+
+    static void histogram(StringBuilder out, String name, String help, LatencyHistogram histogram) {
+        header(out, name, "histogram", help);
+        long count = histogram.getCount();
+        for (long bound : BUCKETS_MICROS) {
+            out.append(name).append("_bucket{le=\"").append(BigDecimal.valueOf(bound).movePointLeft(6)
+                    .stripTrailingZeros().toPlainString()).append("\"} ")
+                    .append(Math.min(count, histogram.countAtMost(bound))).append('\n');
+        }
+        out.append(name).append("_bucket{le=\"+Inf\"} ").append(count).append('\n');
+        out.append(name).append("_sum ").append(format(histogram.getTotalMicros() / 1e6)).append('\n');
+        out.append(name).append("_count ").append(count).append('\n');
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return String.format(Locale.ROOT, "%.6g", value);
+    }
+
+    // Label values escape backslash, quote and newline
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
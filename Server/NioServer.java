@@ -0,0 +1,362 @@
+package Server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import Common.WireFormat;
+
+// Selector transport: one acceptor plus a few event loops own every connection, so an
+// idle client costs a channel and a few small objects instead of a thread. Read and
+// write buffers are direct and shared per loop; a connection only keeps bytes of its
+// own when a line spans reads or the socket would not take everything queued for it.
+// Speaks the same protocol as the blocking transport, text lines and binary frames.
+public class NioServer {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_MESSAGE_BYTES = WireFormat.MAX_FRAME; // pastes are sent as one line
+
+    private final ServerSocketChannel serverChannel;
+    private final EventLoop[] loops;
+    private int nextLoop;
+
+    public NioServer(int port, int threads) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        loops = new EventLoop[Math.max(1, threads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+            Thread thread = new Thread(loops[i], "nio-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    // Accepts until the server channel is closed; connections are spread round-robin
+    public void acceptLoop() throws IOException {
+        while (serverChannel.isOpen()) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (ClosedChannelException e) {
+                return;
+            }
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            String address = String.valueOf(channel.socket().getInetAddress());
+            ServerMain.connectionOpened(address);
+
+            EventLoop loop = loops[nextLoop];
+            nextLoop = (nextLoop + 1) % loops.length;
+            loop.execute(() -> loop.register(channel, address));
+        }
+    }
+
+    public boolean isOpen() {
+        return serverChannel.isOpen();
+    }
+
+    public void close() throws IOException {
+        serverChannel.close();
+        for (EventLoop loop : loops) {
+            loop.close();
+        }
+    }
+
+    private static final class EventLoop implements Runnable {
+        private final int index;
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        final ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        EventLoop(int index) throws IOException {
+            this.index = index;
+            this.selector = Selector.open();
+        }
+
+        // Runs the task on this loop's thread
+        void execute(Runnable task) {
+            tasks.offer(task);
+            selector.wakeup();
+        }
+
+        void register(SocketChannel channel, String address) {
+            try {
+                Connection connection = new Connection(this, channel, address);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            } catch (IOException e) {
+                System.err.println("Could not register " + address + ": " + e.getMessage());
+                ServerMain.connectionClosed(address);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (selector.isOpen()) {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        if (!key.isValid()) {
+                            connection.close();
+                            continue;
+                        }
+                        if (key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                // shutting down
+            } catch (IOException e) {
+                System.err.println("Event loop " + index + " failed: " + e.getMessage());
+            }
+        }
+
+        void close() throws IOException {
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+        }
+    }
+
+    // ClientHandler whose IO is done by an event loop; every method below runs on it
+    private static final class Connection extends ClientHandler {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final String address;
+        private final AtomicBoolean writeRequested = new AtomicBoolean();
+        SelectionKey key;
+        private ByteBuffer partialInput; // start of a line or frame that has not fully arrived
+        private ByteBuffer unwritten; // what the socket did not take last time
+
+        Connection(EventLoop loop, SocketChannel channel, String address) {
+            this.loop = loop;
+            this.channel = channel;
+            this.address = address;
+        }
+
+        @Override
+        protected OutboundQueue openOutbound() {
+            return new OutboundQueue(getClientName(), ServerConfig.OUTBOUND_QUEUE_CAPACITY, this::requestFlush);
+        }
+
+        // Any thread; coalesces wakeups until the loop gets around to flushing
+        private void requestFlush() {
+            if (writeRequested.compareAndSet(false, true)) {
+                loop.execute(this::flush);
+            }
+        }
+
+        @Override
+        protected InetAddress getRemoteAddress() {
+            return channel.socket().getInetAddress();
+        }
+
+        @Override
+        protected void closeConnection() {
+            loop.execute(this::close);
+        }
+
+        void read() {
+            ByteBuffer buffer = loop.readBuffer;
+            buffer.clear();
+            try {
+                if (channel.read(buffer) < 0) {
+                    close();
+                    return;
+                }
+                buffer.flip();
+                ByteBuffer input = buffer;
+                if (partialInput != null) {
+                    append(buffer);
+                    input = partialInput.flip();
+                }
+                // Lines until the client switches to frames, frames after that
+                while (input.hasRemaining()) {
+                    boolean complete = readsFrames() ? nextFrame(input) : nextLine(input);
+                    if (!channel.isOpen()) {
+                        return;
+                    }
+                    if (!complete) {
+                        break;
+                    }
+                }
+                keepRest(input);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("ClientHandler error for " + address + ": " + e.getMessage());
+                close();
+            }
+        }
+
+        // False if the line has not ended yet
+        private boolean nextLine(ByteBuffer input) throws IOException {
+            int start = input.position();
+            for (int i = start; i < input.limit(); i++) {
+                if (input.get(i) != '\n') {
+                    continue;
+                }
+                ByteBuffer slice = input.duplicate();
+                slice.position(start).limit(i);
+                input.position(i + 1);
+                String line = OutboundQueue.LINE_CHARSET.decode(slice).toString();
+                if (!handleLine(line.endsWith("\r") ? line.substring(0, line.length() - 1) : line)) {
+                    close();
+                }
+                return true;
+            }
+            return false;
+        }
+
+        private boolean nextFrame(ByteBuffer input) throws IOException {
+            byte[] payload = WireFormat.readFrame(input);
+            if (payload == null) {
+                return false;
+            }
+            if (!handleFrame(payload)) {
+                close();
+            }
+            return true;
+        }
+
+        // Keeps the unconsumed tail of the input for the next read
+        private void keepRest(ByteBuffer input) throws IOException {
+            if (input == partialInput) {
+                partialInput.compact();
+                if (partialInput.position() == 0) {
+                    partialInput = null;
+                }
+                return;
+            }
+            if (input.hasRemaining()) {
+                append(input);
+            }
+        }
+
+        private void append(ByteBuffer bytes) throws IOException {
+            int kept = partialInput == null ? 0 : partialInput.position();
+            if (kept + bytes.remaining() > MAX_MESSAGE_BYTES) {
+                throw new IOException("message longer than " + MAX_MESSAGE_BYTES + " bytes");
+            }
+            if (partialInput == null || partialInput.remaining() < bytes.remaining()) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(256, (kept + bytes.remaining()) * 2));
+                if (partialInput != null) {
+                    partialInput.flip();
+                    grown.put(partialInput);
+                }
+                partialInput = grown;
+            }
+            partialInput.put(bytes);
+        }
+
+        // Writes as much of the outbound queue as the socket takes; the rest waits for
+        // OP_WRITE, and the queue's overflow policy covers a client that never reads
+        void flush() {
+            writeRequested.set(false);
+            if (!channel.isOpen() || key == null) {
+                return;
+            }
+            try {
+                if (unwritten != null) {
+                    channel.write(unwritten);
+                    if (unwritten.hasRemaining()) {
+                        setWriteInterest(true);
+                        return;
+                    }
+                    unwritten = null;
+                }
+
+                OutboundQueue queue = getOutboundQueue();
+                ByteBuffer buffer = loop.writeBuffer;
+                buffer.clear();
+                byte[] bytes;
+                while (queue != null && (bytes = queue.poll()) != null) {
+                    if (bytes.length > buffer.remaining() && !writeOut(buffer, bytes)) {
+                        setWriteInterest(true);
+                        return;
+                    }
+                    if (bytes.length > buffer.remaining()) {
+                        // Larger than the whole buffer, e.g. a FULL_BUFFER
+                        ByteBuffer large = ByteBuffer.wrap(bytes);
+                        channel.write(large);
+                        if (large.hasRemaining()) {
+                            unwritten = large;
+                            setWriteInterest(true);
+                            return;
+                        }
+                        continue;
+                    }
+                    buffer.put(bytes);
+                }
+                if (!writeOut(buffer, null)) {
+                    setWriteInterest(true);
+                    return;
+                }
+                setWriteInterest(false);
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        // Writes the buffer; whatever the socket refuses is kept, followed by `next`
+        private boolean writeOut(ByteBuffer buffer, byte[] next) throws IOException {
+            buffer.flip();
+            if (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (!buffer.hasRemaining()) {
+                buffer.clear();
+                return true;
+            }
+            unwritten = ByteBuffer.allocate(buffer.remaining() + (next == null ? 0 : next.length));
+            unwritten.put(buffer);
+            if (next != null) {
+                unwritten.put(next);
+            }
+            unwritten.flip();
+            buffer.clear();
+            return false;
+        }
+
+        private void setWriteInterest(boolean on) {
+            if (key.isValid()) {
+                key.interestOps(on ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+            }
+        }
+
+        void close() {
+            if (!channel.isOpen()) {
+                return;
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // already gone
+            }
+            cleanup();
+            ServerMain.connectionClosed(address);
+        }
+    }
+}
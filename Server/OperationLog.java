@@ -0,0 +1,46 @@
+package Server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import Common.Operation;
+
+// Fixed-size ring of the most recently committed operations, indexed by revision.
+// Not thread-safe; only touched from the owning session's sequencer.
+public class OperationLog {
+    private final Operation[] ring;
+    private long lastRevision;
+    private int size;
+
+    public OperationLog(int capacity) {
+        this.ring = new Operation[Math.max(1, capacity)];
+    }
+
+    // Ops must be appended in revision order without gaps
+    public void append(Operation op) {
+        lastRevision = op.getRevision();
+        ring[(int) (lastRevision % ring.length)] = op;
+        if (size < ring.length) {
+            size++;
+        }
+    }
+
+    // Ops committed after `revision`, oldest first, or null if some have been evicted
+    public List<Operation> since(long revision) {
+        if (revision >= lastRevision) {
+            return new ArrayList<>(0);
+        }
+        if (revision < lastRevision - size) {
+            return null;
+        }
+        List<Operation> ops = new ArrayList<>((int) (lastRevision - revision));
+        for (long rev = revision + 1; rev <= lastRevision; rev++) {
+            ops.add(ring[(int) (rev % ring.length)]);
+        }
+        return ops;
+    }
+
+    public int size() {
+        return size;
+    }
+}
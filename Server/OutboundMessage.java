@@ -0,0 +1,39 @@
+package Server;
+
+import Common.WireFormat;
+
+// One message for any number of recipients, encoded at most once per wire form: the
+// line with its newline for text clients and a frame for framed ones. Every recipient
+// queues the same array and nothing writes to it afterwards, so a broadcast costs the
+// same encoding and allocation whether the session has two clients or two hundred.
+// Built and sent by one thread, like the broadcast loops that use it.
+public final class OutboundMessage {
+    private final String text;
+    private byte[] line;
+    private byte[] frame;
+
+    public OutboundMessage(String text) {
+        this(text, null);
+    }
+
+    // `frame` is what framed clients get instead of the text in a TEXT frame, e.g. an
+    // edit frame; null for the TEXT frame
+    public OutboundMessage(String text, byte[] frame) {
+        this.text = text;
+        this.frame = frame;
+    }
+
+    // Bytes in the client's wire form
+    byte[] encodedFor(ClientHandler client) {
+        if (client.usesFrames()) {
+            if (frame == null) {
+                frame = WireFormat.encodeText(text);
+            }
+            return frame;
+        }
+        if (line == null) {
+            line = OutboundQueue.encodeLine(text);
+        }
+        return line;
+    }
+}
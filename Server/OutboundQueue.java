@@ -0,0 +1,242 @@
+package Server;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Bounded queue of messages for one client, already encoded: text lines with their
+// newline or binary frames (see WireFormat). Arrays may be shared with other clients'
+// queues and are never modified. A Stream takes one slot and is expanded into pieces
+// only as the writer gets to it. With the blocking transport a dedicated thread
+// writes it to the socket; with NIO the event loop polls it when the channel is ready.
+// Broadcasters only enqueue, so a receiver that stops reading fills its own queue
+// instead of blocking the session; the owner decides what to do when offer() fails.
+public class OutboundQueue {
+    private static final int WRITE_BATCH = 64; // most messages written per flush
+    // Text lines go out in the platform charset, as they always have
+    static final Charset LINE_CHARSET = Charset.defaultCharset();
+
+    private static final LongAdder evicted = new LongAdder();
+    private static final LongAdder resynced = new LongAdder();
+    private static final LongAdder bytesSent = new LongAdder(); // handed to the socket, all clients
+    private static final LongAccumulator maxDepth = new LongAccumulator(Math::max, 0);
+
+    private final String name;
+    private final ArrayBlockingQueue<Object> queue; // byte[] or Stream
+    private volatile Stream current; // stream being written; consumer only, but clear() drops it
+    private final OutputStream out; // blocking transport only
+    private final Runnable onReady; // NIO only: a message was queued
+    private volatile boolean closed;
+    private volatile Thread writer;
+
+    // A message produced in pieces while it is written, e.g. a large document snapshot, so
+    // it never has to exist in encoded form all at once. Pieces are written in order and
+    // nothing queued behind the stream goes out before its last piece.
+    public interface Stream {
+        // Next encoded piece, or null when done
+        byte[] next();
+
+        // The rest will not be written; may be called from any thread, also while
+        // next() runs, and next() returns null afterwards
+        default void discard() {
+        }
+    }
+
+    public OutboundQueue(String name, OutputStream stream, int capacity) {
+        this.name = name;
+        this.queue = new ArrayBlockingQueue<>(Math.max(16, capacity));
+        this.out = new BufferedOutputStream(stream, 16 * 1024);
+        this.onReady = null;
+    }
+
+    // Drained by the caller through poll(); onReady runs after every successful offer
+    public OutboundQueue(String name, int capacity, Runnable onReady) {
+        this.name = name;
+        this.queue = new ArrayBlockingQueue<>(Math.max(16, capacity));
+        this.out = null;
+        this.onReady = onReady;
+    }
+
+    // Called once by the owner; the writer is a virtual thread in VIRTUAL transport mode
+    public void start() {
+        if (writer != null || out == null) {
+            return;
+        }
+        if (ServerConfig.TRANSPORT == Transport.VIRTUAL) {
+            writer = VirtualThreads.start("client-writer-" + name, this::writeLoop);
+        } else {
+            Thread thread = new Thread(this::writeLoop, "client-writer-" + name);
+            thread.setDaemon(true);
+            writer = thread;
+            thread.start();
+        }
+    }
+
+    // False if the queue is full; messages offered after close() are dropped silently
+    public boolean offer(byte[] message) {
+        return enqueue(message);
+    }
+
+    public boolean offer(Stream stream) {
+        return enqueue(stream);
+    }
+
+    private boolean enqueue(Object message) {
+        if (closed) {
+            return true;
+        }
+        if (!queue.offer(message)) {
+            return false;
+        }
+        maxDepth.accumulate(queue.size());
+        if (onReady != null) {
+            onReady.run();
+        }
+        return true;
+    }
+
+    // Next message (or stream piece) to write, or null
+    public byte[] poll() {
+        byte[] piece = nextPiece();
+        if (piece != null) {
+            return sent(piece);
+        }
+        Object message;
+        while ((message = queue.poll()) != null) {
+            piece = start(message);
+            if (piece != null) {
+                return sent(piece);
+            }
+        }
+        return null;
+    }
+
+    private static byte[] sent(byte[] piece) {
+        bytesSent.add(piece.length);
+        return piece;
+    }
+
+    private byte[] nextPiece() {
+        Stream stream = current;
+        if (stream == null) {
+            return null;
+        }
+        byte[] piece = stream.next();
+        if (piece == null) {
+            current = null;
+        }
+        return piece;
+    }
+
+    private byte[] start(Object message) {
+        if (message instanceof byte[]) {
+            return (byte[]) message;
+        }
+        current = (Stream) message;
+        if (closed) {
+            clear(); // close() ran while this stream was between the queue and `current`
+            return null;
+        }
+        return nextPiece();
+    }
+
+    // Drops everything not yet written, including the rest of a stream
+    public void clear() {
+        Stream stream = current;
+        current = null;
+        if (stream != null) {
+            stream.discard();
+        }
+        Object message;
+        while ((message = queue.poll()) != null) {
+            if (message instanceof Stream) {
+                ((Stream) message).discard();
+            }
+        }
+    }
+
+    public int depth() {
+        return queue.size();
+    }
+
+    public void close() {
+        closed = true;
+        clear();
+        Thread current = writer;
+        if (current != null) {
+            current.interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        int unflushed = 0;
+        try {
+            while (!closed) {
+                byte[] message = poll();
+                if (message == null) {
+                    if (unflushed > 0) {
+                        out.flush();
+                        unflushed = 0;
+                    }
+                    message = start(queue.take());
+                    if (message == null) {
+                        continue;
+                    }
+                    sent(message);
+                }
+                out.write(message);
+                if (++unflushed >= WRITE_BATCH) {
+                    out.flush();
+                    unflushed = 0;
+                }
+            }
+        } catch (InterruptedException e) {
+            // closed
+        } catch (IOException e) {
+            if (!closed) {
+                System.err.println("Write to " + name + " failed: " + e.getMessage());
+            }
+        } finally {
+            closed = true;
+            clear();
+            try {
+                out.close();
+            } catch (IOException e) {
+                // socket already gone
+            }
+        }
+    }
+
+    // A protocol line as text clients read it
+    static byte[] encodeLine(String line) {
+        return (line + "\n").getBytes(LINE_CHARSET);
+    }
+
+    static void recordEviction() {
+        evicted.increment();
+    }
+
+    static void recordResync() {
+        resynced.increment();
+    }
+
+    public static long getEvictedCount() {
+        return evicted.sum();
+    }
+
+    public static long getResyncCount() {
+        return resynced.sum();
+    }
+
+    public static long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    public static long getMaxDepth() {
+        return maxDepth.get();
+    }
+}
@@ -0,0 +1,9 @@
+package Server;
+
+// What happens to a client whose outbound queue fills up
+public enum OverflowPolicy {
+    // Drop everything queued and send the whole document again once it catches up
+    RESYNC,
+    // Close the connection; the client has to reconnect
+    DISCONNECT
+}
@@ -0,0 +1,401 @@
+package Server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import Common.HashRing;
+import Common.Operation;
+import Common.Protocol;
+
+// Hot standby. A primary with editor.replication.port streams every session to the
+// follower connected there; a server started with editor.follow keeps a copy of each
+// session in memory and takes no clients until the primary is gone. Then it promotes
+// itself and clients that list both servers fail over to it and resume, since the
+// sessions keep their epoch, revision and recent history.
+//
+//   HISTORY:<session>:<EDIT line>...            recent ops of an OT session, then
+//   OT:<session>:<epoch>:<revision>:<document>  its state
+//   CRDT:<session>:<state>
+//   OP:<session>:<EDIT or CRDT line>            every commit after that
+//   DROP:<session>
+//   PING                                        when there is nothing else to send
+//
+// The follower answers ACK:<session>:<revision> for OT sessions, and the primary only
+// broadcasts an OT edit (its sender's acknowledgement included) once the follower has
+// it, so a failover loses no edit a client has seen acknowledged. CRDT lines are
+// streamed without waiting: CRDT clients send their ops again anyway.
+public final class Replication {
+    private static final int PING_MS = 250;
+    private static final int QUEUE_CAPACITY = 65_536; // lines; a follower further behind is dropped
+    private static final int CONNECT_TIMEOUT_MS = 1000;
+    private static final int RETRY_MS = 250;
+
+    private static volatile Feed feed; // primary: the follower connected now
+    private static volatile boolean following; // follower: not promoted yet
+
+    private Replication() {
+    }
+
+    // Primary: a follower may connect on `port`; a new one replaces the previous one
+    static void listen(int port) throws IOException {
+        ServerSocket server = new ServerSocket(port);
+        Thread listener = new Thread(() -> {
+            while (!server.isClosed()) {
+                try {
+                    Socket socket = server.accept();
+                    socket.setTcpNoDelay(true);
+                    Feed previous = feed;
+                    if (previous != null) {
+                        previous.close("replaced by a new follower");
+                    }
+                    new Feed(socket).start();
+                } catch (IOException e) {
+                    System.err.println("Replication listener: " + e.getMessage());
+                }
+            }
+        }, "replication-listener");
+        listener.setDaemon(true);
+        listener.start();
+    }
+
+    // A session published on the primary; streamed if a follower is connected
+    static void track(Session session) {
+        Feed current = feed;
+        if (current != null && session.getReplica() != current) {
+            session.attachReplica(current);
+        }
+    }
+
+    // A session hibernated on the primary: the follower keeps its copy
+    static void forget(Session session) {
+        Feed attached = session.getReplica();
+        if (attached != null) {
+            attached.forget(session);
+        }
+    }
+
+    // A session gone from the primary for good
+    static void dropped(String sessionID) {
+        Feed current = feed;
+        if (current != null) {
+            current.drop(sessionID);
+        }
+    }
+
+    static boolean isFollowing() {
+        return following;
+    }
+
+    public static String describe() {
+        if (!ServerConfig.FOLLOW.isEmpty()) {
+            return "follower of " + ServerConfig.FOLLOW + ", promoted after " + ServerConfig.FOLLOW_TIMEOUT_MS
+                    + " ms of silence" + (ServerConfig.REPLICATION_PORT > 0
+                            ? "; then streams to a follower on port " + ServerConfig.REPLICATION_PORT : "");
+        }
+        return ServerConfig.REPLICATION_PORT > 0 ? "streams to a follower on port " + ServerConfig.REPLICATION_PORT
+                : "off";
+    }
+
+    // Primary side of one follower connection: a writer thread drains the queue, a
+    // reader thread takes the acknowledgements
+    static final class Feed {
+        private final Socket socket;
+        private final LinkedBlockingQueue<Object> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+        private final ConcurrentHashMap<String, Session> attached = new ConcurrentHashMap<>();
+        private volatile boolean open = true;
+
+        // An OT session's state, encoded by the writer rather than on the sequencer
+        private static final class Start {
+            final String sessionID;
+            final SessionMigration.State state;
+
+            Start(String sessionID, SessionMigration.State state) {
+                this.sessionID = sessionID;
+                this.state = state;
+            }
+        }
+
+        Feed(Socket socket) {
+            this.socket = socket;
+        }
+
+        void start() {
+            Thread writer = new Thread(this::writeLoop, "replication-writer");
+            writer.setDaemon(true);
+            writer.start();
+            Thread reader = new Thread(this::readLoop, "replication-reader");
+            reader.setDaemon(true);
+            reader.start();
+            feed = this;
+            List<Session> sessions = SessionManager.getAllSessions();
+            for (Session session : sessions) {
+                session.attachReplica(this);
+            }
+            System.out.println("Follower " + socket.getRemoteSocketAddress() + " connected; streaming "
+                    + sessions.size() + " sessions");
+        }
+
+        boolean isOpen() {
+            return open;
+        }
+
+        // OT sessions call these on their sequencer, so a session's lines stay in order
+        void start(Session session, SessionMigration.State state) {
+            attached.put(session.getSessionID(), session);
+            offer(new Start(session.getSessionID(), state));
+        }
+
+        void startCrdt(Session session, String state) {
+            attached.put(session.getSessionID(), session);
+            offer("CRDT:" + encode(session.getSessionID()) + ":" + state);
+        }
+
+        void ship(String sessionID, String record) {
+            offer("OP:" + encode(sessionID) + ":" + record);
+        }
+
+        void drop(String sessionID) {
+            attached.remove(sessionID);
+            offer("DROP:" + encode(sessionID));
+        }
+
+        void forget(Session session) {
+            attached.remove(session.getSessionID(), session);
+        }
+
+        private void offer(Object line) {
+            if (open && !queue.offer(line)) {
+                close("follower fell " + QUEUE_CAPACITY + " lines behind");
+            }
+        }
+
+        private void writeLoop() {
+            try {
+                Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(),
+                        StandardCharsets.UTF_8));
+                while (open) {
+                    Object next = queue.poll(PING_MS, TimeUnit.MILLISECONDS);
+                    if (next == null) {
+                        writeLine(out, "PING");
+                    }
+                    while (next != null) {
+                        write(out, next);
+                        next = queue.poll();
+                    }
+                    out.flush();
+                }
+            } catch (IOException e) {
+                close(e.getMessage());
+            } catch (InterruptedException e) {
+                close("interrupted");
+            }
+        }
+
+        private static void write(Writer out, Object next) throws IOException {
+            if (!(next instanceof Start)) {
+                writeLine(out, (String) next);
+                return;
+            }
+            Start start = (Start) next;
+            String id = encode(start.sessionID);
+            for (Operation op : start.state.history) {
+                writeLine(out, "HISTORY:" + id + ":" + Protocol.formatEdit(op));
+            }
+            writeLine(out, "OT:" + id + ":" + start.state.epoch + ":" + start.state.revision + ":"
+                    + URLEncoder.encode(start.state.document.toString(), StandardCharsets.UTF_8));
+        }
+
+        private void readLoop() {
+            try {
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                        StandardCharsets.UTF_8));
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] parts = line.split(":");
+                    if (parts.length != 3 || !parts[0].equals("ACK")) {
+                        continue;
+                    }
+                    Session session = attached.get(decode(parts[1]));
+                    if (session != null) {
+                        session.replicated(this, Long.parseLong(parts[2]));
+                    }
+                }
+                close("connection closed");
+            } catch (IOException | RuntimeException e) {
+                close(e.getMessage());
+            }
+        }
+
+        // Edits held for this follower go out without it
+        void close(String reason) {
+            synchronized (this) {
+                if (!open) {
+                    return;
+                }
+                open = false;
+            }
+            if (feed == this) {
+                feed = null;
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+            for (Session session : attached.values()) {
+                session.detachReplica(this);
+            }
+            attached.clear();
+            queue.clear();
+            System.err.println("Follower " + socket.getRemoteSocketAddress() + " disconnected: " + reason);
+        }
+    }
+
+    // Follower: mirrors the primary until it is gone, then returns so this server can
+    // take clients. Until it has been connected once it keeps retrying.
+    static void follow(String primary) {
+        following = true;
+        boolean connected = false;
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(HashRing.host(primary), HashRing.port(primary)),
+                        CONNECT_TIMEOUT_MS);
+                socket.setSoTimeout(ServerConfig.FOLLOW_TIMEOUT_MS);
+                socket.setTcpNoDelay(true);
+                connected = true;
+                System.out.println("Following " + primary);
+                receive(new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)),
+                        new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)));
+            } catch (SocketTimeoutException e) {
+                promote(primary, "silent for " + ServerConfig.FOLLOW_TIMEOUT_MS + " ms");
+                return;
+            } catch (IOException e) {
+                if (connected) {
+                    promote(primary, e.getMessage());
+                    return;
+                }
+            } catch (RuntimeException e) {
+                // Our copy no longer matches; a new connection streams everything again
+                System.err.println("Replication stream from " + primary + " is inconsistent, reconnecting: "
+                        + e.getMessage());
+                connected = false;
+            }
+            try {
+                Thread.sleep(RETRY_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // Applies the stream; acknowledgements go out whenever the input runs dry
+    private static void receive(BufferedReader in, Writer out) throws IOException {
+        Map<String, List<Operation>> histories = new HashMap<>();
+        Map<String, Long> acks = new LinkedHashMap<>();
+        String line;
+        while ((line = in.readLine()) != null) {
+            apply(line, histories, acks);
+            if (!acks.isEmpty() && !in.ready()) {
+                for (Map.Entry<String, Long> ack : acks.entrySet()) {
+                    writeLine(out, "ACK:" + ack.getKey() + ":" + ack.getValue());
+                }
+                out.flush();
+                acks.clear();
+            }
+        }
+        throw new EOFException("primary closed the connection");
+    }
+
+    private static void apply(String line, Map<String, List<Operation>> histories, Map<String, Long> acks) {
+        if (line.equals("PING")) {
+            return;
+        }
+        String[] parts = line.split(":", 3);
+        if (parts.length < 2) {
+            throw new IllegalStateException("bad line " + line);
+        }
+        String id = decode(parts[1]);
+        switch (parts[0]) {
+            case "HISTORY":
+                histories.computeIfAbsent(id, key -> new ArrayList<>()).add(Protocol.parseEdit(parts[2]));
+                break;
+            case "OT": {
+                String[] state = parts[2].split(":", 3);
+                Session session = new Session(id, SessionMode.OT, null);
+                List<Operation> history = histories.remove(id);
+                session.restoreMigrated(new SessionMigration.State(state[0], Long.parseLong(state[1]),
+                        URLDecoder.decode(state[2], StandardCharsets.UTF_8),
+                        history != null ? history : Collections.<Operation>emptyList()));
+                SessionManager.replicaStarted(session);
+                acks.put(parts[1], session.getRevision());
+                break;
+            }
+            case "CRDT": {
+                Session session = new Session(id, SessionMode.CRDT, null);
+                session.restore(new SessionSnapshot(SessionMode.CRDT, 0, 0, parts[2]));
+                SessionManager.replicaStarted(session);
+                break;
+            }
+            case "OP": {
+                Session session = SessionManager.getSession(id);
+                if (session == null) {
+                    throw new IllegalStateException("op for unknown session " + id);
+                }
+                session.replay(parts[2]);
+                if (session.getMode() == SessionMode.OT) {
+                    acks.put(parts[1], session.getRevision());
+                }
+                break;
+            }
+            case "DROP":
+                SessionManager.replicaDropped(id);
+                break;
+            default:
+                throw new IllegalStateException("bad line " + line);
+        }
+    }
+
+    private static void promote(String primary, String reason) {
+        long start = System.nanoTime();
+        following = false;
+        SessionManager.promoted();
+        System.out.println("Primary " + primary + " lost (" + reason + "); promoted with "
+                + SessionManager.getActiveSessionCount() + " sessions in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    private static void writeLine(Writer out, String line) throws IOException {
+        out.write(line);
+        out.write('\n');
+    }
+
+    private static String encode(String sessionID) {
+        return URLEncoder.encode(sessionID, StandardCharsets.UTF_8);
+    }
+
+    private static String decode(String encoded) {
+        return URLDecoder.decode(encoded, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,210 @@
+package Server;
+
+// Immutable, height-balanced (AVL) rope. Every edit returns a new Rope that shares all
+// untouched subtrees with the old one, so a Rope is its own snapshot.
+public final class Rope implements CharSequence {
+    static final int MAX_LEAF = 512;
+
+    public static final Rope EMPTY = new Rope("");
+
+    private final String text; // leaf only
+    private final Rope left; // node only
+    private final Rope right; // node only
+    private final int length;
+    private final int height;
+
+    private Rope(String text) {
+        this.text = text;
+        this.left = null;
+        this.right = null;
+        this.length = text.length();
+        this.height = 0;
+    }
+
+    private Rope(Rope left, Rope right) {
+        this.text = null;
+        this.left = left;
+        this.right = right;
+        this.length = left.length + right.length;
+        this.height = 1 + Math.max(left.height, right.height);
+    }
+
+    public static Rope of(String text) {
+        return text.isEmpty() ? EMPTY : build(text, 0, text.length());
+    }
+
+    private static Rope build(String text, int from, int to) {
+        if (to - from <= MAX_LEAF) {
+            return new Rope(text.substring(from, to));
+        }
+        int mid = (from + to) >>> 1;
+        return new Rope(build(text, from, mid), build(text, mid, to));
+    }
+
+    private boolean isLeaf() {
+        return text != null;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("index " + index + " length " + length);
+        }
+        Rope node = this;
+        while (!node.isLeaf()) {
+            if (index < node.left.length) {
+                node = node.left;
+            } else {
+                index -= node.left.length;
+                node = node.right;
+            }
+        }
+        return node.text.charAt(index);
+    }
+
+    @Override
+    public Rope subSequence(int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("range " + start + ".." + end + " length " + length);
+        }
+        if (start == 0 && end == length) {
+            return this;
+        }
+        return split(end)[0].split(start)[1];
+    }
+
+    public Rope insert(int pos, String insertText) {
+        if (pos < 0 || pos > length) {
+            throw new IndexOutOfBoundsException("position " + pos + " length " + length);
+        }
+        if (insertText.isEmpty()) {
+            return this;
+        }
+        Rope[] halves = split(pos);
+        // Typing usually lands next to an existing leaf; extend it instead of adding a node
+        Rope head = insertText.length() <= MAX_LEAF ? appendToLastLeaf(halves[0], insertText) : null;
+        if (head != null) {
+            return join(head, halves[1]);
+        }
+        Rope tail = insertText.length() <= MAX_LEAF ? prependToFirstLeaf(halves[1], insertText) : null;
+        if (tail != null) {
+            return join(halves[0], tail);
+        }
+        return join(join(halves[0], of(insertText)), halves[1]);
+    }
+
+    public Rope delete(int pos, int count) {
+        if (pos < 0 || count < 0 || pos + count > length) {
+            throw new IndexOutOfBoundsException("range " + pos + "+" + count + " length " + length);
+        }
+        if (count == 0) {
+            return this;
+        }
+        Rope[] head = split(pos);
+        Rope[] tail = head[1].split(count);
+        return join(head[0], tail[1]);
+    }
+
+    // Returns {[0, index), [index, length)}
+    private Rope[] split(int index) {
+        if (index <= 0) {
+            return new Rope[] { EMPTY, this };
+        }
+        if (index >= length) {
+            return new Rope[] { this, EMPTY };
+        }
+        if (isLeaf()) {
+            return new Rope[] { new Rope(text.substring(0, index)), new Rope(text.substring(index)) };
+        }
+        if (index < left.length) {
+            Rope[] parts = left.split(index);
+            return new Rope[] { parts[0], join(parts[1], right) };
+        }
+        Rope[] parts = right.split(index - left.length);
+        return new Rope[] { join(left, parts[0]), parts[1] };
+    }
+
+    private static Rope join(Rope a, Rope b) {
+        if (a.length == 0) {
+            return b;
+        }
+        if (b.length == 0) {
+            return a;
+        }
+        if (a.height > b.height + 1) {
+            return balance(a.left, join(a.right, b));
+        }
+        if (b.height > a.height + 1) {
+            return balance(join(a, b.left), b.right);
+        }
+        if (a.isLeaf() && b.isLeaf() && a.length + b.length <= MAX_LEAF) {
+            return new Rope(a.text + b.text);
+        }
+        return new Rope(a, b);
+    }
+
+    // Children come from a join, so their heights differ by at most two
+    private static Rope balance(Rope l, Rope r) {
+        if (l.height > r.height + 1) {
+            if (l.left.height >= l.right.height) {
+                return new Rope(l.left, new Rope(l.right, r));
+            }
+            return new Rope(new Rope(l.left, l.right.left), new Rope(l.right.right, r));
+        }
+        if (r.height > l.height + 1) {
+            if (r.right.height >= r.left.height) {
+                return new Rope(new Rope(l, r.left), r.right);
+            }
+            return new Rope(new Rope(l, r.left.left), new Rope(r.left.right, r.right));
+        }
+        return new Rope(l, r);
+    }
+
+    // Path-copies the rightmost leaf with extra text, or returns null if it would overflow
+    private static Rope appendToLastLeaf(Rope rope, String extra) {
+        if (rope.length == 0) {
+            return null;
+        }
+        if (rope.isLeaf()) {
+            return rope.length + extra.length() <= MAX_LEAF ? new Rope(rope.text + extra) : null;
+        }
+        Rope newRight = appendToLastLeaf(rope.right, extra);
+        return newRight == null ? null : new Rope(rope.left, newRight);
+    }
+
+    private static Rope prependToFirstLeaf(Rope rope, String extra) {
+        if (rope.length == 0) {
+            return null;
+        }
+        if (rope.isLeaf()) {
+            return rope.length + extra.length() <= MAX_LEAF ? new Rope(extra + rope.text) : null;
+        }
+        Rope newLeft = prependToFirstLeaf(rope.left, extra);
+        return newLeft == null ? null : new Rope(newLeft, rope.right);
+    }
+
+    @Override
+    public String toString() {
+        if (isLeaf()) {
+            return text;
+        }
+        StringBuilder sb = new StringBuilder(length);
+        appendTo(sb);
+        return sb.toString();
+    }
+
+    private void appendTo(StringBuilder sb) {
+        Rope node = this;
+        // Recurse on the left, loop on the right to keep the stack shallow
+        while (!node.isLeaf()) {
+            node.left.appendTo(sb);
+            node = node.right;
+        }
+        sb.append(node.text);
+    }
+}
@@ -0,0 +1,26 @@
+package Server;
+
+// O(log n) inserts and deletes; snapshots are free because the rope is immutable.
+public class RopeDocument implements Document {
+    private Rope rope = Rope.EMPTY;
+
+    @Override
+    public int length() {
+        return rope.length();
+    }
+
+    @Override
+    public void insert(int pos, String text) {
+        rope = rope.insert(pos, text);
+    }
+
+    @Override
+    public void delete(int pos, int length) {
+        rope = rope.delete(pos, length);
+    }
+
+    @Override
+    public CharSequence snapshot() {
+        return rope;
+    }
+}
@@ -0,0 +1,99 @@
+package Server;
+
+// Server tunables, overridable with -D system properties at launch
+public final class ServerConfig {
+    // Port clients connect to
+    public static final int PORT = Integer.getInteger("editor.port", 12345);
+
+    // -Deditor.document.engine=ROPE|STRING_BUILDER
+    public static final DocumentEngine DOCUMENT_ENGINE = DocumentEngine.valueOf(
+            System.getProperty("editor.document.engine", "ROPE").trim().toUpperCase());
+
+    // Mode for new sessions unless the creating client asks for one (mode=ot|crdt)
+    public static final SessionMode DEFAULT_SESSION_MODE = SessionMode.parse(
+            System.getProperty("editor.session.mode"), SessionMode.OT);
+
+    // Committed ops kept per session for transforming late edits; older bases force a resync
+    public static final int HISTORY_SIZE = Integer.getInteger("editor.history.size", 10_000);
+
+    // Pool threads that drain session command queues; each session uses one at a time
+    public static final int SEQUENCER_THREADS = Integer.getInteger("editor.sequencer.threads",
+            Runtime.getRuntime().availableProcessors());
+
+    // -Deditor.transport=NIO|BLOCKING|VIRTUAL. BLOCKING is one pooled thread per client,
+    // VIRTUAL one virtual thread per client and needs JDK 21.
+    public static final Transport TRANSPORT = transport(System.getProperty("editor.transport", "NIO"));
+
+    // Event-loop threads of the NIO transport
+    public static final int NIO_THREADS = Integer.getInteger("editor.nio.threads",
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors())));
+
+    // Lines buffered per client before the overflow policy kicks in
+    public static final int OUTBOUND_QUEUE_CAPACITY = Integer.getInteger("editor.outbound.capacity", 4096);
+
+    // -Deditor.outbound.overflow=RESYNC|DISCONNECT
+    public static final OverflowPolicy OUTBOUND_OVERFLOW = OverflowPolicy.valueOf(
+            System.getProperty("editor.outbound.overflow", "RESYNC").trim().toUpperCase());
+
+    // Longest broadcast tick in ms for OT sessions; edits committed within a tick go to
+    // each client as one write. 0 sends every edit on its own.
+    public static final int BROADCAST_TICK_MS = Integer.getInteger("editor.broadcast.tick.ms", 0);
+
+    // Directory of the per-session write-ahead logs; sessions left there are recovered at
+    // startup. Empty (the default) keeps sessions in memory only.
+    public static final String WAL_DIR = System.getProperty("editor.wal.dir", "").trim();
+
+    // 0 forces the log before an OT edit is broadcast, one fsync for all edits queued
+    // meanwhile; N > 0 broadcasts straight away and forces the log every N ms
+    public static final int WAL_SYNC_MS = Integer.getInteger("editor.wal.sync.ms", 0);
+
+    // How often sessions are checked for a snapshot, in seconds. A session whose log has
+    // grown by editor.snapshot.min.records since its last snapshot gets a new one and
+    // the log before it is deleted, so a restart replays at most that much.
+    public static final int SNAPSHOT_INTERVAL_S = Integer.getInteger("editor.snapshot.interval.s", 60);
+    public static final int SNAPSHOT_MIN_RECORDS = Integer.getInteger("editor.snapshot.min.records", 10_000);
+
+    // Heap budget in MB for the text of the sessions in memory. Above it, sessions without
+    // clients are hibernated to disk, least recently active first, and reloaded when a
+    // client joins them; empty sessions are then kept until they expire rather than
+    // deleted. With a write-ahead log they go to its directory, otherwise to a temporary
+    // one. 0 (the default) keeps every session in memory.
+    public static final int MEMORY_BUDGET_MB = Integer.getInteger("editor.memory.budget.mb", 0);
+
+    // Cluster mode: the host:port of every node, comma-separated, in the form clients
+    // reach them. Empty (the default) runs a single server. This node's own entry is
+    // editor.cluster.self; a process that is not on the list only redirects.
+    public static final String CLUSTER_NODES = System.getProperty("editor.cluster.nodes", "").trim();
+    public static final String CLUSTER_SELF = System.getProperty("editor.cluster.self", "localhost:" + PORT).trim();
+    // Cluster mode: a session committing at least this many commands per second is moved,
+    // live, to the least loaded node if that evens things out. Checked every 10 seconds.
+    // 0 (the default) never migrates.
+    public static final int MIGRATE_HOT_OPS = Integer.getInteger("editor.migrate.hot.ops", 0);
+
+    // Hot standby: a follower may connect on this port and is streamed every session;
+    // OT edits are broadcast once it has them. 0 (the default) runs without one.
+    public static final int REPLICATION_PORT = Integer.getInteger("editor.replication.port", 0);
+    // Follower mode: host:port of the primary's editor.replication.port. The server
+    // mirrors it and takes clients once it has been gone for editor.follow.timeout.ms
+    // (or at once if its connection drops).
+    public static final String FOLLOW = System.getProperty("editor.follow", "").trim();
+    public static final int FOLLOW_TIMEOUT_MS = Integer.getInteger("editor.follow.timeout.ms", 1000);
+
+    // Port of the Prometheus metrics endpoint (GET /metrics). 0 (the default) serves none.
+    public static final int METRICS_PORT = Integer.getInteger("editor.metrics.port", 0);
+
+    // -Deditor.debug=true logs every operation and the resulting buffer (slow on large documents)
+    public static final boolean DEBUG = Boolean.getBoolean("editor.debug");
+
+    private ServerConfig() {
+    }
+
+    private static Transport transport(String value) {
+        Transport transport = Transport.valueOf(value.trim().toUpperCase());
+        if (transport == Transport.VIRTUAL && !VirtualThreads.isSupported()) {
+            System.err.println("Virtual threads need JDK 21 or later; using BLOCKING transport");
+            return Transport.BLOCKING;
+        }
+        return transport;
+    }
+}
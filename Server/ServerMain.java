@@ -8,22 +8,21 @@ import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class ServerMain {
-    private static final int PORT = 12345;
+    private static final int PORT = ServerConfig.PORT;
     private static final int MAX_CLIENTS = 100;
-    private static final int STATS_INTERVAL_MINUTES = 5;
 
     private static final AtomicInteger totalConnectionsCount = new AtomicInteger(0);
     private static final AtomicInteger currentConnectionsCount = new AtomicInteger(0);
     private static final LocalDateTime serverStartTime = LocalDateTime.now();
 
     private static ExecutorService clientPool;
-    private static ScheduledExecutorService statsExecutor;
     private static ServerSocket serverSocket;
+    private static NioServer nioServer;
 
     public static void main(String[] args) throws IOException {
         System.out.println("===========================================");
@@ -32,7 +31,13 @@ public class ServerMain {
         System.out.println(
                 "Server starting at: " + serverStartTime.format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")));
         System.out.println("Port: " + PORT);
-        System.out.println("Max Clients: " + MAX_CLIENTS);
+        System.out.println("Transport: " + ServerConfig.TRANSPORT + describeTransport());
+        System.out.println("Document engine: " + ServerConfig.DOCUMENT_ENGINE);
+        System.out.println("Default session mode: " + ServerConfig.DEFAULT_SESSION_MODE);
+        System.out.println("Cluster: " + Cluster.describe());
+        System.out.println("Replication: " + Replication.describe());
+        System.out.println("Outbound queue: " + ServerConfig.OUTBOUND_QUEUE_CAPACITY + " lines, on overflow "
+                + ServerConfig.OUTBOUND_OVERFLOW);
 
         // ADDED: Show server IP addresses
         try {
@@ -46,11 +51,12 @@ public class ServerMain {
         System.out.println("===========================================\n");
 
         // Initialize components
-        clientPool = Executors.newFixedThreadPool(MAX_CLIENTS);
         SessionManager.init();
 
-        // Start statistics reporting
-        startStatsReporting();
+        // Counters and histograms for scrapers; nothing is dumped to the console
+        if (ServerConfig.METRICS_PORT > 0) {
+            Metrics.start(ServerConfig.METRICS_PORT);
+        }
 
         // Add shutdown hook
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
@@ -62,52 +68,24 @@ public class ServerMain {
         }));
 
         try {
-            // FIXED: Bind to all network interfaces (0.0.0.0) instead of localhost
-            serverSocket = new ServerSocket(PORT);
-            // Alternative explicit binding:
-            // serverSocket = new ServerSocket(PORT, 50, InetAddress.getByName("0.0.0.0"));
-
-            System.out.println(" Server started successfully on port " + PORT);
-            System.out.println(" Server is accessible from other devices on the network");
-            System.out.println(" Clients can connect using this machine's IP address");
-            System.out.println(" Waiting for client connections...\n");
-
-            while (true) {
-                try {
-                    Socket clientSocket = serverSocket.accept();
-
-                    // Update connection counters
-                    int totalConnections = totalConnectionsCount.incrementAndGet();
-                    int currentConnections = currentConnectionsCount.incrementAndGet();
-
-                    System.out.println("New client connected: " + clientSocket.getInetAddress());
-                    System.out.println("   Current connections: " + currentConnections);
-                    System.out.println("   Total connections since start: " + totalConnections);
-
-                    // Create and execute client handler
-                    ClientHandler clientHandler = new ClientHandler(clientSocket) {
-                        @Override
-                        public void run() {
-                            try {
-                                super.run();
-                            } finally {
-                                // Decrement current connections when client disconnects
-                                int remaining = currentConnectionsCount.decrementAndGet();
-                                System.out.println("Client disconnected: " + clientSocket.getInetAddress());
-                                System.out.println("   Remaining connections: " + remaining);
-                            }
-                        }
-                    };
-
-                    clientPool.execute(clientHandler);
-
-                } catch (IOException e) {
-                    if (!serverSocket.isClosed()) {
-                        System.err.println("Error accepting client connection: " + e.getMessage());
-                    }
-                }
+            if (!ServerConfig.FOLLOW.isEmpty()) {
+                // No clients until the primary is gone
+                Replication.follow(ServerConfig.FOLLOW);
+            }
+            if (ServerConfig.REPLICATION_PORT > 0) {
+                Replication.listen(ServerConfig.REPLICATION_PORT);
+            }
+            if (ServerConfig.TRANSPORT == Transport.NIO) {
+                nioServer = new NioServer(PORT, ServerConfig.NIO_THREADS);
+                printStarted();
+                nioServer.acceptLoop();
+            } else {
+                runBlocking();
             }
         } catch (IOException e) {
+            if ((serverSocket != null && serverSocket.isClosed()) || (nioServer != null && !nioServer.isOpen())) {
+                return; // shut down
+            }
             System.err.println(" Server error: " + e.getMessage());
             System.err.println("   Make sure port " + PORT + " is not already in use");
             System.err.println("   Check if firewall is blocking the port");
@@ -116,30 +94,97 @@ public class ServerMain {
         }
     }
 
-    private static void startStatsReporting() {
-        statsExecutor = Executors.newScheduledThreadPool(1);
-        statsExecutor.scheduleAtFixedRate(
-                ServerMain::printServerStats,
-                STATS_INTERVAL_MINUTES,
-                STATS_INTERVAL_MINUTES,
-                TimeUnit.MINUTES);
+    private static void printStarted() {
+        System.out.println(" Server started successfully on port " + PORT);
+        System.out.println(" Server is accessible from other devices on the network");
+        System.out.println(" Clients can connect using this machine's IP address");
+        System.out.println(" Waiting for client connections...\n");
     }
 
-    private static void printServerStats() {
-        System.out.println("\n SERVER STATISTICS");
-        System.out.println("===========================================");
-        System.out.println("Server uptime: " + getUptime());
-        System.out.println("Current connections: " + currentConnectionsCount.get());
-        System.out.println("Total connections: " + totalConnectionsCount.get());
-        System.out.println("Active sessions: " + SessionManager.getActiveSessionCount());
-        System.out.println("Total active clients: " + SessionManager.getTotalActiveClients());
-        System.out.println(
-                "Thread pool active: " + ((java.util.concurrent.ThreadPoolExecutor) clientPool).getActiveCount());
-        System.out.println("Free memory: " + Runtime.getRuntime().freeMemory() / 1024 / 1024 + " MB");
-        System.out.println("===========================================");
+    private static String describeTransport() {
+        switch (ServerConfig.TRANSPORT) {
+            case NIO:
+                return " (" + ServerConfig.NIO_THREADS + " event loops)";
+            case VIRTUAL:
+                return " (virtual thread per client)";
+            default:
+                return " (max " + MAX_CLIENTS + " clients)";
+        }
+    }
+
+    // Thread per connection. With platform threads, clients beyond MAX_CLIENTS wait in
+    // the pool's queue; virtual threads are started for every client.
+    private static void runBlocking() throws IOException {
+        if (ServerConfig.TRANSPORT != Transport.VIRTUAL) {
+            clientPool = Executors.newFixedThreadPool(MAX_CLIENTS);
+        }
+        // FIXED: Bind to all network interfaces (0.0.0.0) instead of localhost
+        serverSocket = new ServerSocket(PORT);
+        // Alternative explicit binding:
+        // serverSocket = new ServerSocket(PORT, 50, InetAddress.getByName("0.0.0.0"));
+        printStarted();
+
+        while (true) {
+            try {
+                Socket clientSocket = serverSocket.accept();
+                String address = String.valueOf(clientSocket.getInetAddress());
+                connectionOpened(address);
+
+                // Create and execute client handler
+                ClientHandler clientHandler = new ClientHandler(clientSocket) {
+                    @Override
+                    public void run() {
+                        try {
+                            super.run();
+                        } finally {
+                            // Decrement current connections when client disconnects
+                            connectionClosed(address);
+                        }
+                    }
+                };
 
-        // Print detailed session information
-        SessionManager.printSessionStats();
+                if (clientPool != null) {
+                    clientPool.execute(clientHandler);
+                } else {
+                    VirtualThreads.start("client-" + totalConnectionsCount.get(), clientHandler);
+                }
+
+            } catch (IOException e) {
+                if (serverSocket.isClosed()) {
+                    return;
+                }
+                System.err.println("Error accepting client connection: " + e.getMessage());
+            }
+        }
+    }
+
+    // Connection counters shared by both transports
+    static void connectionOpened(String address) {
+        int totalConnections = totalConnectionsCount.incrementAndGet();
+        int currentConnections = currentConnectionsCount.incrementAndGet();
+
+        System.out.println("New client connected: " + address);
+        System.out.println("   Current connections: " + currentConnections);
+        System.out.println("   Total connections since start: " + totalConnections);
+    }
+
+    static void connectionClosed(String address) {
+        int remaining = currentConnectionsCount.decrementAndGet();
+        System.out.println("Client disconnected: " + address);
+        System.out.println("   Remaining connections: " + remaining);
+    }
+
+    static int getTotalConnections() {
+        return totalConnectionsCount.get();
+    }
+
+    static int getCurrentConnections() {
+        return currentConnectionsCount.get();
+    }
+
+    // Pool threads serving a client right now; -1 unless the transport is BLOCKING
+    static int getActivePoolThreads() {
+        return clientPool instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) clientPool).getActiveCount() : -1;
     }
 
     private static String getUptime() {
@@ -158,6 +203,10 @@ public class ServerMain {
                 serverSocket.close();
                 System.out.println(" Server socket closed");
             }
+            if (nioServer != null && nioServer.isOpen()) {
+                nioServer.close();
+                System.out.println(" Event loops closed");
+            }
 
             // Shutdown client pool
             if (clientPool != null) {
@@ -168,14 +217,7 @@ public class ServerMain {
                 System.out.println(" Client thread pool shut down");
             }
 
-            // Shutdown stats executor
-            if (statsExecutor != null) {
-                statsExecutor.shutdown();
-                if (!statsExecutor.awaitTermination(2, TimeUnit.SECONDS)) {
-                    statsExecutor.shutdownNow();
-                }
-                System.out.println(" Statistics executor shut down");
-            }
+            Metrics.stop();
 
             // Shutdown session manager
             SessionManager.shutdown();
@@ -2,47 +2,550 @@ package Server;
 
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
+import Common.Operation;
+import Common.OperationTransformer;
+import Common.Protocol;
+import Common.WireFormat;
+
+// Edits, chat and membership changes are queued on the session's sequencer and applied
+// by a single writer, so reader threads hand work off and return immediately. Fields
+// that other threads read (revision, length, activity) are volatile.
 public class Session {
     private final String sessionID;
-    private final StringBuilder buffer = new StringBuilder();
-    private final List<ClientHandler> clients = new ArrayList<>();
+    private final SessionMode mode;
+    private final Document document; // OT mode, sequencer only
+    private final CrdtEngine crdt; // CRDT mode
+    private final SessionSequencer sequencer;
+    // Copy-on-write so stats and the CRDT path can read it from any thread
+    private final List<ClientHandler> clients = new CopyOnWriteArrayList<>();
     private final ConcurrentHashMap<String, ClientHandler> clientMap = new ConcurrentHashMap<>();
+    // Client ids interned to small numbers for binary frames; never reused
+    private final ConcurrentHashMap<String, Integer> clientNumbers = new ConcurrentHashMap<>();
+    private final AtomicInteger nextClientNumber = new AtomicInteger();
+    private final OperationLog history = new OperationLog(ServerConfig.HISTORY_SIZE);
+    // Names this incarnation of the session; a reconnecting client may only resume from
+    // revisions of the same epoch. A migrated session keeps its epoch on the new node.
+    private String epoch = Long.toHexString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE);
+    // Broadcast ticks (OT mode with editor.broadcast.tick.ms > 0): committed edits wait
+    // here, sequencer only
+    private final BroadcastTick tick;
+    private final List<Operation> pendingEdits = new ArrayList<>();
+    private boolean tickScheduled;
+    // Write-ahead log, null unless editor.wal.dir is set. With editor.wal.sync.ms=0 an OT
+    // edit is applied straight away but only broadcast once the log is forced; until then
+    // it waits in `unsynced`, and joining clients get the document as of the last forced
+    // edit. Sequencer only.
+    private final SessionLog log;
+    private final boolean syncBeforeBroadcast;
+    private final ArrayDeque<Unsynced> unsynced = new ArrayDeque<>();
+    private CharSequence syncedDocument;
+    private long forcedRevision;
+    // Hot standby: the follower this session is streamed to. While one is attached, OT
+    // edits also wait in `unsynced` until it has acknowledged them, so no client sees an
+    // edit a failover could lose. Sequencer only, `replica` aside.
+    private volatile Replication.Feed replica;
+    private long replicatedRevision;
+    private volatile long revision;
+    private volatile int documentLength;
     private final LocalDateTime createdAt;
-    private LocalDateTime lastActivity;
+    private final long createdNanos;
+    private volatile long lastActivityNanos; // System.nanoTime(), cheap on the edit path
+    private final LongAdder commits = new LongAdder(); // edits committed, for the metrics
+    // Clients that joined through SessionManager and have not left yet, counted before
+    // their join is queued; a session is only hibernated while this is 0
+    private final AtomicInteger holders = new AtomicInteger();
+    // Live migration (OT mode). While `migrating`, edits, chat, resyncs and joins wait in
+    // `held`; once the session runs on `movedTo` they are replayed, which drops the edits
+    // (their senders resend them to the new node) and answers joins with MOVED:.
+    // If the migration fails they run here as usual. Sequencer only, `movedTo` aside.
+    private boolean migrating;
+    private final List<Runnable> held = new ArrayList<>();
+    private volatile String movedTo;
+    // The log failed: nothing more can be acknowledged, so the session serves nobody
+    private volatile boolean logFailed;
+
+    // A committed edit and the document right after it, held until the log is forced
+    private static final class Unsynced {
+        final Operation op;
+        final CharSequence document;
+
+        Unsynced(Operation op, CharSequence document) {
+            this.op = op;
+            this.document = document;
+        }
+    }
 
     public Session(String sessionID) {
+        this(sessionID, SessionMode.OT);
+    }
+
+    public Session(String sessionID, SessionMode mode) {
+        this(sessionID, mode, null);
+    }
+
+    public Session(String sessionID, SessionMode mode, SessionLog log) {
         this.sessionID = sessionID;
+        this.mode = mode;
+        this.document = mode == SessionMode.OT ? ServerConfig.DOCUMENT_ENGINE.newDocument() : null;
+        this.crdt = mode == SessionMode.CRDT ? new CrdtEngine(this) : null;
+        this.tick = mode == SessionMode.OT && ServerConfig.BROADCAST_TICK_MS > 0
+                ? new BroadcastTick(ServerConfig.BROADCAST_TICK_MS)
+                : null;
+        this.sequencer = new SessionSequencer(sessionID);
+        this.log = log;
+        this.syncBeforeBroadcast = log != null && mode == SessionMode.OT && ServerConfig.WAL_SYNC_MS == 0;
+        if (log != null) {
+            log.setListener(new SessionLog.Listener() {
+                @Override
+                public void durable(long revision) {
+                    if (syncBeforeBroadcast) {
+                        sequencer.submit(() -> synced(revision));
+                    }
+                }
+
+                @Override
+                public void failed() {
+                    logFailed = true;
+                    sequencer.submit(Session.this::stopServing);
+                }
+            });
+        }
         this.createdAt = LocalDateTime.now();
-        this.lastActivity = LocalDateTime.now();
+        this.createdNanos = System.nanoTime();
+        this.lastActivityNanos = createdNanos;
     }
 
-    public synchronized void insertText(int pos, String text) {
-        if (pos < 0 || pos > buffer.length()) {
-            pos = buffer.length();
+    // Queues a positional edit. In OT mode it is transformed against everything committed
+    // since its base revision, applied and broadcast; in CRDT mode the CrdtEngine
+    // translates it.
+    public void submitEdit(Operation op, ClientHandler sender) {
+        if (crdt != null) {
+            sequencer.submit(() -> crdt.applyPositional(op));
+            return;
         }
-        buffer.insert(pos, text);
-        updateLastActivity();
+        sequencer.submit(() -> whileServing(() -> {
+            List<Operation> committed = transformAndApply(op);
+            if (committed == null) {
+                // Base revision fell out of the session history; the client has to start over
+                System.out.println("Resyncing " + sender.getClientName() + ": revision " + op.getRevision()
+                        + " is too old");
+                resyncNow(sender);
+                return;
+            }
+            if (ServerConfig.DEBUG) {
+                System.out.println("Processed " + op + " from " + sender.getClientName() + " as " + committed);
+                System.out.println("Buffer is now: '" + document.snapshot() + "'");
+            }
+        }));
     }
 
-    public synchronized void deleteText(int pos, int length) {
-        if (pos >= 0 && pos < buffer.length() && length > 0) {
-            // Ensure we don't delete beyond the buffer
-            int actualLength = Math.min(length, buffer.length() - pos);
-            buffer.delete(pos, pos + actualLength);
+    // Returns the committed ops (a delete may split in two or vanish), or null if the
+    // base revision is older than the history kept. Broadcasts happen in revision order.
+    private List<Operation> transformAndApply(Operation op) {
+        List<Operation> ops = Collections.singletonList(op);
+        long baseRevision = op.getRevision();
+        // Legacy clients send no revision; their positions are taken as current
+        if (baseRevision >= 0 && baseRevision < revision) {
+            List<Operation> concurrent = history.since(baseRevision);
+            if (concurrent == null) {
+                return null;
+            }
+            ops = OperationTransformer.transform(ops, concurrent, false);
+        }
+
+        boolean hold = syncBeforeBroadcast || replica != null;
+        if (hold && unsynced.isEmpty()) {
+            syncedDocument = document.snapshot();
+        }
+        List<Operation> committed = new ArrayList<>(ops.size());
+        for (Operation candidate : ops) {
+            Operation applied = apply(candidate);
+            if (applied == null) {
+                continue;
+            }
+            revision++;
+            applied = applied.withRevision(revision);
+            history.append(applied);
+            committed.add(applied);
+            if (log != null) {
+                log.append(applied);
+            }
+            if (replica != null) {
+                replica.ship(sessionID, Protocol.formatEdit(applied));
+            }
+            if (hold) {
+                unsynced.add(new Unsynced(applied, document.snapshot()));
+            } else {
+                broadcastEdit(applied);
+            }
+        }
+        if (!committed.isEmpty()) {
+            commits.add(committed.size());
+            documentLength = document.length();
             updateLastActivity();
         }
+        return committed;
     }
 
-    public synchronized String getBuffer() {
-        return buffer.toString();
+    // The log is forced up to `forced`: those edits can go out now
+    private void synced(long forced) {
+        forcedRevision = Math.max(forcedRevision, forced);
+        releaseUnsynced();
     }
 
-    public synchronized void addClient(ClientHandler client) {
-        clients.add(client);
+    // Broadcasts the held edits that are both forced (if the log asks for it) and
+    // acknowledged by the follower (if one is attached)
+    private void releaseUnsynced() {
+        long durable = Math.min(syncBeforeBroadcast ? forcedRevision : Long.MAX_VALUE,
+                replica != null ? replicatedRevision : Long.MAX_VALUE);
+        Unsynced next;
+        while ((next = unsynced.peek()) != null && next.op.getRevision() <= durable) {
+            unsynced.poll();
+            syncedDocument = next.document;
+            broadcastEdit(next.op);
+        }
+        if (unsynced.isEmpty()) {
+            syncedDocument = null;
+        }
+    }
+
+    // The log can no longer make edits durable. Held edits are never broadcast, and every
+    // client is disconnected and refused from now on, so no one sees or builds on an edit
+    // a restart would not have. The files keep what was forced before the failure.
+    private void stopServing() {
+        unsynced.clear();
+        syncedDocument = null;
+        for (ClientHandler client : clients) {
+            client.disconnect();
+        }
+    }
+
+    // What clients may see: everything, or with sync-before-broadcast only what is
+    // already in the forced log. Sequencer only.
+    private long visibleRevision() {
+        Unsynced next = unsynced.peek();
+        return next == null ? revision : next.op.getRevision() - 1;
+    }
+
+    private CharSequence visibleDocument() {
+        return unsynced.isEmpty() ? document.snapshot() : syncedDocument;
+    }
+
+    // The state for a snapshot, with a new log segment started at the same point (if the
+    // session has a log). OT sessions take it on the sequencer, where the rope makes it
+    // free and exact. CRDT state is read after the rotation, without stopping anyone: an
+    // edit merged meanwhile may land in both the state and the new segment, and replaying
+    // it twice is harmless.
+    SessionSnapshot captureSnapshot() {
+        if (crdt != null) {
+            long segment = log != null ? log.rotate() : 0;
+            return new SessionSnapshot(mode, 0, segment, crdt.encodeState());
+        }
+        return sequencer.call(() -> new SessionSnapshot(mode, revision, log != null ? log.rotate() : 0,
+                document.snapshot()));
+    }
+
+    // Starts streaming to a follower: the current state first, then every commit. Edits
+    // already held for the log are part of that state, so they count as acknowledged.
+    void attachReplica(Replication.Feed feed) {
+        if (crdt != null) {
+            crdt.exclusive(() -> {
+                if (replica != feed && feed.isOpen()) {
+                    replica = feed;
+                    feed.startCrdt(this, crdt.encodeState());
+                }
+            });
+            return;
+        }
+        sequencer.submit(() -> {
+            if (replica == feed || movedTo != null || !feed.isOpen()) {
+                return;
+            }
+            List<Operation> recent = history.since(
+                    Math.max(0, revision - Math.min(ServerConfig.OUTBOUND_QUEUE_CAPACITY / 2, history.size())));
+            feed.start(this, new SessionMigration.State(epoch, revision, document.snapshot(),
+                    recent != null ? recent : Collections.<Operation>emptyList()));
+            replica = feed;
+            replicatedRevision = revision;
+        });
+    }
+
+    // The follower is gone: held edits no longer wait for it
+    void detachReplica(Replication.Feed feed) {
+        if (crdt != null) {
+            crdt.exclusive(() -> {
+                if (replica == feed) {
+                    replica = null;
+                }
+            });
+            return;
+        }
+        sequencer.submit(() -> {
+            if (replica == feed) {
+                replica = null;
+                releaseUnsynced();
+            }
+        });
+    }
+
+    // The follower has everything up to `acknowledged`
+    void replicated(Replication.Feed feed, long acknowledged) {
+        sequencer.submit(() -> {
+            if (replica == feed && acknowledged > replicatedRevision) {
+                replicatedRevision = acknowledged;
+                releaseUnsynced();
+            }
+        });
+    }
+
+    Replication.Feed getReplica() {
+        return replica;
+    }
+
+    // Runs a command unless the session is frozen for a migration, has moved away or
+    // lost its log
+    private void whileServing(Runnable command) {
+        if (movedTo != null || logFailed) {
+            return;
+        }
+        if (migrating) {
+            held.add(() -> whileServing(command));
+            return;
+        }
+        command.run();
+    }
+
+    // First step of a migration, while the session keeps going: the document, its
+    // revision and epoch, and up to `historyLimit` ops before it for resuming clients
+    SessionMigration.State captureMigrationState(int historyLimit) {
+        return sequencer.call(() -> {
+            List<Operation> recent = history.since(Math.max(0, revision - Math.min(historyLimit, history.size())));
+            return new SessionMigration.State(epoch, revision, document.snapshot(),
+                    recent != null ? recent : Collections.<Operation>emptyList());
+        });
+    }
+
+    // Second step: freezes the session and returns the ops committed since `revision`,
+    // or null if they have left the history (the session stays unfrozen)
+    List<Operation> freezeForMigration(long since) {
+        return sequencer.call(() -> {
+            List<Operation> tail = history.since(since);
+            if (tail == null) {
+                return null;
+            }
+            sendPendingEdits();
+            migrating = true;
+            return tail;
+        });
+    }
+
+    // The new node has the session: clients are sent there and what was held is
+    // replayed against the moved session. On failure (`target` null) it runs here.
+    void finishMigration(String target) {
+        sequencer.submit(() -> {
+            migrating = false;
+            if (target != null) {
+                movedTo = target;
+                broadcast("MOVED:" + target, null);
+            }
+            List<Runnable> commands = new ArrayList<>(held);
+            held.clear();
+            for (Runnable command : commands) {
+                command.run();
+            }
+        });
+    }
+
+    // Node the session migrated to, or null
+    public String getMovedTo() {
+        return movedTo;
+    }
+
+    // Loads a migrated session before it is published: same epoch and revision, and the
+    // recent history so clients resume where they were
+    void restoreMigrated(SessionMigration.State state) {
+        epoch = state.epoch;
+        document.insert(0, state.document.toString());
+        for (Operation op : state.history) {
+            history.append(op);
+        }
+        revision = state.revision;
+        documentLength = document.length();
+    }
+
+    // Loads a snapshot before the session is published; the log segments after it are
+    // replayed on top
+    void restore(SessionSnapshot snapshot) {
+        if (crdt != null) {
+            crdt.restore(snapshot.getContent().toString());
+            return;
+        }
+        document.insert(0, snapshot.getContent().toString());
+        revision = snapshot.getRevision();
+        documentLength = document.length();
+    }
+
+    // Re-applies a record of the session's own log before the session is published.
+    // OT records are the committed ops, so they apply as they are.
+    void replay(String record) {
+        if (crdt != null) {
+            crdt.replay(record);
+            return;
+        }
+        Operation op = Protocol.parseEdit(record);
+        if (op == null || op.getRevision() != revision + 1) {
+            throw new IllegalStateException("Log of session " + sessionID + " is out of order at revision "
+                    + revision + ": " + record);
+        }
+        if (apply(op) == null) {
+            throw new IllegalStateException("Log of session " + sessionID + " does not apply at revision "
+                    + revision + ": " + record);
+        }
+        revision = op.getRevision();
+        history.append(op);
+        documentLength = document.length();
+    }
+
+    // Clamps the op to the current document and applies it; null if nothing changed
+    private Operation apply(Operation op) {
+        int length = document.length();
+        int pos = op.getPosition();
+        if (op.isInsert()) {
+            if (op.getText().isEmpty()) {
+                return null;
+            }
+            if (pos < 0 || pos > length) {
+                pos = length;
+            }
+            document.insert(pos, op.getText());
+            return pos == op.getPosition() ? op : op.withPosition(pos);
+        }
+
+        if (pos < 0 || pos >= length || op.getLength() <= 0) {
+            return null;
+        }
+        // Ensure we don't delete beyond the buffer
+        int actualLength = Math.min(op.getLength(), length - pos);
+        document.delete(pos, actualLength);
+        return actualLength == op.getLength() ? op : op.withLength(actualLength);
+    }
+
+    // CRDT_INS / CRDT_DEL from a client that speaks the CRDT protocol. Merged on the
+    // caller's thread; the CRDT engine does its own (mostly lock-free) coordination.
+    public void applyCrdtEdit(String line, ClientHandler sender) {
+        if (crdt == null) {
+            System.err.println("Ignoring CRDT edit from " + sender.getClientName() + " in OT session " + sessionID);
+            return;
+        }
+        if (logFailed) {
+            return;
+        }
+        crdt.applyNative(line, sender);
+        updateLastActivity();
+    }
+
+    // Broadcasts a chat line to everyone but the sender, in order with the edits
+    public void submitChat(String message, ClientHandler sender) {
+        sequencer.submit(() -> whileServing(() -> broadcast(message, sender)));
+    }
+
+    // Sends the whole document again, in order with the edits. Used when a client fell
+    // too far behind, either on its base revision or on its outbound queue.
+    public void resync(ClientHandler client) {
+        sequencer.submit(() -> whileServing(() -> resyncNow(client)));
+    }
+
+    private void resyncNow(ClientHandler client) {
+        if (!clients.contains(client)) {
+            return;
+        }
+        sendPendingEdits();
+        if (crdt != null) {
+            crdt.resync(client);
+            return;
+        }
+        client.resumeAfterResync();
+        client.sendDocument(visibleDocument(), visibleRevision());
+    }
+
+    public long getRevision() {
+        return revision;
+    }
+
+    public String getBuffer() {
+        return getSnapshot().toString();
+    }
+
+    // Immutable view of the document, taken in order with the queued edits
+    public CharSequence getSnapshot() {
+        if (crdt != null) {
+            return crdt.text();
+        }
+        return sequencer.call(document::snapshot);
+    }
+
+    // Sends the initial state and announces the new user
+    public void addClient(ClientHandler client) {
+        sequencer.submit(() -> join(client));
+    }
+
+    private void join(ClientHandler client) {
+        if (movedTo != null) {
+            client.sendMessage("MOVED:" + movedTo);
+            return;
+        }
+        if (logFailed) {
+            client.disconnect();
+            return;
+        }
+        if (migrating) {
+            held.add(() -> join(client));
+            return;
+        }
+        // The snapshot below includes them, so they must not reach the new client again
+        sendPendingEdits();
+        if (client.usesFrames()) {
+            // Ids known so far, so every edit frame this client gets can be resolved
+            clientNumber(client.getClientId());
+            for (Map.Entry<String, Integer> entry : clientNumbers.entrySet()) {
+                client.sendFrame(WireFormat.encodeClient(entry.getValue(), entry.getKey()));
+            }
+        } else if (client.getClientId() != null) {
+            clientNumber(client.getClientId());
+        }
+        if (crdt != null) {
+            crdt.join(client, () -> clients.add(client));
+        } else {
+            client.sendMessage("MODE:OT");
+            client.sendMessage("EPOCH:" + epoch);
+            clients.add(client);
+            // Sent from the sequencer, so no edit can slip in between state and stream
+            List<Operation> missed = missedEdits(client);
+            if (missed != null) {
+                System.out.println("Resuming " + client.getClientName() + " from revision "
+                        + client.getResumeRevision() + ": " + missed.size() + " edits");
+                // Edits still waiting for the log follow as broadcasts; the client holds its
+                // own edits until it has them, so nothing it sent before the drop is resent
+                client.sendMessage("RESUME:" + revision);
+                for (Operation op : missed) {
+                    client.send(new OutboundMessage(Protocol.formatEdit(op),
+                            client.usesFrames() ? WireFormat.encodeEdit(op, clientNumber(op.getClientId())) : null));
+                }
+            } else {
+                client.sendDocument(visibleDocument(), visibleRevision());
+            }
+        }
         if (client.getClientId() != null) {
             clientMap.put(client.getClientId(), client);
         }
@@ -53,24 +556,94 @@ public class Session {
 
         // Broadcast updated user count to all clients
         broadcast("USER_COUNT:" + clients.size(), null);
+        // Notify other clients about new user
+        broadcast("USER_JOINED:" + client.getClientName(), client);
+    }
+
+    // Edits a reconnecting client missed, or null if it has to start from the full document:
+    // new client, another epoch, or a gap that left the history or would not fit its queue
+    private List<Operation> missedEdits(ClientHandler client) {
+        long from = client.getResumeRevision();
+        long to = visibleRevision();
+        if (from < 0 || from > to || !epoch.equals(client.getResumeEpoch())) {
+            return null;
+        }
+        if (to - from > ServerConfig.OUTBOUND_QUEUE_CAPACITY / 2) {
+            return null;
+        }
+        List<Operation> missed = history.since(from);
+        // Edits still waiting for the log reach the client when they are broadcast
+        return missed == null ? null : missed.subList(0, (int) (to - from));
+    }
+
+    public void removeClient(ClientHandler client) {
+        sequencer.submit(() -> leave(client));
+    }
+
+    // A client is about to join
+    void hold() {
+        holders.incrementAndGet();
+    }
+
+    // A client has left (its removal queued first, so a hibernation sees it); returns
+    // how many still hold the session
+    int release() {
+        return holders.decrementAndGet();
     }
 
-    public synchronized void removeClient(ClientHandler client) {
-        clients.remove(client);
+    boolean isHeld() {
+        return holders.get() > 0;
+    }
+
+    // Its write-ahead log failed; SessionManager turns joins away
+    boolean isLogFailed() {
+        return logFailed;
+    }
+
+    private void leave(ClientHandler client) {
+        if (!clients.remove(client)) {
+            return;
+        }
+        if (crdt != null) {
+            crdt.leave(client);
+        }
         if (client.getClientId() != null) {
-            clientMap.remove(client.getClientId());
+            // A reconnect may already have taken the id over
+            clientMap.remove(client.getClientId(), client);
         }
         updateLastActivity();
 
         System.out.println("Client " + client.getClientName() + " removed from session " + sessionID +
                 ". Total clients: " + clients.size());
+
+        // Notify other clients about user leaving
+        if (client.getClientName() != null) {
+            broadcast("USER_LEFT:" + client.getClientName(), client);
+            broadcast("USER_COUNT:" + clients.size(), null);
+        }
     }
 
-    public synchronized int getClientCount() {
+    public int getClientCount() {
         return clients.size();
     }
 
-    public synchronized List<String> getClientNames() {
+    List<ClientHandler> getClients() {
+        return Collections.unmodifiableList(clients);
+    }
+
+    // Lines waiting in the clients' outbound queues: {total, deepest}
+    public int[] getOutboundDepth() {
+        int total = 0;
+        int deepest = 0;
+        for (ClientHandler client : clients) {
+            int depth = client.getOutboundDepth();
+            total += depth;
+            deepest = Math.max(deepest, depth);
+        }
+        return new int[] { total, deepest };
+    }
+
+    public List<String> getClientNames() {
         List<String> names = new ArrayList<>();
         for (ClientHandler client : clients) {
             if (client.getClientName() != null) {
@@ -80,29 +653,185 @@ public class Session {
         return names;
     }
 
-    public synchronized void broadcast(String message, ClientHandler exclude) {
-        // Create a copy of the list to avoid concurrent modification issues
-        List<ClientHandler> clientsCopy = new ArrayList<>(clients);
-
-        for (ClientHandler client : clientsCopy) {
+    // Sequencer only
+    private void broadcast(String message, ClientHandler exclude) {
+        sendPendingEdits();
+        OutboundMessage encoded = new OutboundMessage(message);
+        for (ClientHandler client : clients) {
             if (exclude == null || client != exclude) {
                 try {
-                    client.sendMessage(message);
+                    client.send(encoded);
                 } catch (Exception e) {
                     System.err.println(
                             "Error sending message to client " + client.getClientName() + ": " + e.getMessage());
                     // Remove client if sending fails
                     clients.remove(client);
                     if (client.getClientId() != null) {
-                        clientMap.remove(client.getClientId());
+                        clientMap.remove(client.getClientId(), client);
                     }
                 }
             }
         }
     }
 
+    // Sends an edit to every client (but `exclude`), or only to positional ones, as a
+    // line or a frame depending on what each negotiated. Each form is encoded once.
+    void relayEdit(Operation op, ClientHandler exclude, boolean positionalOnly) {
+        long start = System.nanoTime();
+        OutboundMessage encoded = null;
+        for (ClientHandler client : clients) {
+            if (client == exclude || (positionalOnly && client.supportsCrdt())) {
+                continue;
+            }
+            if (encoded == null) {
+                encoded = new OutboundMessage(Protocol.formatEdit(op), editFrame(op));
+            }
+            client.send(encoded);
+        }
+        Metrics.FANOUT.recordNanos(System.nanoTime() - start);
+    }
+
+    // Null (a TEXT frame then) if the op has no binary form or nobody reads frames
+    private byte[] editFrame(Operation op) {
+        for (ClientHandler client : clients) {
+            if (client.usesFrames()) {
+                return WireFormat.encodeEdit(op, clientNumber(op.getClientId()));
+            }
+        }
+        return null;
+    }
+
+    // A committed OT edit, sent now or with the others of its tick
+    private void broadcastEdit(Operation op) {
+        if (tick == null) {
+            relayEdit(op, null, false);
+            return;
+        }
+        pendingEdits.add(op);
+        if (tickScheduled) {
+            return;
+        }
+        tickScheduled = true;
+        long delay = tick.delayNanos(System.nanoTime());
+        if (delay <= 0) {
+            // Still goes behind the commands already queued, which may add to the batch
+            sequencer.submit(this::endTick);
+        } else {
+            sequencer.submitAfter(delay, this::endTick);
+        }
+    }
+
+    private void endTick() {
+        tickScheduled = false;
+        sendPendingEdits();
+    }
+
+    // Sends the edits held for the current tick, one write per client: the lines joined
+    // for text clients, a BATCH frame for framed ones. Both are encoded once.
+    private void sendPendingEdits() {
+        if (pendingEdits.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        tick.sent(start, pendingEdits.size());
+        if (pendingEdits.size() == 1) {
+            relayEdit(pendingEdits.get(0), null, false);
+            pendingEdits.clear();
+            return;
+        }
+        StringBuilder lines = new StringBuilder();
+        for (Operation op : pendingEdits) {
+            if (lines.length() > 0) {
+                lines.append('\n');
+            }
+            lines.append(Protocol.formatEdit(op));
+        }
+        byte[] batch = null;
+        for (ClientHandler client : clients) {
+            if (client.usesFrames()) {
+                List<byte[]> frames = new ArrayList<>(pendingEdits.size());
+                for (Operation op : pendingEdits) {
+                    byte[] frame = WireFormat.encodeEdit(op, clientNumber(op.getClientId()));
+                    frames.add(frame != null ? frame : WireFormat.encodeText(Protocol.formatEdit(op)));
+                }
+                batch = WireFormat.encodeBatch(frames);
+                break;
+            }
+        }
+        OutboundMessage encoded = new OutboundMessage(lines.toString(), batch);
+        for (ClientHandler client : clients) {
+            client.send(encoded);
+        }
+        pendingEdits.clear();
+        Metrics.FANOUT.recordNanos(System.nanoTime() - start);
+    }
+
+    // Number of a client id in binary frames. A new id is announced to every framed
+    // client first, so they can resolve the edit that follows.
+    private int clientNumber(String clientId) {
+        String id = clientId == null ? "" : clientId;
+        Integer number = clientNumbers.get(id);
+        if (number != null) {
+            return number;
+        }
+        int candidate = nextClientNumber.incrementAndGet();
+        number = clientNumbers.putIfAbsent(id, candidate);
+        if (number != null) {
+            return number;
+        }
+        byte[] announcement = WireFormat.encodeClient(candidate, id);
+        for (ClientHandler client : clients) {
+            if (client.usesFrames()) {
+                client.sendFrame(announcement);
+            }
+        }
+        return candidate;
+    }
+
+    // Lock-free fan-out for the CRDT path, to either CRDT or positional clients only
+    void relay(String message, ClientHandler exclude, boolean crdtClients) {
+        long start = System.nanoTime();
+        OutboundMessage encoded = new OutboundMessage(message);
+        for (ClientHandler client : clients) {
+            if (client != exclude && client.supportsCrdt() == crdtClients) {
+                client.send(encoded);
+            }
+        }
+        Metrics.FANOUT.recordNanos(System.nanoTime() - start);
+    }
+
     private void updateLastActivity() {
-        this.lastActivity = LocalDateTime.now();
+        this.lastActivityNanos = System.nanoTime();
+    }
+
+    // CRDT lines, logged between merge and relay so replay sees causes before effects
+    void logCrdt(String line) {
+        commits.increment();
+        if (log != null) {
+            log.append(line);
+        }
+        Replication.Feed feed = replica;
+        if (feed != null) {
+            feed.ship(sessionID, line);
+        }
+    }
+
+    // Null unless the write-ahead log is on
+    public SessionLog getLog() {
+        return log;
+    }
+
+    // Null unless broadcast ticks are on
+    public BroadcastTick getBroadcastTick() {
+        return tick;
+    }
+
+    public SessionSequencer getSequencer() {
+        return sequencer;
+    }
+
+    public SessionMode getMode() {
+        return mode;
     }
 
     public String getSessionID() {
@@ -113,31 +842,40 @@ public class Session {
         return createdAt;
     }
 
+    // For display; expiry works on getLastActivityNanos()
     public LocalDateTime getLastActivity() {
-        return lastActivity;
+        return createdAt.plusNanos(lastActivityNanos - createdNanos);
     }
 
-    public synchronized boolean isEmpty() {
+    public long getLastActivityNanos() {
+        return lastActivityNanos;
+    }
+
+    public boolean isEmpty() {
         return clients.isEmpty();
     }
 
-    public synchronized String getSessionInfo() {
-        return String.format("Session %s: %d clients, created %s, last activity %s",
+    public String getSessionInfo() {
+        return String.format("Session %s (%s): %d clients, created %s, last activity %s",
                 sessionID,
+                mode,
                 clients.size(),
                 createdAt.format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")),
-                lastActivity.format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")));
+                getLastActivity().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")));
     }
 
-    public synchronized int getBufferLength() {
-        return buffer.length();
+    // Edits committed so far; CRDT lines count one each
+    public long getCommitCount() {
+        return commits.sum();
     }
 
-    public synchronized String getBufferPreview(int maxLength) {
-        String content = buffer.toString();
-        if (content.length() <= maxLength) {
-            return content;
-        }
-        return content.substring(0, maxLength) + "...";
+    public int getBufferLength() {
+        return crdt != null ? crdt.length() : documentLength;
     }
-}
\ No newline at end of file
+
+    // Heap held by the text, as UTF-16; history and CRDT tombstones are not counted
+    public long getMemoryBytes() {
+        return 2L * getBufferLength();
+    }
+
+}
@@ -0,0 +1,178 @@
+package Server;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+import Common.LatencyHistogram;
+
+// Sessions moved out of the heap under the memory budget. With a write-ahead log a
+// hibernated session is its snapshot and log segments, the same files a restart
+// recovers from; without one it is a snapshot file in a spill directory that only
+// lives as long as the server. SessionManager runs spill() and reload() while the
+// session id has a transition registered, off the transport threads and outside any
+// map computation; joins of that session wait for the transition, so a join never
+// overlaps a hibernation of the same session. discard() only runs with no transition.
+public class SessionHibernator {
+    private static final long RELEASE_TIMEOUT_SECONDS = 10;
+
+    private final Path directory;
+    private final WriteAheadLog writeAheadLog; // null: the spill files are this run's only
+    // Sessions on disk and when they were last active, on the System.nanoTime() clock
+    private final ConcurrentHashMap<String, Long> hibernated = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder spills = new LongAdder();
+    private final LongAdder spilledBytes = new LongAdder();
+    private final LatencyHistogram reloadLatency = new LatencyHistogram();
+
+    SessionHibernator(Path directory, WriteAheadLog writeAheadLog) {
+        this.directory = directory;
+        this.writeAheadLog = writeAheadLog;
+    }
+
+    // A session left on disk by the previous run, loaded on its first join
+    void adopt(String sessionID, long lastActivityNanos) {
+        hibernated.put(sessionID, lastActivityNanos);
+    }
+
+    // Writes the session out. It must have no clients, and SessionManager must have
+    // taken it out of the session map for a spilling transition, so nothing else reaches
+    // its sequencer until the spill is over.
+    void spill(Session session) throws IOException {
+        long start = System.nanoTime();
+        String sessionID = session.getSessionID();
+        SessionSnapshot snapshot = session.captureSnapshot();
+        SessionLog log = session.getLog();
+        if (log != null) {
+            Path written = Paths.get(log.snapshotPath() + ".tmp");
+            snapshot.write(written);
+            log.install(written, snapshot.getSegment());
+            awaitRelease(log);
+        } else {
+            Path file = SessionLog.snapshotPath(directory, sessionID);
+            Path written = Paths.get(file + ".tmp");
+            snapshot.write(written);
+            Files.move(written, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        hibernated.put(sessionID, session.getLastActivityNanos());
+        spills.increment();
+        spilledBytes.add(session.getMemoryBytes());
+        System.out.println("Hibernated session " + sessionID + ": " + session.getBufferLength() + " chars in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    private static void awaitRelease(SessionLog log) throws IOException {
+        try {
+            log.release().get(RELEASE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while closing the log");
+        } catch (ExecutionException | TimeoutException e) {
+            throw new IOException("log was not closed in time");
+        }
+    }
+
+    // The session as it was hibernated, or null if it is not on disk
+    Session reload(String sessionID) throws IOException {
+        if (!hibernated.containsKey(sessionID)) {
+            return null;
+        }
+        long start = System.nanoTime();
+        Session session;
+        if (writeAheadLog != null) {
+            session = SessionManager.loadSession(sessionID, writeAheadLog.segments(sessionID));
+        } else {
+            Path file = SessionLog.snapshotPath(directory, sessionID);
+            SessionSnapshot snapshot = SessionSnapshot.read(file);
+            session = new Session(sessionID, snapshot.getMode(), null);
+            session.restore(snapshot);
+            Files.delete(file);
+        }
+        hibernated.remove(sessionID);
+        long nanos = System.nanoTime() - start;
+        misses.increment();
+        reloadLatency.recordNanos(nanos);
+        System.out.println("Reloaded session " + sessionID + " in " + nanos / 1_000_000 + " ms");
+        return session;
+    }
+
+    // A join found the session in memory
+    void hit() {
+        hits.increment();
+    }
+
+    // Deletes a hibernated session for good
+    void discard(String sessionID) throws IOException {
+        if (hibernated.remove(sessionID) == null) {
+            return;
+        }
+        if (writeAheadLog != null) {
+            for (Path segment : writeAheadLog.segments(sessionID).values()) {
+                Files.deleteIfExists(segment);
+            }
+        }
+        Files.deleteIfExists(SessionLog.snapshotPath(directory, sessionID));
+    }
+
+    // When a hibernated session was last active, or null if it is not on disk
+    Long getLastActivityNanos(String sessionID) {
+        return hibernated.get(sessionID);
+    }
+
+    // Without a write-ahead log the spill files go with the server
+    void close() {
+        if (writeAheadLog != null) {
+            return;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+            Files.deleteIfExists(directory);
+        } catch (IOException e) {
+            System.err.println("Could not clean up spill directory " + directory + ": " + e.getMessage());
+        }
+        hibernated.clear();
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public int getHibernatedCount() {
+        return hibernated.size();
+    }
+
+    // Joins that found their session in memory
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    // Joins that reloaded their session from disk
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getSpillCount() {
+        return spills.sum();
+    }
+
+    public long getSpilledBytes() {
+        return spilledBytes.sum();
+    }
+
+    // Time to bring each hibernated session back into memory
+    public LatencyHistogram getReloadLatency() {
+        return reloadLatency;
+    }
+}
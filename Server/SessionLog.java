@@ -0,0 +1,407 @@
+package Server;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32;
+
+import Common.Operation;
+import Common.Protocol;
+
+// Append-only write-ahead log of one session, split into numbered segments
+// (<session>.<segment>.wal). Each segment starts with a MODE: header, then the committed
+// edits in order, OT ops as EDIT lines with their revisions and CRDT sessions as the
+// CRDT_INS/CRDT_DEL lines they merged. Each record is its length, a CRC32 and the UTF-8
+// line, so recovery stops cleanly at a torn tail.
+// A snapshot starts a new segment at the revision it captures; once the snapshot file is
+// in place (<session>.snap), the segments before it are deleted.
+// append() only queues the record; the files belong to the WriteAheadLog writer thread.
+// A log whose write or force failed stays failed: it reports no more progress, its
+// barriers fail, and its session stops serving, so nothing after the failure is ever
+// acknowledged as durable.
+public class SessionLog {
+    static final String SUFFIX = ".wal";
+    static final String SNAPSHOT_SUFFIX = ".snap";
+    private static final int HEADER_BYTES = 8;
+
+    // Called on the writer thread
+    interface Listener {
+        // Everything up to `revision` is on disk
+        void durable(long revision);
+
+        // Nothing more will be; called once
+        void failed();
+    }
+
+    private final WriteAheadLog writer;
+    private final String sessionID;
+    private final Path directory;
+    private final String baseName;
+    private final SessionMode mode;
+    private volatile Listener listener;
+    private long nextSegment; // rotate() callers, one snapshot at a time
+    private volatile long segmentRecords; // records in the current segment, written by the writer
+
+    // Writer thread only
+    private long segment;
+    private long oldestSegment;
+    private boolean fresh;
+    private FileChannel channel;
+    private byte[] buffer = new byte[4096];
+    private int buffered;
+    private long lastRevision = -1;
+    private long notifiedRevision = -1;
+    private volatile boolean failed;
+    private boolean closed;
+    private final CRC32 crc = new CRC32();
+
+    // Appends to `segment`, starting it over with a header if `fresh`. Segments from
+    // `oldestSegment` on are this log's and go with it when the session is removed.
+    SessionLog(WriteAheadLog writer, String sessionID, Path directory, SessionMode mode, long oldestSegment,
+            long segment, boolean fresh) {
+        this.writer = writer;
+        this.sessionID = sessionID;
+        this.directory = directory;
+        this.baseName = URLEncoder.encode(sessionID, StandardCharsets.UTF_8);
+        this.mode = mode;
+        this.oldestSegment = oldestSegment;
+        this.segment = segment;
+        this.nextSegment = segment;
+        this.fresh = fresh;
+    }
+
+    void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    // A committed OT op; never blocks
+    public void append(Operation op) {
+        writer.enqueue(this, op, op.getRevision());
+    }
+
+    // A merged CRDT line; never blocks
+    public void append(String line) {
+        writer.enqueue(this, line, -1);
+    }
+
+    // Drops the files once everything queued before has been handled
+    public void delete() {
+        writer.enqueue(this, WriteAheadLog.DELETE, -1);
+    }
+
+    // Forces and closes the files without deleting them, once everything queued before
+    // has been handled. Completes when they are closed.
+    CompletableFuture<Void> release() {
+        writer.enqueue(this, WriteAheadLog.RELEASE, -1);
+        return barrier();
+    }
+
+    // Completes once everything queued so far has been handled, exceptionally if the
+    // log has failed by then
+    CompletableFuture<Void> barrier() {
+        CompletableFuture<Void> reached = new CompletableFuture<>();
+        writer.enqueue(this, (Runnable) () -> {
+            if (failed) {
+                reached.completeExceptionally(new IOException("write-ahead log of session " + sessionID + " failed"));
+            } else {
+                reached.complete(null);
+            }
+        }, -1);
+        return reached;
+    }
+
+    // Ends the current segment after the records queued so far and returns the number of
+    // the next one. Called at the point a snapshot is taken.
+    synchronized long rotate() {
+        long next = ++nextSegment;
+        writer.enqueue(this, (Runnable) () -> startSegment(next), -1);
+        return next;
+    }
+
+    // Puts a written snapshot file in place and deletes the segments it covers, in order
+    // with the records queued so far
+    void install(Path written, long firstSegment) {
+        writer.enqueue(this, (Runnable) () -> installSnapshot(written, firstSegment), -1);
+    }
+
+    // Records appended since the last snapshot
+    long getSegmentRecords() {
+        return segmentRecords;
+    }
+
+    String getSessionID() {
+        return sessionID;
+    }
+
+    boolean isFailed() {
+        return failed;
+    }
+
+    Path snapshotPath() {
+        return snapshotPath(directory, sessionID);
+    }
+
+    static Path snapshotPath(Path directory, String sessionID) {
+        return directory.resolve(URLEncoder.encode(sessionID, StandardCharsets.UTF_8) + SNAPSHOT_SUFFIX);
+    }
+
+    private Path segmentPath(long number) {
+        return directory.resolve(baseName + "." + number + SUFFIX);
+    }
+
+    // Writer thread
+    boolean isClosed() {
+        return closed;
+    }
+
+    // Writer thread: encodes a record into the pending write
+    void add(Object payload, long revision) {
+        if (closed) {
+            return;
+        }
+        String line = payload instanceof Operation ? Protocol.formatEdit((Operation) payload) : (String) payload;
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        int needed = buffered + HEADER_BYTES + bytes.length;
+        if (needed > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(needed, buffer.length * 2));
+        }
+        crc.reset();
+        crc.update(bytes);
+        ByteBuffer.wrap(buffer, buffered, HEADER_BYTES).putInt(bytes.length).putInt((int) crc.getValue());
+        System.arraycopy(bytes, 0, buffer, buffered + HEADER_BYTES, bytes.length);
+        buffered = needed;
+        if (revision > lastRevision) {
+            lastRevision = revision;
+        }
+        segmentRecords++;
+    }
+
+    // Writer thread: one write for everything added since the last call
+    void write() {
+        if (buffered == 0 || failed || closed) {
+            buffered = 0;
+            return;
+        }
+        try {
+            if (channel == null) {
+                open();
+            }
+            ByteBuffer pending = ByteBuffer.wrap(buffer, 0, buffered);
+            while (pending.hasRemaining()) {
+                channel.write(pending);
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+        buffered = 0;
+        if (buffer.length > 1 << 20) {
+            buffer = new byte[4096]; // don't hold on to a burst's worth of memory
+        }
+    }
+
+    // Writer thread
+    void force() {
+        if (channel == null || failed) {
+            return;
+        }
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    // Writer thread: after force(). A failed log reports nothing; its session has been
+    // told through Listener.failed().
+    void synced() {
+        Listener current = listener;
+        if (current != null && !failed && lastRevision > notifiedRevision) {
+            notifiedRevision = lastRevision;
+            current.durable(lastRevision);
+        }
+    }
+
+    // Writer thread: the files stay unless `deleteFiles`
+    void close(boolean deleteFiles) {
+        closed = true;
+        try {
+            closeChannel();
+            if (deleteFiles) {
+                for (long number = oldestSegment; number <= segment; number++) {
+                    Files.deleteIfExists(segmentPath(number));
+                }
+                Files.deleteIfExists(snapshotPath());
+            }
+        } catch (IOException e) {
+            System.err.println("Error closing log of session " + sessionID + ": " + e.getMessage());
+        }
+    }
+
+    private void closeChannel() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    // Writer thread: the current segment is complete and forced; the next one starts
+    // with its own header on the first record
+    private void startSegment(long number) {
+        if (closed) {
+            return;
+        }
+        write();
+        force();
+        try {
+            closeChannel();
+        } catch (IOException e) {
+            fail(e);
+        }
+        segment = number;
+        fresh = true;
+        segmentRecords = 0;
+    }
+
+    // Writer thread
+    private void installSnapshot(Path written, long firstSegment) {
+        try {
+            if (closed || failed) {
+                Files.deleteIfExists(written);
+                return;
+            }
+            Files.move(written, snapshotPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            syncDirectory();
+            for (long number = oldestSegment; number < firstSegment; number++) {
+                Files.deleteIfExists(segmentPath(number));
+            }
+            oldestSegment = firstSegment;
+        } catch (IOException e) {
+            System.err.println("Could not install snapshot of session " + sessionID + ": " + e.getMessage());
+        }
+    }
+
+    // Makes the rename durable before the segments it replaces go
+    private void syncDirectory() {
+        try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException e) {
+            // Not supported everywhere; the rename is still atomic
+        }
+    }
+
+    private void open() throws IOException {
+        Path path = segmentPath(segment);
+        if (fresh) {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            fresh = false;
+            byte[] records = Arrays.copyOf(buffer, buffered);
+            int length = buffered;
+            buffered = 0;
+            add("MODE:" + mode, -1); // the header goes first
+            segmentRecords--;
+            addRaw(records, length);
+        } else {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+        }
+    }
+
+    private void addRaw(byte[] records, int length) {
+        if (buffered + length > buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffered + length);
+        }
+        System.arraycopy(records, 0, buffer, buffered, length);
+        buffered += length;
+    }
+
+    private void fail(IOException e) {
+        if (failed) {
+            return;
+        }
+        failed = true;
+        System.err.println("Write-ahead log of session " + sessionID + " failed, no more edits are acknowledged: "
+                + e.getMessage());
+        Listener current = listener;
+        if (current != null) {
+            current.failed();
+        }
+    }
+
+    // The records of a segment, header first. A torn or corrupt tail (a crash in the
+    // middle of a write) is cut off the file, so appends continue from a clean record.
+    static List<String> read(Path path) throws IOException {
+        List<String> records = new ArrayList<>();
+        long valid = 0;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer data = ByteBuffer.allocate((int) Math.min(channel.size(), Integer.MAX_VALUE));
+            while (data.hasRemaining() && channel.read(data) >= 0) {
+                // read it all
+            }
+            data.flip();
+            CRC32 crc = new CRC32();
+            while (data.remaining() >= HEADER_BYTES) {
+                int length = data.getInt();
+                int checksum = data.getInt();
+                if (length < 0 || length > data.remaining()) {
+                    break;
+                }
+                byte[] bytes = new byte[length];
+                data.get(bytes);
+                crc.reset();
+                crc.update(bytes);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                records.add(new String(bytes, StandardCharsets.UTF_8));
+                valid = data.position();
+            }
+            if (valid < channel.size()) {
+                System.err.println("Truncating " + (channel.size() - valid) + " bytes of torn log at the end of "
+                        + path);
+                channel.truncate(valid);
+            }
+        }
+        return records;
+    }
+
+    // Session id of a segment or snapshot file name, null for other files
+    static String sessionID(String fileName) {
+        String base;
+        if (fileName.endsWith(SNAPSHOT_SUFFIX)) {
+            base = fileName.substring(0, fileName.length() - SNAPSHOT_SUFFIX.length());
+        } else if (segmentNumber(fileName) >= 0) {
+            base = fileName.substring(0, fileName.lastIndexOf('.', fileName.length() - SUFFIX.length() - 1));
+        } else {
+            return null;
+        }
+        return URLDecoder.decode(base, StandardCharsets.UTF_8);
+    }
+
+    // Number of a segment file, -1 if the name has none
+    static long segmentNumber(String fileName) {
+        if (!fileName.endsWith(SUFFIX)) {
+            return -1;
+        }
+        String base = fileName.substring(0, fileName.length() - SUFFIX.length());
+        if (base.lastIndexOf('.') < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(base.substring(base.lastIndexOf('.') + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
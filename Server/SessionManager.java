@@ -1,33 +1,263 @@
 package Server;
 
-import java.time.LocalDateTime;
-import java.time.temporal.ChronoUnit;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class SessionManager {
     private static ConcurrentHashMap<String, Session> sessions;
+    // Sessions being reloaded from disk or spilled to it, completed when that is over.
+    // Entries only come and go inside a `sessions` computation for the same id, so a join
+    // finds either the session or the transition to wait for; the I/O itself runs outside.
+    private static ConcurrentHashMap<String, CompletableFuture<Void>> transitions;
+    // Cluster mode: sessions about to be created, while the other nodes are asked whether
+    // one has it, and those none had, which the next join creates. Changed like
+    // `transitions`; unlike those, a lookup does not make the session local.
+    private static ConcurrentHashMap<String, CompletableFuture<Void>> lookups;
+    private static Set<String> lookedUp;
     private static ScheduledExecutorService cleanupExecutor;
+    // Reloads and the writes of an arriving migration, so no transport thread waits on the disk
+    private static ExecutorService io;
+    private static WriteAheadLog writeAheadLog; // null unless editor.wal.dir is set
+    private static SessionHibernator hibernator; // null unless editor.memory.budget.mb is set
+    // Sessions are expired off two timer wheels, one for those in memory and one for
+    // hibernated ones, so a check only touches sessions that are due
+    private static ExpiryWheel<Session> expiry;
+    private static ExpiryWheel<String> hibernatedExpiry;
     private static final int SESSION_TIMEOUT_HOURS = 24; // Sessions expire after 24 hours of inactivity
-    private static final int CLEANUP_INTERVAL_MINUTES = 30; // Run cleanup every 30 minutes
+    // Without hibernation, a session nobody holds is removed after this long
+    private static final int EMPTY_SESSION_GRACE_MINUTES = 30;
+    private static final int EXPIRY_TICK_SECONDS = 60; // How often the wheels advance
+    private static final int EXPIRY_WHEEL_SLOTS = 2048; // 34 hours of one-minute ticks
+    private static final long SESSION_TIMEOUT_NANOS = TimeUnit.HOURS.toNanos(SESSION_TIMEOUT_HOURS);
+    private static final long EMPTY_SESSION_GRACE_NANOS = TimeUnit.MINUTES.toNanos(EMPTY_SESSION_GRACE_MINUTES);
+    private static final int MEMORY_CHECK_SECONDS = 10; // How often the memory budget is checked
+    private static final int BALANCE_SECONDS = 10; // How often cluster load is measured
+    private static final long MIGRATION_SYNC_SECONDS = 10;
+    private static final int HANDOFF_ATTEMPTS = 30; // one per balance period
+    // Sessions recovered at startup that the ring gives to another node, because the
+    // ring changed or they had migrated here: each goes to its owner, so that clients the
+    // ring sends there find it. Attempts so far; cleanup thread only after init.
+    private static final Map<String, Integer> misplaced = new ConcurrentHashMap<>();
+    // Sequencer commands of each session at the last measurement; cleanup thread only
+    private static Map<Session, Long> appliedCounts = new HashMap<>();
+    private static volatile double load; // commands per second over the last period
 
     public static void init() {
         sessions = new ConcurrentHashMap<>();
+        transitions = new ConcurrentHashMap<>();
+        lookups = new ConcurrentHashMap<>();
+        lookedUp = ConcurrentHashMap.newKeySet();
+        expiry = new ExpiryWheel<>(TimeUnit.SECONDS.toNanos(EXPIRY_TICK_SECONDS), EXPIRY_WHEEL_SLOTS);
+        hibernatedExpiry = new ExpiryWheel<>(TimeUnit.SECONDS.toNanos(EXPIRY_TICK_SECONDS), EXPIRY_WHEEL_SLOTS);
+        if (!ServerConfig.WAL_DIR.isEmpty()) {
+            openWriteAheadLog(Paths.get(ServerConfig.WAL_DIR));
+        }
+        if (ServerConfig.MEMORY_BUDGET_MB > 0 && hibernator == null) {
+            openSpillDirectory();
+        }
 
         // Start cleanup task
         cleanupExecutor = Executors.newScheduledThreadPool(1);
+        io = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "session-io");
+            t.setDaemon(true);
+            return t;
+        });
         cleanupExecutor.scheduleAtFixedRate(
                 SessionManager::cleanupExpiredSessions,
-                CLEANUP_INTERVAL_MINUTES,
-                CLEANUP_INTERVAL_MINUTES,
-                TimeUnit.MINUTES);
+                EXPIRY_TICK_SECONDS,
+                EXPIRY_TICK_SECONDS,
+                TimeUnit.SECONDS);
+        if (writeAheadLog != null) {
+            cleanupExecutor.scheduleWithFixedDelay(
+                    SessionManager::snapshotSessions,
+                    ServerConfig.SNAPSHOT_INTERVAL_S,
+                    ServerConfig.SNAPSHOT_INTERVAL_S,
+                    TimeUnit.SECONDS);
+        }
+        if (hibernator != null) {
+            cleanupExecutor.scheduleWithFixedDelay(
+                    SessionManager::enforceMemoryBudget,
+                    MEMORY_CHECK_SECONDS,
+                    MEMORY_CHECK_SECONDS,
+                    TimeUnit.SECONDS);
+        }
+        if (Cluster.isEnabled()) {
+            cleanupExecutor.scheduleWithFixedDelay(
+                    SessionManager::balanceLoad,
+                    BALANCE_SECONDS,
+                    BALANCE_SECONDS,
+                    TimeUnit.SECONDS);
+            if (!misplaced.isEmpty()) {
+                System.out.println(misplaced.size() + " recovered sessions belong on other nodes; handing them over");
+                cleanupExecutor.scheduleWithFixedDelay(
+                        SessionManager::handOffMisplaced,
+                        1,
+                        BALANCE_SECONDS,
+                        TimeUnit.SECONDS);
+            }
+        }
+
+        System.out.println("SessionManager initialized; sessions expire after " + SESSION_TIMEOUT_HOURS
+                + " hours of inactivity, checked every " + EXPIRY_TICK_SECONDS + " seconds");
+    }
+
+    // Replays the logs left by the previous run, then starts logging. Under a memory
+    // budget the sessions found stay on disk until a client joins them. Without a usable
+    // directory the server runs with sessions in memory only.
+    private static void openWriteAheadLog(Path directory) {
+        try {
+            writeAheadLog = new WriteAheadLog(directory, ServerConfig.WAL_SYNC_MS);
+            if (ServerConfig.MEMORY_BUDGET_MB > 0) {
+                hibernator = new SessionHibernator(directory, writeAheadLog);
+            }
+            for (Map.Entry<String, TreeMap<Long, Path>> found : writeAheadLog.existingSessions().entrySet()) {
+                if (Cluster.ringOwnerElsewhere(found.getKey()) != null) {
+                    misplaced.put(found.getKey(), 0);
+                }
+                if (hibernator != null) {
+                    long lastActivity = lastModified(directory, found.getKey(), found.getValue());
+                    hibernator.adopt(found.getKey(), lastActivity);
+                    hibernatedExpiry.schedule(found.getKey(), lastActivity + SESSION_TIMEOUT_NANOS);
+                } else {
+                    recoverSession(found.getKey(), found.getValue());
+                }
+            }
+            writeAheadLog.start();
+            System.out.println("Write-ahead log in " + directory.toAbsolutePath() + ", "
+                    + (ServerConfig.WAL_SYNC_MS == 0 ? "forced before every broadcast"
+                            : "forced every " + ServerConfig.WAL_SYNC_MS + " ms")
+                    + (hibernator != null ? "; " + hibernator.getHibernatedCount() + " sessions on disk"
+                            : "; recovered " + sessions.size() + " sessions"));
+        } catch (IOException e) {
+            System.err.println("Cannot use write-ahead log directory " + directory + ": " + e.getMessage());
+            writeAheadLog = null;
+            hibernator = null;
+        }
+    }
+
+    // Without a write-ahead log, hibernated sessions go to a directory of this run
+    private static void openSpillDirectory() {
+        try {
+            hibernator = new SessionHibernator(Files.createTempDirectory("editor-sessions"), null);
+        } catch (IOException e) {
+            System.err.println("Cannot create a spill directory, keeping every session in memory: "
+                    + e.getMessage());
+        }
+    }
+
+    // When a session found at startup was last written to, on the System.nanoTime() clock
+    private static long lastModified(Path directory, String sessionID, TreeMap<Long, Path> segments)
+            throws IOException {
+        Path newest = segments.isEmpty() ? SessionLog.snapshotPath(directory, sessionID)
+                : segments.lastEntry().getValue();
+        long age = System.currentTimeMillis() - Files.getLastModifiedTime(newest).toMillis();
+        return System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(Math.max(0, age));
+    }
+
+    private static void recoverSession(String sessionID, TreeMap<Long, Path> segments) {
+        try {
+            Session session = loadSession(sessionID, segments);
+            if (session != null) {
+                sessions.put(sessionID, session);
+                scheduleExpiry(session);
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Could not recover session " + sessionID + ": " + e.getMessage());
+        }
+    }
+
+    // Loads the session's snapshot, if any, and replays the log segments written after it;
+    // null if nothing was ever logged. Segments the snapshot already covers are leftovers
+    // of a crash during compaction.
+    static Session loadSession(String sessionID, TreeMap<Long, Path> segments) throws IOException {
+        long start = System.nanoTime();
+        Path snapshotFile = SessionLog.snapshotPath(writeAheadLog.getDirectory(), sessionID);
+        SessionSnapshot snapshot = Files.exists(snapshotFile) ? SessionSnapshot.read(snapshotFile) : null;
+        long first = snapshot != null ? snapshot.getSegment() : segments.isEmpty() ? 0 : segments.firstKey();
+        for (Path covered : segments.headMap(first).values()) {
+            Files.deleteIfExists(covered);
+        }
+
+        SessionMode mode = snapshot != null ? snapshot.getMode() : null;
+        List<String> records = new ArrayList<>();
+        for (Path segment : segments.tailMap(first).values()) {
+            List<String> segmentRecords = SessionLog.read(segment);
+            if (segmentRecords.isEmpty()) {
+                continue; // torn before its header was complete
+            }
+            SessionMode segmentMode = SessionMode.valueOf(segmentRecords.get(0).substring("MODE:".length()));
+            if (mode != null && mode != segmentMode) {
+                throw new IOException(segment + " is a " + segmentMode + " log in a " + mode + " session");
+            }
+            mode = segmentMode;
+            records.addAll(segmentRecords.subList(1, segmentRecords.size()));
+        }
+        if (mode == null) {
+            return null;
+        }
+
+        long last = segments.isEmpty() ? first : Math.max(first, segments.lastKey());
+        SessionLog log = writeAheadLog.reopen(sessionID, mode, first, last, segments.containsKey(last));
+        Session session = new Session(sessionID, mode, log);
+        if (snapshot != null) {
+            session.restore(snapshot);
+        }
+        for (String record : records) {
+            session.replay(record);
+        }
+        System.out.println("Recovered " + mode + " session " + sessionID + ": "
+                + (snapshot != null ? "snapshot at revision " + snapshot.getRevision() + " + " : "")
+                + records.size() + " edits, " + session.getBufferLength() + " chars in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+        return session;
+    }
+
+    // Snapshots every session whose log has grown past the threshold
+    private static void snapshotSessions() {
+        for (Session session : sessions.values()) {
+            SessionLog log = session.getLog();
+            if (log != null && log.getSegmentRecords() >= ServerConfig.SNAPSHOT_MIN_RECORDS) {
+                snapshot(session);
+            }
+        }
+    }
 
-        System.out.println("SessionManager initialized with automatic cleanup every " +
-                CLEANUP_INTERVAL_MINUTES + " minutes");
+    // Runs on the cleanup thread. Editors only wait for the capture, which for OT is one
+    // sequencer command; the file is written from the immutable view afterwards.
+    private static boolean snapshot(Session session) {
+        long start = System.nanoTime();
+        SessionLog log = session.getLog();
+        try {
+            SessionSnapshot snapshot = session.captureSnapshot();
+            Path written = Paths.get(log.snapshotPath() + ".tmp");
+            snapshot.write(written);
+            log.install(written, snapshot.getSegment());
+            System.out.println("Snapshot of session " + session.getSessionID() + " at revision "
+                    + snapshot.getRevision() + ": " + snapshot.getContent().length() + " chars in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms");
+            return true;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Snapshot of session " + session.getSessionID() + " failed: " + e.getMessage());
+            return false;
+        }
     }
 
     public static Session getSession(String sessionID) {
@@ -35,27 +265,361 @@ public class SessionManager {
     }
 
     public static Session createSession(String sessionID) {
-        Session session = new Session(sessionID);
-        sessions.put(sessionID, session);
+        return createSession(sessionID, ServerConfig.DEFAULT_SESSION_MODE);
+    }
+
+    // The mode is fixed for the session's lifetime. If another client created the
+    // session first, that session is returned as is.
+    public static Session createSession(String sessionID, SessionMode mode) {
+        // The log does no I/O until its first record, so a session that loses the race
+        // below costs nothing
+        Session session = new Session(sessionID, mode,
+                writeAheadLog != null ? writeAheadLog.create(sessionID, mode) : null);
+        Session existing = sessions.putIfAbsent(sessionID, session);
+        if (existing != null) {
+            return existing;
+        }
+        scheduleExpiry(session);
+        Replication.track(session);
 
-        System.out.println("Created new session: " + sessionID);
+        System.out.println("Created new " + mode + " session: " + sessionID);
         System.out.println("Total active sessions: " + sessions.size());
 
         return session;
     }
 
+    // The session a client joins: the one in memory, one reloaded from disk, or a new one
+    // in `mode`. It is held until the client leaves, so it is not hibernated under it.
+    // Completes at once unless the session is on disk or on its way there, or is new and
+    // the other cluster nodes are asked about it first; then it completes on an io thread
+    // once that is done, and concurrent joins wait for the same reload or lookup. Null if
+    // the session is on another node.
+    public static CompletableFuture<Session> joinSession(String sessionID, SessionMode mode) {
+        AtomicReference<CompletableFuture<Void>> pending = new AtomicReference<>();
+        Session joined = sessions.compute(sessionID, (id, session) -> {
+            if (session != null) {
+                if (hibernator != null) {
+                    hibernator.hit();
+                }
+            } else {
+                if (Cluster.forwardedTo(id) != null) {
+                    return null;
+                }
+                CompletableFuture<Void> transition = transitions.get(id);
+                if (transition == null) {
+                    transition = lookups.get(id);
+                }
+                if (transition == null && hibernator != null && hibernator.getLastActivityNanos(id) != null) {
+                    transition = new CompletableFuture<>();
+                    transitions.put(id, transition);
+                    io.execute(() -> reload(id));
+                }
+                if (transition == null && Cluster.hasPeers() && !lookedUp.remove(id)) {
+                    transition = new CompletableFuture<>();
+                    lookups.put(id, transition);
+                    io.execute(() -> lookUp(id));
+                }
+                if (transition != null) {
+                    pending.set(transition);
+                    return null;
+                }
+                session = new Session(id, mode, writeAheadLog != null ? writeAheadLog.create(id, mode) : null);
+                System.out.println("Created new " + mode + " session: " + id);
+                expiry.schedule(session, System.nanoTime() + SESSION_TIMEOUT_NANOS);
+            }
+            session.hold();
+            return session;
+        });
+        if (pending.get() != null) {
+            // Back in memory (or written out, for a spill) by now: join again
+            return pending.get().thenCompose(done -> joinSession(sessionID, mode));
+        }
+        if (joined != null && joined.isLogFailed()) {
+            if (joined.release() == 0) {
+                scheduleExpiry(joined);
+            }
+            return CompletableFuture.failedFuture(
+                    new IOException("Session " + sessionID + " lost its write-ahead log and takes no more edits"));
+        }
+        if (joined != null) {
+            Replication.track(joined);
+        }
+        return CompletableFuture.completedFuture(joined);
+    }
+
+    // On an io thread: brings a hibernated session back into the map and ends its transition
+    private static void reload(String sessionID) {
+        CompletableFuture<Void> transition = transitions.get(sessionID);
+        Session reloaded;
+        try {
+            reloaded = hibernator.reload(sessionID);
+        } catch (IOException | RuntimeException e) {
+            sessions.compute(sessionID, (id, current) -> {
+                transitions.remove(id);
+                return current;
+            });
+            transition.completeExceptionally(
+                    new IOException("Could not reload session " + sessionID + ": " + e.getMessage(), e));
+            return;
+        }
+        sessions.compute(sessionID, (id, current) -> {
+            transitions.remove(id);
+            if (reloaded == null || current != null) {
+                return current; // discarded meanwhile; the joins start it over
+            }
+            hibernatedExpiry.cancel(id);
+            expiry.schedule(reloaded, System.nanoTime() + SESSION_TIMEOUT_NANOS);
+            return reloaded;
+        });
+        transition.complete(null);
+    }
+
+    // The client is gone; a session nobody holds any more starts its grace period
+    public static void leaveSession(Session session, ClientHandler client) {
+        session.removeClient(client);
+        if (session.release() == 0) {
+            scheduleExpiry(session);
+        }
+    }
+
     public static boolean sessionExists(String sessionID) {
         return sessions.containsKey(sessionID);
     }
 
+    // Follower: a session as the primary has it, replacing any earlier copy. Followed
+    // sessions do not expire until promotion; the primary drops them.
+    static void replicaStarted(Session session) {
+        sessions.put(session.getSessionID(), session);
+    }
+
+    static void replicaDropped(String sessionID) {
+        sessions.remove(sessionID);
+    }
+
+    // Follower promoted to primary: its sessions start expiring like any others
+    static void promoted() {
+        for (Session session : sessions.values()) {
+            scheduleExpiry(session);
+        }
+    }
+
+    // On an io thread: before a session is created here, forwards its joins to another
+    // node that has it, if one does
+    private static void lookUp(String sessionID) {
+        String holder = Cluster.findHolder(sessionID);
+        CompletableFuture<Void> lookup = lookups.get(sessionID);
+        sessions.compute(sessionID, (id, current) -> {
+            lookups.remove(id);
+            if (holder != null) {
+                System.out.println("Session " + id + " is on " + holder + "; forwarding its joins there");
+                Cluster.forward(id, holder);
+            } else {
+                lookedUp.add(id);
+            }
+            return current;
+        });
+        lookup.complete(null);
+    }
+
+    // In memory, hibernated here or on its way between the two
+    static boolean isLocal(String sessionID) {
+        return sessions.containsKey(sessionID) || transitions.containsKey(sessionID)
+                || (hibernator != null && hibernator.getLastActivityNanos(sessionID) != null);
+    }
+
+    // A session migrated here. Completes with null once it is published (and, with a
+    // write-ahead log, snapshotted and synced on an io thread), otherwise with why it was
+    // refused. Only a session this node does not have is taken.
+    static CompletableFuture<String> adoptMigrated(SessionMigration.Receiver migration) {
+        String[] refused = new String[1];
+        Session[] adopted = new Session[1];
+        sessions.compute(migration.getSessionID(), (id, current) -> {
+            if (current != null || isLocal(id)) {
+                refused[0] = "session exists";
+                return current;
+            }
+            try {
+                adopted[0] = migration.build(writeAheadLog != null ? writeAheadLog.create(id, SessionMode.OT) : null);
+            } catch (RuntimeException e) {
+                refused[0] = "bad state: " + e.getMessage();
+                return null;
+            }
+            return adopted[0];
+        });
+        if (refused[0] != null) {
+            return CompletableFuture.completedFuture(refused[0]);
+        }
+        Session session = adopted[0];
+        if (writeAheadLog == null) {
+            return CompletableFuture.completedFuture(published(session));
+        }
+        // The source deletes its copy once it hears back, so this one has to be on disk
+        return CompletableFuture.supplyAsync(() -> {
+            if (!(snapshot(session) && synced(session.getLog()))) {
+                sessions.remove(session.getSessionID(), session);
+                session.getLog().delete();
+                return "could not persist";
+            }
+            return published(session);
+        }, io);
+    }
+
+    // A migrated session that is ready to serve; null as adoptMigrated's answer
+    private static String published(Session session) {
+        scheduleExpiry(session);
+        Cluster.arrived(session.getSessionID());
+        Replication.track(session);
+        System.out.println("Session " + session.getSessionID() + " migrated here at revision "
+                + session.getRevision() + ", " + session.getBufferLength() + " chars");
+        return null;
+    }
+
+    private static boolean synced(SessionLog log) {
+        try {
+            log.barrier().get(MIGRATION_SYNC_SECONDS, TimeUnit.SECONDS);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    // The session now runs on `target`: joins are forwarded there before it leaves the
+    // map, so none of them recreates it here
+    static void migrated(Session session, String target) {
+        Cluster.forward(session.getSessionID(), target);
+        if (sessions.remove(session.getSessionID(), session)) {
+            expiry.cancel(session);
+            Replication.dropped(session.getSessionID());
+            if (session.getLog() != null) {
+                session.getLog().delete();
+            }
+        }
+        System.out.println("Total active sessions: " + sessions.size());
+    }
+
+    // Sequencer commands per second over the last period, what LOAD reports to the
+    // other nodes
+    public static double getLoad() {
+        return load;
+    }
+
+    // Measures the load and, with editor.migrate.hot.ops set, moves the hottest OT session
+    // to the least loaded node when that lowers the busier of the two
+    private static void balanceLoad() {
+        if (Replication.isFollowing()) {
+            return;
+        }
+        Map<Session, Long> counts = new HashMap<>();
+        double total = 0;
+        Session hottest = null;
+        double hottestRate = 0;
+        for (Session session : sessions.values()) {
+            long applied = session.getSequencer().getAppliedCount();
+            counts.put(session, applied);
+            Long previous = appliedCounts.get(session);
+            if (previous == null) {
+                continue;
+            }
+            double rate = (applied - previous) / (double) BALANCE_SECONDS;
+            total += rate;
+            if (rate > hottestRate && session.getMode() == SessionMode.OT) {
+                hottest = session;
+                hottestRate = rate;
+            }
+        }
+        appliedCounts = counts;
+        load = total;
+        if (ServerConfig.MIGRATE_HOT_OPS <= 0 || hottest == null || hottestRate < ServerConfig.MIGRATE_HOT_OPS) {
+            return;
+        }
+
+        String target = null;
+        double targetLoad = Double.MAX_VALUE;
+        for (String peer : Cluster.peers()) {
+            double peerLoad = SessionMigration.queryLoad(peer);
+            if (peerLoad >= 0 && peerLoad < targetLoad) {
+                target = peer;
+                targetLoad = peerLoad;
+            }
+        }
+        if (target != null && targetLoad + hottestRate < total) {
+            System.out.println(String.format("Session %s runs %.0f commands/s of %.0f here; %s has %.0f",
+                    hottest.getSessionID(), hottestRate, total, target, targetLoad));
+            SessionMigration.migrate(hottest, target);
+        }
+    }
+
+    // Migrates each misplaced session to its ring owner; an owner that is not up yet is
+    // tried again next period. A hibernated one is reloaded for it. CRDT sessions cannot
+    // move and stay here.
+    private static void handOffMisplaced() {
+        if (Replication.isFollowing()) {
+            return;
+        }
+        for (Iterator<Map.Entry<String, Integer>> it = misplaced.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, Integer> entry = it.next();
+            String sessionID = entry.getKey();
+            String owner = Cluster.ringOwnerElsewhere(sessionID);
+            Session session = owner != null ? handOffCandidate(sessionID) : null;
+            if (session == null) {
+                it.remove(); // gone, or moved on already
+                continue;
+            }
+            if (session.getMode() != SessionMode.OT) {
+                System.err.println("Session " + sessionID + " belongs on " + owner
+                        + " but stays here: only OT sessions can move");
+                it.remove();
+                continue;
+            }
+            if (SessionMigration.migrate(session, owner)) {
+                it.remove();
+            } else if (entry.getValue() + 1 >= HANDOFF_ATTEMPTS) {
+                System.err.println("Giving up handing session " + sessionID + " to " + owner + "; it stays here");
+                it.remove();
+            } else {
+                entry.setValue(entry.getValue() + 1);
+            }
+        }
+    }
+
+    // The session in memory, reloaded if it is hibernated; null if it is not here
+    private static Session handOffCandidate(String sessionID) {
+        Session session = sessions.get(sessionID);
+        if (session != null || Cluster.forwardedTo(sessionID) != null || !isLocal(sessionID)) {
+            return session;
+        }
+        try {
+            session = joinSession(sessionID, SessionMode.OT).join();
+        } catch (RuntimeException e) {
+            System.err.println("Could not load session " + sessionID + " to hand it over: " + e.getMessage());
+            return null;
+        }
+        if (session != null && session.release() == 0) {
+            scheduleExpiry(session);
+        }
+        return session;
+    }
+
     public static void removeSession(String sessionID) {
         Session removed = sessions.remove(sessionID);
         if (removed != null) {
-            System.out.println("Removed session: " + sessionID);
-            System.out.println("Total active sessions: " + sessions.size());
+            expiry.cancel(removed);
+            removed(removed);
         }
     }
 
+    private static void removed(Session session) {
+        Replication.dropped(session.getSessionID());
+        if (session.getLog() != null) {
+            session.getLog().delete();
+        }
+        System.out.println("Removed session: " + session.getSessionID());
+        System.out.println("Total active sessions: " + sessions.size());
+    }
+
     public static List<Session> getAllSessions() {
         return new ArrayList<>(sessions.values());
     }
@@ -70,39 +634,187 @@ public class SessionManager {
                 .sum();
     }
 
+    // Advances the expiry wheels: only sessions whose deadline has come are looked at.
+    // Activity never touches the wheels; a session that was active meanwhile is simply
+    // put back at its new deadline.
     public static void cleanupExpiredSessions() {
-        LocalDateTime cutoff = LocalDateTime.now().minus(SESSION_TIMEOUT_HOURS, ChronoUnit.HOURS);
-        List<String> expiredSessions = new ArrayList<>();
+        long now = System.nanoTime();
+        int removed = 0;
+        for (Session session : expiry.advance(now)) {
+            if (expire(session, now)) {
+                removed++;
+            }
+        }
 
-        for (Session session : sessions.values()) {
-            // Remove sessions that are empty or have been inactive for too long
-            if (session.isEmpty() || session.getLastActivity().isBefore(cutoff)) {
-                expiredSessions.add(session.getSessionID());
+        int discarded = 0;
+        for (String sessionID : hibernatedExpiry.advance(now)) {
+            Long lastActivity = hibernator != null ? hibernator.getLastActivityNanos(sessionID) : null;
+            if (lastActivity == null) {
+                continue; // reloaded since
+            }
+            if (now - lastActivity < SESSION_TIMEOUT_NANOS) {
+                hibernatedExpiry.schedule(sessionID, lastActivity + SESSION_TIMEOUT_NANOS);
+            } else if (discardHibernated(sessionID)) {
+                discarded++;
             }
         }
 
-        for (String sessionID : expiredSessions) {
-            removeSession(sessionID);
-            System.out.println("Cleaned up expired/empty session: " + sessionID);
+        if (removed > 0 || discarded > 0) {
+            System.out.println("Cleanup completed. Removed " + removed + " sessions"
+                    + (discarded > 0 ? " and " + discarded + " hibernated ones." : "."));
         }
+    }
+
+    // Idle time after which a session goes: the full timeout while a client holds it or
+    // it can be hibernated instead, the grace period otherwise
+    private static long idleLimitNanos(Session session) {
+        return hibernator == null && !session.isHeld() ? EMPTY_SESSION_GRACE_NANOS : SESSION_TIMEOUT_NANOS;
+    }
 
-        if (!expiredSessions.isEmpty()) {
-            System.out.println("Cleanup completed. Removed " + expiredSessions.size() + " sessions.");
+    private static void scheduleExpiry(Session session) {
+        long deadline = session.isHeld() ? System.nanoTime() + SESSION_TIMEOUT_NANOS
+                : session.getLastActivityNanos() + idleLimitNanos(session);
+        expiry.schedule(session, deadline);
+    }
+
+    // Removes a session that is still idle and held by nobody. The check runs inside the
+    // map computation, so a client joining at the same moment keeps the session.
+    private static boolean expire(Session session, long now) {
+        boolean[] expired = new boolean[1];
+        sessions.computeIfPresent(session.getSessionID(), (id, current) -> {
+            if (current != session || session.isHeld()
+                    || now - session.getLastActivityNanos() < idleLimitNanos(session)) {
+                return current;
+            }
+            expired[0] = true;
+            return null;
+        });
+        if (expired[0]) {
+            removed(session);
+            System.out.println("Cleaned up expired/empty session: " + session.getSessionID());
+        } else if (sessions.get(session.getSessionID()) == session) {
+            scheduleExpiry(session);
         }
+        return expired[0];
     }
 
-    public static void printSessionStats() {
-        System.out.println("\n=== Session Statistics ===");
-        System.out.println("Active Sessions: " + getActiveSessionCount());
-        System.out.println("Total Active Clients: " + getTotalActiveClients());
+    // Deletes a hibernated session unless a client has just brought it back
+    private static boolean discardHibernated(String sessionID) {
+        boolean[] discarded = new boolean[1];
+        sessions.compute(sessionID, (id, session) -> {
+            if (session == null && !transitions.containsKey(id)) {
+                try {
+                    hibernator.discard(id);
+                    Replication.dropped(id);
+                    discarded[0] = true;
+                } catch (IOException e) {
+                    System.err.println("Could not delete hibernated session " + id + ": " + e.getMessage());
+                }
+            }
+            return session;
+        });
+        return discarded[0];
+    }
 
-        for (Session session : getAllSessions()) {
-            System.out.println("  " + session.getSessionInfo());
-            System.out.println("    Buffer: " + session.getBufferLength() + " chars - \"" +
-                    session.getBufferPreview(50) + "\"");
-            System.out.println("    Users: " + String.join(", ", session.getClientNames()));
+    // Once the text of all sessions in memory exceeds the budget, sessions without
+    // clients go to disk, least recently active first, until it fits again
+    private static void enforceMemoryBudget() {
+        if (Replication.isFollowing()) {
+            return; // the primary decides what stays in memory
+        }
+        long budget = ServerConfig.MEMORY_BUDGET_MB * 1024L * 1024L;
+        long used = 0;
+        List<Session> idle = new ArrayList<>();
+        for (Session session : sessions.values()) {
+            used += session.getMemoryBytes();
+            if (!session.isHeld()) {
+                idle.add(session);
+            }
+        }
+        if (used <= budget) {
+            return;
+        }
+        idle.sort(Comparator.comparingLong(Session::getLastActivityNanos));
+        for (Session session : idle) {
+            if (used <= budget) {
+                break;
+            }
+            long bytes = session.getMemoryBytes();
+            if (hibernate(session)) {
+                used -= bytes;
+            }
+        }
+    }
+
+    // Cleanup thread. The session leaves the map for a spilling transition and is written
+    // out after that, so a client joining meanwhile waits without holding up the map and
+    // then reloads what was written. If the spill fails the session is put back.
+    private static boolean hibernate(Session session) {
+        String sessionID = session.getSessionID();
+        CompletableFuture<Void> transition = new CompletableFuture<>();
+        boolean[] taken = new boolean[1];
+        sessions.computeIfPresent(sessionID, (id, current) -> {
+            if (current != session || session.isHeld()) {
+                return current;
+            }
+            transitions.put(id, transition);
+            taken[0] = true;
+            return null;
+        });
+        if (!taken[0]) {
+            return false;
+        }
+
+        boolean spilled;
+        try {
+            hibernator.spill(session);
+            Replication.forget(session);
+            expiry.cancel(session);
+            hibernatedExpiry.schedule(sessionID, session.getLastActivityNanos() + SESSION_TIMEOUT_NANOS);
+            spilled = true;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Could not hibernate session " + sessionID + ": " + e.getMessage());
+            spilled = false;
+        }
+        boolean restore = !spilled;
+        sessions.compute(sessionID, (id, current) -> {
+            transitions.remove(id);
+            return restore ? session : current;
+        });
+        if (restore) {
+            scheduleExpiry(session); // its expiry may have come and gone while it was out
+        }
+        transition.complete(null);
+        return spilled;
+    }
+
+    // Write-ahead log, hibernation and expiry figures for the metrics endpoint
+    static void renderMetrics(StringBuilder out) {
+        if (writeAheadLog != null) {
+            Metrics.counter(out, "editor_wal_records_total", "Records written to the write-ahead log",
+                    writeAheadLog.getRecordCount());
+            Metrics.counter(out, "editor_wal_group_commits_total", "Forces of the write-ahead log",
+                    writeAheadLog.getForceCount());
+        }
+        Metrics.gauge(out, "editor_expiry_scheduled", "Sessions on the expiry wheels",
+                expiry.size() + hibernatedExpiry.size());
+        if (hibernator != null) {
+            Metrics.gauge(out, "editor_hibernated_sessions", "Sessions on disk", hibernator.getHibernatedCount());
+            Metrics.counter(out, "editor_hibernation_spills_total", "Sessions hibernated",
+                    hibernator.getSpillCount());
+            Metrics.counter(out, "editor_hibernation_reloads_total", "Joins that reloaded a session from disk",
+                    hibernator.getMissCount());
+            Metrics.counter(out, "editor_hibernation_hits_total", "Joins that found their session in memory",
+                    hibernator.getHitCount());
+            Metrics.gauge(out, "editor_hibernation_spilled_bytes", "Session bytes spilled to disk since startup",
+                    hibernator.getSpilledBytes());
+            Metrics.histogram(out, "editor_session_reload_seconds", "Time to reload a hibernated session",
+                    hibernator.getReloadLatency());
+        }
+        if (Cluster.isEnabled()) {
+            Metrics.gauge(out, "editor_cluster_load", "Sequencer commands per second, as reported to other nodes",
+                    load);
         }
-        System.out.println("========================\n");
     }
 
     public static void shutdown() {
@@ -117,6 +829,22 @@ public class SessionManager {
                 Thread.currentThread().interrupt();
             }
         }
+        if (io != null) {
+            io.shutdown();
+        }
+
+        // Flush the logs; the sessions come back from them on the next start, from a
+        // fresh snapshot where the log has grown
+        if (writeAheadLog != null) {
+            snapshotSessions();
+            writeAheadLog.close();
+            System.out.println("Write-ahead log closed after " + writeAheadLog.getRecordCount() + " records in "
+                    + writeAheadLog.getForceCount() + " group commits");
+        }
+
+        if (hibernator != null) {
+            hibernator.close();
+        }
 
         // Clear all sessions
         sessions.clear();
@@ -0,0 +1,229 @@
+package Server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import Common.HashRing;
+import Common.Operation;
+import Common.Protocol;
+
+// Live migration of an OT session to another node, over that node's client port:
+//
+//   MIGRATE:<session>:<epoch>:<revision>   the document as of <revision>, sent while
+//   STATE:<chunk>...                       the session keeps going, with the recent
+//   HISTORY:<EDIT line>...                 history for resuming clients
+//   EDIT:<line>...                         after the freeze: the ops committed meanwhile
+//   COMMIT
+//
+// answered with MIGRATED or REFUSED:<reason>. Only the tail and the round trip happen
+// while the session is frozen. Then the clients get MOVED:<node> and resume there from
+// the revision they had; edits that arrived during the freeze were never applied here,
+// so their senders still hold them and send them again.
+public class SessionMigration {
+    private static final int CHUNK_CHARS = 64 * 1024;
+    private static final int CONNECT_TIMEOUT_MS = 2000;
+    private static final int REPLY_TIMEOUT_MS = 5000;
+
+    // What is shipped before the freeze
+    static final class State {
+        final String epoch;
+        final long revision;
+        final CharSequence document;
+        final List<Operation> history;
+
+        State(String epoch, long revision, CharSequence document, List<Operation> history) {
+            this.epoch = epoch;
+            this.revision = revision;
+            this.document = document;
+            this.history = history;
+        }
+    }
+
+    private SessionMigration() {
+    }
+
+    // Moves the session to `target` (host:port); false if it stays here. Runs on the
+    // caller's thread and blocks editors only between freeze and reply.
+    static boolean migrate(Session session, String target) {
+        if (session.getMode() != SessionMode.OT) {
+            System.err.println("Not migrating " + session.getSessionID() + ": only OT sessions can move");
+            return false;
+        }
+        long start = System.nanoTime();
+        boolean frozen = false;
+        boolean moved = false;
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(HashRing.host(target), HashRing.port(target)), CONNECT_TIMEOUT_MS);
+            socket.setSoTimeout(REPLY_TIMEOUT_MS);
+            Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                    StandardCharsets.UTF_8));
+
+            State state = session.captureMigrationState(ServerConfig.OUTBOUND_QUEUE_CAPACITY / 2);
+            writeState(out, session.getSessionID(), state);
+            out.flush();
+
+            List<Operation> tail = session.freezeForMigration(state.revision);
+            if (tail == null) {
+                throw new IOException("the session moved too fast to catch up");
+            }
+            frozen = true;
+            long frozenAt = System.nanoTime();
+            for (Operation op : tail) {
+                writeLine(out, Protocol.formatEdit(op));
+            }
+            writeLine(out, "COMMIT");
+            out.flush();
+            String reply = in.readLine();
+            if (!"MIGRATED".equals(reply)) {
+                throw new IOException(reply == null ? "connection closed" : reply);
+            }
+            moved = true;
+            SessionManager.migrated(session, target);
+            session.finishMigration(target);
+            System.out.println("Migrated session " + session.getSessionID() + " to " + target + " at revision "
+                    + (state.revision + tail.size()) + ": frozen " + (System.nanoTime() - frozenAt) / 1_000_000
+                    + " ms, " + (System.nanoTime() - start) / 1_000_000 + " ms in total");
+            return true;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Migration of session " + session.getSessionID() + " to " + target + " failed: "
+                    + e.getMessage());
+            if (frozen && !moved) {
+                session.finishMigration(null);
+            }
+            return false;
+        }
+    }
+
+    private static void writeState(Writer out, String sessionID, State state) throws IOException {
+        writeLine(out, "MIGRATE:" + URLEncoder.encode(sessionID, StandardCharsets.UTF_8) + ":" + state.epoch + ":"
+                + state.revision);
+        CharSequence document = state.document;
+        for (int position = 0; position < document.length();) {
+            int end = Math.min(document.length(), position + CHUNK_CHARS);
+            if (end < document.length() && Character.isHighSurrogate(document.charAt(end - 1))) {
+                end--; // keep surrogate pairs in one chunk
+            }
+            writeLine(out, "STATE:" + URLEncoder.encode(document.subSequence(position, end).toString(),
+                    StandardCharsets.UTF_8));
+            position = end;
+        }
+        for (Operation op : state.history) {
+            writeLine(out, "HISTORY:" + Protocol.formatEdit(op));
+        }
+    }
+
+    private static void writeLine(Writer out, String line) throws IOException {
+        out.write(line);
+        out.write('\n');
+    }
+
+    // Target side: collects the lines of one migration on the connection it came in on
+    static final class Receiver {
+        private final String sessionID;
+        private final String epoch;
+        private final long revision;
+        private final StringBuilder document = new StringBuilder();
+        private final List<Operation> history = new ArrayList<>();
+        private final List<String> tail = new ArrayList<>();
+
+        // Null if the line is not a MIGRATE header
+        static Receiver start(String line) {
+            String[] parts = line.split(":");
+            if (parts.length != 4) {
+                return null;
+            }
+            try {
+                return new Receiver(URLDecoder.decode(parts[1], StandardCharsets.UTF_8), parts[2],
+                        Long.parseLong(parts[3]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        private Receiver(String sessionID, String epoch, long revision) {
+            this.sessionID = sessionID;
+            this.epoch = epoch;
+            this.revision = revision;
+        }
+
+        // Takes the next line; true once COMMIT has arrived
+        boolean accept(String line) throws IOException {
+            if (line.startsWith("STATE:")) {
+                document.append(URLDecoder.decode(line.substring("STATE:".length()), StandardCharsets.UTF_8));
+            } else if (line.startsWith("HISTORY:")) {
+                Operation op = Protocol.parseEdit(line.substring("HISTORY:".length()));
+                if (op == null) {
+                    throw new IOException("bad history line");
+                }
+                history.add(op);
+            } else if (line.startsWith("EDIT:")) {
+                tail.add(line);
+            } else if (line.equals("COMMIT")) {
+                return true;
+            } else {
+                throw new IOException("unexpected migration line " + line);
+            }
+            return false;
+        }
+
+        // The session as it stood at the freeze, ready to be published
+        Session build(SessionLog log) {
+            Session session = new Session(sessionID, SessionMode.OT, log);
+            session.restoreMigrated(new State(epoch, revision, document, history));
+            for (String edit : tail) {
+                session.replay(edit);
+            }
+            return session;
+        }
+
+        String getSessionID() {
+            return sessionID;
+        }
+    }
+
+    // Whether a node has the session (HOLDS:<session>); false if it cannot be asked
+    static boolean queryHolds(String node, String sessionID) {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(HashRing.host(node), HashRing.port(node)), CONNECT_TIMEOUT_MS);
+            socket.setSoTimeout(REPLY_TIMEOUT_MS);
+            socket.getOutputStream().write(("HOLDS:" + URLEncoder.encode(sessionID, StandardCharsets.UTF_8) + "\n")
+                    .getBytes(StandardCharsets.UTF_8));
+            socket.getOutputStream().flush();
+            String reply = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))
+                    .readLine();
+            return "HOLDS:1".equals(reply);
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    // Edits per second a node reports for LOAD, or -1 if it cannot be asked
+    static double queryLoad(String node) {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(HashRing.host(node), HashRing.port(node)), CONNECT_TIMEOUT_MS);
+            socket.setSoTimeout(REPLY_TIMEOUT_MS);
+            socket.getOutputStream().write("LOAD\n".getBytes(StandardCharsets.UTF_8));
+            socket.getOutputStream().flush();
+            String reply = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))
+                    .readLine();
+            if (reply == null || !reply.startsWith("LOAD:")) {
+                return -1;
+            }
+            return Double.parseDouble(reply.substring("LOAD:".length()));
+        } catch (IOException | RuntimeException e) {
+            return -1;
+        }
+    }
+}
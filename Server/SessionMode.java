@@ -0,0 +1,20 @@
+package Server;
+
+// How a session merges concurrent edits, fixed when the session is created
+public enum SessionMode {
+    // Central operational transformation against a revision history
+    OT,
+    // Sequence CRDT; the server only merges and relays
+    CRDT;
+
+    public static SessionMode parse(String value, SessionMode fallback) {
+        if (value == null || value.isBlank()) {
+            return fallback;
+        }
+        try {
+            return valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return fallback;
+        }
+    }
+}
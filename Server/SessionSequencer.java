@@ -0,0 +1,153 @@
+package Server;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+// Single writer for one session. Any thread may submit commands to a lock-free queue;
+// they run one at a time, in submission order, on a shared pool. A session is never
+// drained by two pool threads at once, so session state needs no locking as long as it
+// is only touched from commands.
+public class SessionSequencer {
+    private static final int DRAIN_BATCH = 256; // then yield the pool thread to other sessions
+
+    private static final ExecutorService POOL = Executors.newFixedThreadPool(ServerConfig.SEQUENCER_THREADS,
+            new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "session-sequencer-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    // Delayed submits; the timer only hands commands over, it never runs them
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "session-timer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static final class Command {
+        final Runnable action;
+        final long enqueuedAt;
+
+        Command(Runnable action, long enqueuedAt) {
+            this.action = action;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+
+    private final String sessionID;
+    private final ConcurrentLinkedQueue<Command> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile Thread writer;
+
+    private final AtomicInteger depth = new AtomicInteger();
+    private final LongAccumulator maxDepth = new LongAccumulator(Math::max, 0);
+    private final LongAdder applied = new LongAdder();
+    private final LongAdder totalLatencyNanos = new LongAdder();
+    private final LongAccumulator maxLatencyNanos = new LongAccumulator(Math::max, 0);
+
+    public SessionSequencer(String sessionID) {
+        this.sessionID = sessionID;
+    }
+
+    public void submit(Runnable action) {
+        queue.offer(new Command(action, System.nanoTime()));
+        maxDepth.accumulate(depth.incrementAndGet());
+        schedule();
+    }
+
+    // Submits the action once the delay has passed
+    public void submitAfter(long delayNanos, Runnable action) {
+        TIMER.schedule(() -> submit(action), delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    // Runs a query in order with the commands and waits for it. Runs inline when already
+    // on this sequencer so commands can use the same accessors. A query that throws
+    // throws here too (wrapped in a CompletionException), instead of leaving the caller
+    // waiting.
+    public <T> T call(Supplier<T> query) {
+        if (writer == Thread.currentThread()) {
+            return query.get();
+        }
+        CompletableFuture<T> result = new CompletableFuture<>();
+        submit(() -> {
+            try {
+                result.complete(query.get());
+            } catch (RuntimeException | Error e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result.join();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            POOL.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        writer = Thread.currentThread();
+        try {
+            for (int i = 0; i < DRAIN_BATCH; i++) {
+                Command command = queue.poll();
+                if (command == null) {
+                    break;
+                }
+                depth.decrementAndGet();
+                try {
+                    command.action.run();
+                } catch (RuntimeException e) {
+                    System.err.println("Session " + sessionID + " command failed: " + e);
+                }
+                long latency = System.nanoTime() - command.enqueuedAt;
+                Metrics.APPLY.recordNanos(latency);
+                applied.increment();
+                totalLatencyNanos.add(latency);
+                maxLatencyNanos.accumulate(latency);
+            }
+        } finally {
+            writer = null;
+            scheduled.set(false);
+            // A submit may have seen scheduled == true just before we cleared it
+            if (!queue.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+
+    public int getQueueDepth() {
+        return depth.get();
+    }
+
+    public long getMaxQueueDepth() {
+        return maxDepth.get();
+    }
+
+    public long getAppliedCount() {
+        return applied.sum();
+    }
+
+    // Submit-to-done time summed over every command, including the wait in the queue
+    public long getTotalLatencyMicros() {
+        return totalLatencyNanos.sum() / 1000;
+    }
+
+    public long getMaxLatencyMicros() {
+        return maxLatencyNanos.get() / 1000;
+    }
+}
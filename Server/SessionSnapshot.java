@@ -0,0 +1,110 @@
+package Server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+// A session's state at one point of its log: the document text for OT sessions, the
+// RGA state (as sent in CRDT_STATE) for CRDT ones. On disk it is a fixed header
+// (magic, mode, revision, first log segment after it, payload length, CRC32) and the
+// payload as UTF-8. It is written from an immutable view in the background and read
+// back through a memory mapping, decoding straight from the mapped pages.
+public class SessionSnapshot {
+    private static final int MAGIC = 0x45534E50; // "ESNP"
+    private static final int HEADER_BYTES = 36;
+    private static final int CHUNK_CHARS = 64 * 1024;
+
+    private final SessionMode mode;
+    private final long revision;
+    private final long segment;
+    private final CharSequence content;
+
+    SessionSnapshot(SessionMode mode, long revision, long segment, CharSequence content) {
+        this.mode = mode;
+        this.revision = revision;
+        this.segment = segment;
+        this.content = content;
+    }
+
+    public SessionMode getMode() {
+        return mode;
+    }
+
+    // OT revision of the content; 0 in CRDT sessions
+    public long getRevision() {
+        return revision;
+    }
+
+    // Log segments from this one on hold what came after the snapshot
+    public long getSegment() {
+        return segment;
+    }
+
+    public CharSequence getContent() {
+        return content;
+    }
+
+    // Writes and forces the file. The content is encoded a chunk at a time, so a large
+    // rope is never copied into one string.
+    void write(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            CRC32 crc = new CRC32();
+            long length = 0;
+            channel.position(HEADER_BYTES);
+            for (int position = 0; position < content.length();) {
+                int end = Math.min(content.length(), position + CHUNK_CHARS);
+                if (end < content.length() && Character.isHighSurrogate(content.charAt(end - 1))) {
+                    end--; // keep surrogate pairs in one chunk
+                }
+                ByteBuffer bytes = ByteBuffer.wrap(
+                        content.subSequence(position, end).toString().getBytes(StandardCharsets.UTF_8));
+                position = end;
+                crc.update(bytes.duplicate());
+                length += bytes.remaining();
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putInt(mode.ordinal()).putLong(revision).putLong(segment).putLong(length)
+                    .putInt((int) crc.getValue()).flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(false);
+        }
+    }
+
+    static SessionSnapshot read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_BYTES) {
+                throw new IOException("snapshot " + file + " is truncated");
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (mapped.getInt() != MAGIC) {
+                throw new IOException(file + " is not a session snapshot");
+            }
+            SessionMode mode = SessionMode.values()[mapped.getInt()];
+            long revision = mapped.getLong();
+            long segment = mapped.getLong();
+            long length = mapped.getLong();
+            int checksum = mapped.getInt();
+            if (length != channel.size() - HEADER_BYTES) {
+                throw new IOException("snapshot " + file + " is truncated");
+            }
+            CRC32 crc = new CRC32();
+            crc.update(mapped.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                throw new IOException("snapshot " + file + " is corrupt");
+            }
+            CharSequence content = StandardCharsets.UTF_8.decode(mapped);
+            return new SessionSnapshot(mode, revision, segment, content);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package Server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import Common.WireFormat;
+
+// Document snapshot for a framed client that asked for snapshot=deflate: a
+// SNAPSHOT:revision:length line, then Deflate chunks of about CHUNK_CHARS characters.
+// Chunks are compressed when the client's writer asks for them, straight from the
+// immutable snapshot, so neither the whole encoded document nor a URL-encoded copy is
+// ever built, and the client can show each chunk as it arrives. The writer and a
+// clearing thread may both reach the stream, so its methods share the monitor.
+public class SnapshotStream implements OutboundQueue.Stream {
+    static final int CHUNK_CHARS = 64 * 1024;
+
+    private final CharSequence text;
+    private final long revision;
+    private boolean started;
+    private boolean discarded;
+    private int position;
+    private Deflater deflater;
+    private byte[] output = new byte[16 * 1024];
+
+    public SnapshotStream(CharSequence text, long revision) {
+        this.text = text;
+        this.revision = revision;
+    }
+
+    @Override
+    public synchronized byte[] next() {
+        if (discarded) {
+            return null;
+        }
+        if (!started) {
+            started = true;
+            return WireFormat.encodeText("SNAPSHOT:" + revision + ":" + text.length());
+        }
+        if (position >= text.length()) {
+            return null;
+        }
+        int end = Math.min(text.length(), position + CHUNK_CHARS);
+        if (end < text.length() && Character.isHighSurrogate(text.charAt(end - 1))) {
+            end--; // keep surrogate pairs in one chunk
+        }
+        byte[] raw = text.subSequence(position, end).toString().getBytes(StandardCharsets.UTF_8);
+        position = end;
+
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.BEST_SPEED, true);
+        }
+        deflater.setInput(raw);
+        int length = 0;
+        while (true) {
+            length += deflater.deflate(output, length, output.length - length, Deflater.SYNC_FLUSH);
+            if (length < output.length) {
+                break; // a sync flush that did not fill the buffer is complete
+            }
+            output = Arrays.copyOf(output, output.length * 2);
+        }
+        if (position >= text.length()) {
+            deflater.end();
+        }
+        return WireFormat.encodeSnapshotChunk(output, length);
+    }
+
+    // Dropped with a cleared queue or a closed connection: frees the native deflater
+    // now instead of leaving it to the garbage collector
+    @Override
+    public synchronized void discard() {
+        discarded = true;
+        if (deflater != null) {
+            deflater.end(); // no-op if the last chunk already ended it
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package Server;
+
+// Original single-array storage. Edits shift the tail and snapshots copy the whole text,
+// so it is only kept for small documents and for comparison.
+public class StringBuilderDocument implements Document {
+    private final StringBuilder buffer = new StringBuilder();
+
+    @Override
+    public int length() {
+        return buffer.length();
+    }
+
+    @Override
+    public void insert(int pos, String text) {
+        buffer.insert(pos, text);
+    }
+
+    @Override
+    public void delete(int pos, int length) {
+        buffer.delete(pos, pos + length);
+    }
+
+    @Override
+    public CharSequence snapshot() {
+        return buffer.toString();
+    }
+}
@@ -0,0 +1,11 @@
+package Server;
+
+// How client connections are served
+public enum Transport {
+    // A few selector threads for every connection
+    NIO,
+    // One thread per connection from a fixed pool of MAX_CLIENTS
+    BLOCKING,
+    // Blocking handlers, each on its own virtual thread (JDK 21+; BLOCKING before that)
+    VIRTUAL
+}
@@ -0,0 +1,99 @@
+package Server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Virtual threads (JDK 21+) through reflection, so the server still builds and runs on
+// JDK 17. Threads started here are counted for the metrics endpoint.
+public final class VirtualThreads {
+    private static final Method OF_VIRTUAL;
+    private static final Method BUILDER_NAME;
+    private static final Method BUILDER_START;
+
+    private static final AtomicInteger live = new AtomicInteger();
+    private static final LongAdder started = new LongAdder();
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method start = null;
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name = builder.getMethod("name", String.class);
+            start = builder.getMethod("start", Runnable.class);
+        } catch (ReflectiveOperationException e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = name;
+        BUILDER_START = start;
+    }
+
+    private VirtualThreads() {
+    }
+
+    public static boolean isSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    // Starts the task on a new virtual thread, or a platform thread before JDK 21
+    public static Thread start(String name, Runnable task) {
+        Runnable counted = () -> {
+            live.incrementAndGet();
+            started.increment();
+            try {
+                task.run();
+            } finally {
+                live.decrementAndGet();
+            }
+        };
+        if (isSupported()) {
+            try {
+                Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), name);
+                return (Thread) BUILDER_START.invoke(builder, counted);
+            } catch (ReflectiveOperationException e) {
+                System.err.println("Could not start virtual thread " + name + ": " + e);
+            }
+        }
+        Thread thread = new Thread(counted, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    // Threads started here that are still running
+    public static int getLiveCount() {
+        return live.get();
+    }
+
+    public static long getStartedCount() {
+        return started.sum();
+    }
+
+    // Platform threads the scheduler mounts virtual threads on. Enumerates the thread
+    // groups rather than Thread.getAllStackTraces(), which stops every thread to take
+    // its stack.
+    public static int getCarrierCount() {
+        ThreadGroup root = Thread.currentThread().getThreadGroup();
+        while (root.getParent() != null) {
+            root = root.getParent();
+        }
+        Thread[] threads = new Thread[root.activeCount() + 16];
+        int count = root.enumerate(threads);
+        int carriers = 0;
+        for (int i = 0; i < count; i++) {
+            if (threads[i].getClass().getName().equals("jdk.internal.misc.CarrierThread")) {
+                carriers++;
+            }
+        }
+        return carriers;
+    }
+
+    // Every live platform thread in the JVM, carriers included
+    public static int getPlatformCount() {
+        return ManagementFactory.getThreadMXBean().getThreadCount();
+    }
+}
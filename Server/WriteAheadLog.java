@@ -0,0 +1,247 @@
+package Server;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Group commit for the session logs. The edit path only queues records; one writer
+// thread takes whatever has queued up, appends it to each session's file with one write,
+// forces the files and then tells each session how far it is durable. With a sync
+// interval of 0 that happens for every batch, so a burst of edits costs one fsync per
+// file however many edits (and sessions) it spans. With N ms the files are written
+// straight away but forced at most every N ms.
+public class WriteAheadLog {
+    static final Object DELETE = new Object();
+    static final Object RELEASE = new Object();
+    private static final int MAX_BATCH = 4096;
+
+    private final Path directory;
+    private final long syncNanos;
+    private final LinkedBlockingQueue<Record> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    // Writer thread only
+    private final Map<String, SessionLog> owners = new HashMap<>();
+    private final Set<SessionLog> unforced = new LinkedHashSet<>();
+    private long lastForce;
+
+    // Stats, written by the writer thread
+    private volatile long recordCount;
+    private volatile long forceCount;
+
+    private static final class Record {
+        final SessionLog log;
+        final Object payload; // Operation, String, a Runnable for the writer, DELETE, RELEASE, or null to stop
+        final long revision;
+
+        Record(SessionLog log, Object payload, long revision) {
+            this.log = log;
+            this.payload = payload;
+            this.revision = revision;
+        }
+    }
+
+    public WriteAheadLog(Path directory, int syncMillis) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.syncNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, syncMillis));
+        this.writer = new Thread(this::run, "wal-writer");
+        this.writer.setDaemon(true);
+    }
+
+    public void start() {
+        lastForce = System.nanoTime();
+        writer.start();
+    }
+
+    // Sessions left in the directory, each with its log segments in order (possibly
+    // none if only a snapshot is left), for SessionManager to recover
+    public Map<String, TreeMap<Long, Path>> existingSessions() throws IOException {
+        return scan(null);
+    }
+
+    // Log segments of one session, for reloading it after it was hibernated
+    public TreeMap<Long, Path> segments(String sessionID) throws IOException {
+        return scan(sessionID).getOrDefault(sessionID, new TreeMap<>());
+    }
+
+    // Files of every session, or only of `onlySessionID` if it is not null
+    private Map<String, TreeMap<Long, Path>> scan(String onlySessionID) throws IOException {
+        Map<String, TreeMap<Long, Path>> found = new HashMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".tmp")) {
+                    if (onlySessionID == null) {
+                        Files.deleteIfExists(file); // a snapshot that was never installed
+                    }
+                    continue;
+                }
+                String sessionID = SessionLog.sessionID(name);
+                if (sessionID == null || (onlySessionID != null && !onlySessionID.equals(sessionID))) {
+                    continue;
+                }
+                TreeMap<Long, Path> segments = found.computeIfAbsent(sessionID, id -> new TreeMap<>());
+                long segment = SessionLog.segmentNumber(name);
+                if (segment >= 0) {
+                    segments.put(segment, file);
+                }
+            }
+        }
+        return found;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    // A new, empty log for a session created now
+    public SessionLog create(String sessionID, SessionMode mode) {
+        return new SessionLog(this, sessionID, directory, mode, 0, 0, true);
+    }
+
+    // Continues the recovered log of a session: segments from `oldestSegment` are its,
+    // new records go to the end of `segment` (created if it does not exist yet)
+    public SessionLog reopen(String sessionID, SessionMode mode, long oldestSegment, long segment, boolean exists) {
+        return new SessionLog(this, sessionID, directory, mode, oldestSegment, segment, !exists);
+    }
+
+    // Sync interval in ms, 0 when every batch is forced
+    public long getSyncMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(syncNanos);
+    }
+
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    public long getForceCount() {
+        return forceCount;
+    }
+
+    void enqueue(SessionLog log, Object payload, long revision) {
+        if (running) {
+            queue.add(new Record(log, payload, revision));
+        }
+    }
+
+    // Writes and forces everything queued so far, then closes the files (they stay for
+    // the next start)
+    public void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        queue.add(new Record(null, null, -1));
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        List<Record> batch = new ArrayList<>();
+        Set<SessionLog> written = new LinkedHashSet<>();
+        boolean stop = false;
+        while (!stop) {
+            try {
+                Record first;
+                if (syncNanos == 0 || unforced.isEmpty()) {
+                    first = queue.take();
+                } else {
+                    first = queue.poll(lastForce + syncNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+                }
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH);
+                }
+            } catch (InterruptedException e) {
+                stop = true;
+            }
+
+            long records = 0;
+            for (Record record : batch) {
+                if (record.log == null) {
+                    stop = true;
+                } else if (record.payload == DELETE) {
+                    record.log.write();
+                    remove(record.log);
+                    written.remove(record.log);
+                } else if (record.payload == RELEASE) {
+                    record.log.write();
+                    release(record.log);
+                    written.remove(record.log);
+                } else if (record.payload instanceof Runnable) {
+                    ((Runnable) record.payload).run();
+                } else if (!record.log.isClosed()) {
+                    claim(record.log);
+                    record.log.add(record.payload, record.revision);
+                    written.add(record.log);
+                    records++;
+                }
+            }
+            batch.clear();
+            for (SessionLog log : written) {
+                log.write();
+            }
+            unforced.addAll(written);
+            written.clear();
+            recordCount += records;
+
+            if (stop || syncNanos == 0 || System.nanoTime() - lastForce >= syncNanos) {
+                for (SessionLog log : unforced) {
+                    log.force();
+                    log.synced();
+                }
+                if (!unforced.isEmpty()) {
+                    forceCount++;
+                }
+                unforced.clear();
+                lastForce = System.nanoTime();
+            }
+        }
+        for (SessionLog log : owners.values()) {
+            log.close(false);
+        }
+        owners.clear();
+    }
+
+    // A recreated session takes the file over from the removed one it replaces
+    private void claim(SessionLog log) {
+        SessionLog previous = owners.put(log.getSessionID(), log);
+        if (previous != null && previous != log) {
+            previous.close(false);
+            unforced.remove(previous);
+        }
+    }
+
+    private void remove(SessionLog log) {
+        unforced.remove(log);
+        SessionLog owner = owners.get(log.getSessionID());
+        if (owner == null || owner == log) {
+            owners.remove(log.getSessionID());
+            log.close(true);
+        } else {
+            log.close(false);
+        }
+    }
+
+    // The files stay, forced, for the session to be reloaded from
+    private void release(SessionLog log) {
+        unforced.remove(log);
+        log.force();
+        owners.remove(log.getSessionID(), log);
+        log.close(false);
+    }
+}
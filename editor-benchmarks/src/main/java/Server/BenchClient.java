@@ -0,0 +1,33 @@
+package Server;
+
+import java.io.IOException;
+
+// A client whose socket takes everything at once: the outbound queue is drained on the
+// thread that fills it, so benchmarks measure the server's side of a send only
+final class BenchClient extends ClientHandler {
+    private OutboundQueue queue;
+
+    // Joins like a real client would, through the handshake line
+    static BenchClient join(String sessionID, int number, boolean frames) throws IOException {
+        BenchClient client = new BenchClient();
+        client.handleLine("SESSION:" + sessionID + ":bench-" + number + ":user" + number + (frames ? ":wire=1" : ""));
+        return client;
+    }
+
+    @Override
+    protected OutboundQueue openOutbound() {
+        queue = new OutboundQueue(getClientName(), ServerConfig.OUTBOUND_QUEUE_CAPACITY, this::drain);
+        return queue;
+    }
+
+    private void drain() {
+        while (queue.poll() != null) {
+            // discarded, as if written
+        }
+    }
+
+    @Override
+    protected void closeConnection() {
+        cleanup();
+    }
+}
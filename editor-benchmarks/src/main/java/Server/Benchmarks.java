@@ -0,0 +1,30 @@
+package Server;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Main class of benchmarks.jar: JMH's own command line, except that unless -rf or -rff
+// is given the results are also written as JSON to results/jmh-<start time>.json, so
+// every run leaves a file to compare later ones against
+public final class Benchmarks {
+    private Benchmarks() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> options = new ArrayList<>(Arrays.asList(args));
+        if (!options.contains("-rf") && !options.contains("-rff") && !options.contains("-l")
+                && !options.contains("-h")) {
+            Path results = Paths.get("results");
+            Files.createDirectories(results);
+            String name = "jmh-" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")) + ".json";
+            options.addAll(Arrays.asList("-rf", "json", "-rff", results.resolve(name).toString()));
+        }
+        org.openjdk.jmh.Main.main(options.toArray(new String[0]));
+    }
+}
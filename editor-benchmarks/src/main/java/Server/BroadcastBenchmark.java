@@ -0,0 +1,67 @@
+package Server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import Common.Operation;
+
+// Fan-out of one committed edit (Session.relayEdit, what broadcastEdit does without a
+// tick) to 1 to 200 clients that joined through the handshake, as text lines or frames.
+// Called from the benchmark thread: nothing else runs on the session meanwhile.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+    @Param({ "1", "10", "50", "200" })
+    int clients;
+
+    @Param({ "false", "true" })
+    boolean frames;
+
+    private final List<BenchClient> joined = new ArrayList<>();
+    private Session session;
+    private Operation edit;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        SessionManager.init(); // once per fork, as in ServerMain
+        String sessionID = "fanout-" + clients + (frames ? "-frames" : "");
+        for (int i = 0; i < clients; i++) {
+            joined.add(BenchClient.join(sessionID, i, frames));
+        }
+        session = SessionManager.getSession(sessionID);
+        session.getSequencer().call(session::getClientCount); // the joins have run
+        edit = Operation.insert(0, "hello", "bench-0", "1").withRevision(1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (BenchClient client : joined) {
+            client.cleanup();
+        }
+    }
+
+    @Benchmark
+    public void relayEdit() {
+        session.relayEdit(edit, null, false);
+    }
+}
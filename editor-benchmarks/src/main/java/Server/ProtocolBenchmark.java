@@ -0,0 +1,71 @@
+package Server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import Common.Operation;
+import Common.Protocol;
+import Common.WireFormat;
+
+// Decoding an incoming edit as ClientHandler does (an EDIT: line in processEditOperation,
+// a binary frame in handleFrame) and encoding the broadcast, for typed text of a few
+// lengths; the text has a non-ASCII character for every 16, as URL encoding costs more
+// there
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolBenchmark {
+    @Param({ "1", "16", "256" })
+    int length;
+
+    private Operation op;
+    private String line;
+    private byte[] frame;
+
+    @Setup
+    public void setUp() {
+        StringBuilder text = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            text.append(i % 16 == 15 ? 'é' : (char) ('a' + i % 26));
+        }
+        op = Operation.insert(12_345, text.toString(), "CLIENT_1700000000000_42", "4711").withRevision(98_765);
+        line = Protocol.formatEdit(op);
+        frame = WireFormat.encodeEdit(op, 7);
+    }
+
+    @Benchmark
+    public Operation parseLine() {
+        return Protocol.parseEdit(line);
+    }
+
+    @Benchmark
+    public String formatLine() {
+        // The op has no cached wire text, like one decoded from a frame, so this includes
+        // the URL encoding
+        return Protocol.formatEdit(op);
+    }
+
+    @Benchmark
+    public Operation decodeFrame() {
+        return WireFormat.decodeEdit(frame, number -> "CLIENT_1700000000000_42");
+    }
+
+    @Benchmark
+    public byte[] encodeFrame() {
+        return WireFormat.encodeEdit(op, 7);
+    }
+}
@@ -0,0 +1,86 @@
+package Server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import Common.Operation;
+
+// One keystroke and its backspace through Session.submitEdit, on documents of several
+// sizes, at the start, middle or end. The document keeps its size, so every invocation
+// costs the same. `single` waits for each pair (what one typist sees, sequencer
+// handoff included); `batched` queues 100 pairs and waits once (what the session
+// sustains).
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionEditBenchmark {
+    private static final int PAIRS = 100;
+
+    @Param({ "ROPE", "STRING_BUILDER" })
+    String engine;
+
+    @Param({ "1000", "100000", "1000000" })
+    int size;
+
+    @Param({ "START", "MIDDLE", "END" })
+    String position;
+
+    private Session session;
+    private ClientHandler sender;
+    private int pos;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        // Every parameter combination runs in a fork of its own, so ServerConfig is first
+        // read here, after the engine has been chosen
+        System.setProperty("editor.document.engine", engine);
+        session = new Session("bench");
+        sender = new BenchClient();
+        StringBuilder text = new StringBuilder(size);
+        while (text.length() < size) {
+            text.append("The quick brown fox jumps over the lazy dog.\n");
+        }
+        text.setLength(size);
+        session.submitEdit(Operation.insert(0, text.toString(), "seed", "0"), sender);
+        session.getSequencer().call(session::getRevision);
+        pos = position.equals("START") ? 0 : position.equals("MIDDLE") ? size / 2 : size;
+    }
+
+    @Benchmark
+    public long single() {
+        submitPair();
+        return session.getSequencer().call(session::getRevision);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(2 * PAIRS)
+    public long batched() {
+        for (int i = 0; i < PAIRS; i++) {
+            submitPair();
+        }
+        return session.getSequencer().call(session::getRevision);
+    }
+
+    // Unversioned ops apply at the current revision, as a client's do when nobody else
+    // is typing
+    private void submitPair() {
+        session.submitEdit(Operation.insert(pos, "x", "bench", "1"), sender);
+        session.submitEdit(Operation.delete(pos, 1, "bench", "2"), sender);
+    }
+}
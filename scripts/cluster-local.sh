@@ -0,0 +1,140 @@
+#!/usr/bin/env bash
+# Runs a cluster of server processes on localhost and checks that sessions survive a
+# change of membership:
+#   1. two nodes with write-ahead logs; a few sessions get a line of text each, and the
+#      load generator types into more of them through one node (following MOVED:);
+#   2. both nodes stop, and three nodes start on the same logs. Sessions the new ring
+#      gives to the third node must be handed over to it, so every session still has
+#      its text when joined through the new node.
+# Exits with 1 if a session lost its text or the load generator reported a failure.
+#
+#   scripts/cluster-local.sh            # ports 12600-12602
+#   BASE_PORT=13600 scripts/cluster-local.sh
+set -euo pipefail
+
+ROOT=$(cd "$(dirname "$0")/.." && pwd)
+BASE=${BASE_PORT:-12600}
+A=$BASE
+B=$((BASE + 1))
+C=$((BASE + 2))
+SESSIONS=12
+WORK=$(mktemp -d)
+OUT=$WORK/classes
+PIDS=()
+
+cleanup() {
+    for pid in "${PIDS[@]}"; do
+        kill "$pid" 2>/dev/null || true
+    done
+    wait 2>/dev/null || true
+}
+trap cleanup EXIT
+
+echo "Compiling into $OUT"
+mkdir -p "$OUT"
+javac -encoding UTF-8 -d "$OUT" "$ROOT"/Common/*.java "$ROOT"/Server/*.java "$ROOT"/LoadGen/*.java
+
+# port ring: starts a node with its own log directory
+start_node() {
+    local port=$1 ring=$2
+    java -cp "$OUT" -Deditor.port="$port" -Deditor.cluster.nodes="$ring" -Deditor.cluster.self="localhost:$port" \
+        -Deditor.wal.dir="$WORK/wal-$port" Server.ServerMain >>"$WORK/node-$port.log" 2>&1 &
+    PIDS+=($!)
+    for _ in $(seq 50); do
+        if (exec 3<>"/dev/tcp/127.0.0.1/$port") 2>/dev/null; then
+            return 0
+        fi
+        sleep 0.2
+    done
+    echo "Node on port $port did not start; see $WORK/node-$port.log" >&2
+    exit 1
+}
+
+stop_nodes() {
+    for pid in "${PIDS[@]}"; do
+        kill "$pid" 2>/dev/null || true
+    done
+    for pid in "${PIDS[@]}"; do
+        wait "$pid" 2>/dev/null || true
+    done
+    PIDS=()
+}
+
+# session port [text]: joins the session through the node on `port`, following MOVED:,
+# and prints its document. With `text`, inserts it at the start and waits for the echo,
+# which the server only sends once the edit is in the forced log.
+visit() {
+    local session=$1 port=$2 text=${3:-} client="check-$RANDOM" line revision=0 doc= fd
+    while true; do
+        exec {fd}<>"/dev/tcp/127.0.0.1/$port"
+        printf 'SESSION:%s:%s:check\n' "$session" "$client" >&"$fd"
+        local moved=
+        while read -r -t 10 -u "$fd" line; do
+            case $line in
+                MOVED:*)
+                    moved=${line##*:}
+                    break
+                    ;;
+                REVISION:*)
+                    revision=${line#REVISION:}
+                    ;;
+                FULL_BUFFER:*)
+                    doc=${line#FULL_BUFFER:}
+                    if [ -z "$text" ]; then
+                        break
+                    fi
+                    printf 'EDIT:INSERT:0:%s:%s:1:%s\n' "$text" "$client" "$revision" >&"$fd"
+                    ;;
+                EDIT:INSERT:0:"$text":"$client":*)
+                    break
+                    ;;
+            esac
+        done
+        exec {fd}>&-
+        if [ -z "$moved" ]; then
+            break
+        fi
+        port=$moved
+    done
+    printf '%s\n' "$doc"
+}
+
+echo "Phase 1: nodes $A and $B"
+start_node "$A" "localhost:$A,localhost:$B"
+start_node "$B" "localhost:$A,localhost:$B"
+for i in $(seq "$SESSIONS"); do
+    visit "cluster-$i" "$A" "text-of-$i" >/dev/null
+done
+java -cp "$OUT" -Dloadgen.server="localhost:$A" -Dloadgen.sessions=6 -Dloadgen.clients=3 -Dloadgen.duration.s=10 \
+    -Dloadgen.rampup.s=2 LoadGen.LoadGenerator >"$WORK/loadgen.log" 2>&1 || {
+    echo "Load generator failed; see $WORK/loadgen.log" >&2
+    exit 1
+}
+grep "^Convergence" "$WORK/loadgen.log" || true
+stop_nodes
+
+echo "Phase 2: nodes $A, $B and $C on the same logs"
+RING="localhost:$A,localhost:$B,localhost:$C"
+start_node "$A" "$RING"
+start_node "$B" "$RING"
+start_node "$C" "$RING"
+sleep 5 # the first hand-over runs a second after startup
+
+lost=0
+for i in $(seq "$SESSIONS"); do
+    doc=$(visit "cluster-$i" "$C")
+    if [ "$doc" != "text-of-$i" ]; then
+        echo "Session cluster-$i has '$doc' instead of 'text-of-$i'" >&2
+        lost=$((lost + 1))
+    fi
+done
+moved=$(grep -c "migrated here" "$WORK/node-$C.log" || true)
+echo "$moved sessions were handed over to node $C"
+stop_nodes
+
+if [ "$lost" -gt 0 ]; then
+    echo "FAILED: $lost of $SESSIONS sessions lost their text; logs in $WORK" >&2
+    exit 1
+fi
+echo "OK: all $SESSIONS sessions kept their text"
+rm -rf "$WORK"
@@ -0,0 +1,138 @@
+#!/usr/bin/env bash
+# Kills a primary with a hot standby under load and checks that no acknowledged edit
+# is lost: a writer inserts numbered edits into one session on the primary, each after
+# the echo of the one before, and the primary is killed (SIGKILL) partway. Every edit
+# whose echo came back must be in the document the promoted follower serves.
+# Exits with 1 if one is missing.
+#
+#   scripts/failover-local.sh           # ports 12700 (clients), 12701 (follower), 12702 (replication)
+#   BASE_PORT=13700 EDITS=2000 scripts/failover-local.sh
+set -euo pipefail
+
+ROOT=$(cd "$(dirname "$0")/.." && pwd)
+BASE=${BASE_PORT:-12700}
+PRIMARY=$BASE
+FOLLOWER=$((BASE + 1))
+REPLICATION=$((BASE + 2))
+EDITS=${EDITS:-5000}
+KILL_AFTER=${KILL_AFTER:-2} # seconds of writing before the primary dies
+SESSION=failover
+WORK=$(mktemp -d)
+OUT=$WORK/classes
+ACKED=$WORK/acked
+PIDS=()
+
+cleanup() {
+    for pid in "${PIDS[@]}"; do
+        kill -9 "$pid" 2>/dev/null || true
+    done
+    wait 2>/dev/null || true
+}
+trap cleanup EXIT
+
+echo "Compiling into $OUT"
+mkdir -p "$OUT"
+javac -encoding UTF-8 -d "$OUT" "$ROOT"/Common/*.java "$ROOT"/Server/*.java
+
+# name port options...: starts a server and waits until it listens on `port`
+start_server() {
+    local name=$1 port=$2
+    shift 2
+    java -cp "$OUT" "$@" Server.ServerMain >"$WORK/$name.log" 2>&1 &
+    PIDS+=($!)
+    for _ in $(seq 50); do
+        if (exec 3<>"/dev/tcp/127.0.0.1/$port") 2>/dev/null; then
+            return 0
+        fi
+        sleep 0.2
+    done
+    echo "The $name did not start; see $WORK/$name.log" >&2
+    exit 1
+}
+
+# Inserts e1. e2. ... at the start of the session, the next one as soon as the last is
+# echoed; the echo is the acknowledgement. Records the number of each echoed edit.
+write_edits() {
+    local fd line revision=0 i=1 kind client op
+    exec {fd}<>"/dev/tcp/127.0.0.1/$PRIMARY"
+    printf 'SESSION:%s:writer:writer\n' "$SESSION" >&"$fd"
+    while read -r -t 10 -u "$fd" line; do
+        case $line in
+            REVISION:*)
+                revision=${line#REVISION:}
+                ;;
+            FULL_BUFFER:*)
+                printf 'EDIT:INSERT:0:e%d.:writer:%d:%s\n' "$i" "$i" "$revision" >&"$fd"
+                ;;
+            EDIT:*)
+                IFS=: read -r _ kind _ _ client op revision <<<"$line"
+                if [ "$kind" = INSERT ] && [ "$client" = writer ] && [ "$op" = "$i" ]; then
+                    echo "$i" >>"$ACKED"
+                    i=$((i + 1))
+                    if [ "$i" -gt "$EDITS" ]; then
+                        break
+                    fi
+                    printf 'EDIT:INSERT:0:e%d.:writer:%d:%s\n' "$i" "$i" "$revision" >&"$fd"
+                fi
+                ;;
+        esac
+    done
+}
+
+# The document as a new client of the follower gets it, once the follower takes clients
+read_follower() {
+    local fd line
+    for _ in $(seq 50); do
+        if exec {fd}<>"/dev/tcp/127.0.0.1/$FOLLOWER" 2>/dev/null; then
+            printf 'SESSION:%s:reader:reader\n' "$SESSION" >&"$fd" 2>/dev/null || true
+            while read -r -t 5 -u "$fd" line; do
+                if [[ $line == FULL_BUFFER:* ]]; then
+                    exec {fd}>&-
+                    printf '%s\n' "${line#FULL_BUFFER:}"
+                    return 0
+                fi
+            done
+            exec {fd}>&- 2>/dev/null || true
+        fi
+        sleep 0.2
+    done
+    return 1
+}
+
+start_server primary "$PRIMARY" -Deditor.port="$PRIMARY" -Deditor.replication.port="$REPLICATION"
+start_server follower "$REPLICATION" -Deditor.port="$FOLLOWER" -Deditor.follow="localhost:$REPLICATION"
+sleep 1 # the follower connects to the primary
+
+: >"$ACKED"
+(write_edits 2>/dev/null || true) &
+writer=$!
+sleep "$KILL_AFTER"
+echo "Killing the primary after $(wc -l <"$ACKED") acknowledged edits"
+kill -9 "${PIDS[0]}"
+wait "${PIDS[0]}" 2>/dev/null || true
+wait "$writer" || true
+acked=$(wc -l <"$ACKED")
+
+if ! doc=$(read_follower 2>/dev/null); then
+    echo "FAILED: the follower did not serve the session; logs in $WORK" >&2
+    exit 1
+fi
+missing=0
+while read -r i; do
+    if [[ $doc != *"e$i."* ]]; then
+        missing=$((missing + 1))
+        [ "$missing" -le 10 ] && echo "Acknowledged edit e$i. is missing" >&2
+    fi
+done <"$ACKED"
+
+echo "$acked edits acknowledged before the primary died; the follower has ${#doc} characters"
+if [ "$acked" -eq 0 ]; then
+    echo "FAILED: no edit was acknowledged; logs in $WORK" >&2
+    exit 1
+fi
+if [ "$missing" -gt 0 ]; then
+    echo "FAILED: $missing acknowledged edits are missing; logs in $WORK" >&2
+    exit 1
+fi
+echo "OK: every acknowledged edit survived the failover"
+rm -rf "$WORK"